@@ -0,0 +1,42 @@
+package bamboo.crawl;
+
+import bamboo.task.BenchFixtures;
+import bamboo.task.RecordCounters;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-file digest calculation as used by scrub and WARC import.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScrubBench {
+    @Param({"binary-warc-gz"})
+    public String fixture;
+
+    @Param({"SHA-256"})
+    public String algorithm;
+
+    private Path path;
+    private long size;
+
+    @Setup
+    public void setup() throws IOException {
+        path = BenchFixtures.get(fixture);
+        size = Files.size(path);
+    }
+
+    @Benchmark
+    public String calculateDigest(RecordCounters counters) throws IOException {
+        counters.bytes += size;
+        return Scrub.calculateDigest(algorithm, path);
+    }
+}
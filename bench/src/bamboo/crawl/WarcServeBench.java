@@ -0,0 +1,102 @@
+package bamboo.crawl;
+
+import bamboo.core.Streams;
+import bamboo.task.BenchFixtures;
+import bamboo.task.RecordCounters;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving byte ranges of a local WARC to a loopback socket, as in wayback replay. Compares copying through a heap
+ * buffer with FileChannel.transferTo directly into the socket, which is what the container does when handed the
+ * file via sendfile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WarcServeBench {
+    @Param({"binary-warc"})
+    public String fixture;
+
+    @Param({"4096", "65536", "1048576"})
+    public int rangeSize;
+
+    private FileChannel file;
+    private long fileSize;
+    private ServerSocketChannel server;
+    private SocketChannel socket;
+    private OutputStream socketOut;
+    private Thread drain;
+    private final Random random = new Random(0);
+
+    @Setup
+    public void setup() throws IOException {
+        Path path = BenchFixtures.get(fixture);
+        file = FileChannel.open(path);
+        fileSize = file.size();
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socket = SocketChannel.open(server.getLocalAddress());
+        SocketChannel peer = server.accept();
+        drain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try {
+                while (peer.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        socketOut = new BufferedOutputStream(Channels.newOutputStream(socket), 8192);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        socket.close();
+        drain.join();
+        server.close();
+        file.close();
+    }
+
+    private long nextStart() {
+        return (long) (random.nextDouble() * (fileSize - rangeSize));
+    }
+
+    @Benchmark
+    public void streamCopy(RecordCounters counters) throws IOException {
+        file.position(nextStart());
+        Streams.copy(Channels.newInputStream(file), socketOut, rangeSize);
+        socketOut.flush();
+        counters.records++;
+        counters.bytes += rangeSize;
+    }
+
+    @Benchmark
+    public void sendfile(RecordCounters counters) throws IOException {
+        long position = nextStart();
+        long end = position + rangeSize;
+        while (position < end) {
+            position += file.transferTo(position, end - position, socket);
+        }
+        counters.records++;
+        counters.bytes += rangeSize;
+    }
+}
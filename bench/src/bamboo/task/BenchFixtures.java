@@ -0,0 +1,190 @@
+package bamboo.task;
+
+import org.netpreserve.jwarc.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Synthetic WARC and ARC files for the benchmarks. Files are generated deterministically on first use and kept
+ * in target/fixtures (or BENCH_FIXTURES) so repeated runs don't pay the generation cost.
+ *
+ * <p>Fixture names are "{mix}-{format}" where mix is "html" (many small HTML pages, the common case for CDX
+ * indexing) or "binary" (fewer large image/video-like records) and format is one of warc, warc-gz, arc, arc-gz.
+ * The name "sample" refers to the small real-world WARC checked in under ui/test-resources.
+ */
+public class BenchFixtures {
+    private static final int HTML_RECORDS = 5000;
+    private static final int BINARY_RECORDS = 200;
+    private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(UTC);
+    private static final String[] WORDS = ("the quick brown fox jumps over lazy dog archive web national library " +
+            "australia collection harvest record crawl snapshot page site government heritage digital").split(" ");
+
+    public static Path get(String name) throws IOException {
+        Path dir = Paths.get(System.getenv().getOrDefault("BENCH_FIXTURES", "target/fixtures"));
+        if (name.equals("sample")) {
+            Path path = dir.resolve("example.warc.gz");
+            if (!Files.exists(path)) {
+                Files.createDirectories(dir);
+                try (InputStream stream = BenchFixtures.class.getResourceAsStream("/samples/example.warc.gz")) {
+                    Files.copy(stream, path);
+                }
+            }
+            return path;
+        }
+
+        String[] parts = name.split("-", 2);
+        boolean html = parts[0].equals("html");
+        String format = parts[1];
+        String filename = (format.startsWith("arc") ? "nla.arc-bench-" : "bench-") + name + "." +
+                format.replace("-gz", ".gz");
+        Path path = dir.resolve(filename);
+        if (!Files.exists(path)) {
+            Files.createDirectories(dir);
+            Path tmp = dir.resolve(filename + ".tmp");
+            if (format.startsWith("warc")) {
+                writeWarc(tmp, html, format.endsWith("gz"));
+            } else {
+                writeArc(tmp, filename, html, format.endsWith("gz"));
+            }
+            Files.move(tmp, path);
+        }
+        return path;
+    }
+
+    static String filename(Path path) {
+        return path.getFileName().toString();
+    }
+
+    private static void writeWarc(Path path, boolean html, boolean gzip) throws IOException {
+        Random random = new Random(0);
+        try (FileChannel channel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING);
+             WarcWriter writer = new WarcWriter(channel, gzip ? WarcCompression.GZIP : WarcCompression.NONE)) {
+            writer.write(new Warcinfo.Builder()
+                    .fields(Map.of("software", List.of("bamboo-bench")))
+                    .build());
+            Instant date = Instant.parse("2020-01-01T00:00:00Z");
+            int count = html ? HTML_RECORDS : BINARY_RECORDS;
+            for (int i = 0; i < count; i++) {
+                String url = url(random, i);
+                byte[] http = httpResponse(random, html);
+                WarcRequest request = new WarcRequest.Builder(URI.create(url))
+                        .date(date)
+                        .body(MediaType.HTTP_REQUEST, ("GET / HTTP/1.1\r\nHost: example.org\r\n\r\n").getBytes(US_ASCII))
+                        .build();
+                WarcResponse response = new WarcResponse.Builder(URI.create(url))
+                        .date(date)
+                        .concurrentTo(request.id())
+                        .body(MediaType.HTTP_RESPONSE, http)
+                        .build();
+                writer.write(response);
+                writer.write(request);
+                date = date.plusMillis(random.nextInt(2000));
+            }
+        }
+    }
+
+    private static void writeArc(Path path, String filename, boolean html, boolean gzip) throws IOException {
+        Random random = new Random(0);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            Instant date = Instant.parse("2005-01-01T00:00:00Z");
+            byte[] filedesc = "1 0 Bamboo\nURL IP-address Archive-date Content-type Archive-length\n".getBytes(US_ASCII);
+            writeArcRecord(out, gzip, "filedesc://" + filename + " 0.0.0.0 " + ARC_DATE.format(date) +
+                    " text/plain " + filedesc.length, filedesc);
+            int count = html ? HTML_RECORDS : BINARY_RECORDS;
+            for (int i = 0; i < count; i++) {
+                byte[] http = httpResponse(random, html);
+                writeArcRecord(out, gzip, url(random, i) + " 192.0.2.1 " + ARC_DATE.format(date) + " " +
+                        (html ? "text/html" : "image/jpeg") + " " + http.length, http);
+                date = date.plusSeconds(random.nextInt(3));
+            }
+        }
+    }
+
+    private static void writeArcRecord(OutputStream out, boolean gzip, String header, byte[] body) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(header.getBytes(US_ASCII));
+        record.write('\n');
+        record.write(body);
+        record.write('\n');
+        if (gzip) {
+            // each record is its own gzip member
+            GZIPOutputStream gz = new GZIPOutputStream(out);
+            record.writeTo(gz);
+            gz.finish();
+        } else {
+            record.writeTo(out);
+        }
+    }
+
+    private static String url(Random random, int i) {
+        return "http://www" + random.nextInt(20) + ".example.org/section" + random.nextInt(10) +
+                "/page" + i + ".html?session=" + Integer.toHexString(random.nextInt());
+    }
+
+    private static byte[] httpResponse(Random random, boolean html) {
+        byte[] body;
+        String type;
+        if (html) {
+            body = htmlPage(random).getBytes(UTF_8);
+            type = "text/html; charset=utf-8";
+        } else {
+            body = new byte[64 * 1024 + random.nextInt(512 * 1024)];
+            random.nextBytes(body);
+            type = "image/jpeg";
+        }
+        String header = "HTTP/1.1 200 OK\r\n" +
+                "Date: Wed, 01 Jan 2020 00:00:00 GMT\r\n" +
+                "Server: Apache\r\n" +
+                "Content-Type: " + type + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "\r\n";
+        byte[] headerBytes = header.getBytes(US_ASCII);
+        byte[] response = new byte[headerBytes.length + body.length];
+        System.arraycopy(headerBytes, 0, response, 0, headerBytes.length);
+        System.arraycopy(body, 0, response, headerBytes.length, body.length);
+        return response;
+    }
+
+    static String htmlPage(Random random) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE html><html><head><title>").append(words(random, 6)).append("</title>");
+        sb.append("<meta name=\"description\" content=\"").append(words(random, 20)).append("\"></head><body>");
+        sb.append("<h1>").append(words(random, 5)).append("</h1>");
+        int paragraphs = 3 + random.nextInt(20);
+        for (int i = 0; i < paragraphs; i++) {
+            sb.append("<p>").append(words(random, 30 + random.nextInt(100)));
+            sb.append(" <a href=\"/page").append(random.nextInt(10000)).append(".html\">")
+                    .append(words(random, 3)).append("</a></p>\n");
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
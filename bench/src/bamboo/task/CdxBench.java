@@ -0,0 +1,48 @@
+package bamboo.task;
+
+import bamboo.crawl.RecordStats;
+import org.netpreserve.jwarc.WarcReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end CDX indexing of a whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CdxBench {
+    @Param({"html-warc-gz", "html-warc", "html-arc-gz", "binary-warc-gz", "binary-warc", "binary-arc", "sample"})
+    public String fixture;
+
+    private Path path;
+    private long size;
+
+    @Setup
+    public void setup() throws IOException {
+        path = BenchFixtures.get(fixture);
+        size = Files.size(path);
+    }
+
+    @Benchmark
+    public RecordStats buildIndex(RecordCounters counters) throws IOException {
+        PrintWriter out = new PrintWriter(OutputStream.nullOutputStream());
+        RecordStats stats;
+        try (WarcReader reader = new WarcReader(path)) {
+            stats = Cdx.buildIndex(reader, out, BenchFixtures.filename(path));
+        }
+        out.flush();
+        counters.records += stats.getRecords();
+        counters.bytes += size;
+        return stats;
+    }
+}
@@ -0,0 +1,67 @@
+package bamboo.task;
+
+import org.netpreserve.jwarc.URIs;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Compares the CdxWriter line formatter against the printf formatting Cdx.buildIndex used previously.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CdxFormatBench {
+    private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(UTC);
+    private static final int LINES = 8192; // larger than the SURT cache so this measures the miss path
+
+    private final String[] urls = new String[LINES];
+    private final Instant[] dates = new Instant[LINES];
+    private PrintWriter out;
+    private CdxWriter cdxWriter;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        Instant date = Instant.parse("2020-01-01T00:00:00Z");
+        for (int i = 0; i < LINES; i++) {
+            urls[i] = "http://www" + random.nextInt(20) + ".example.org/section" + random.nextInt(10) + "/page" + i + ".html";
+            dates[i] = date;
+            date = date.plusMillis(random.nextInt(2000));
+        }
+        out = new PrintWriter(OutputStream.nullOutputStream());
+        cdxWriter = new CdxWriter(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void legacyPrintf(RecordCounters counters) {
+        for (int i = 0; i < LINES; i++) {
+            String type = "text/html";
+            out.printf("%s %s %s %s %d %s %s - %d %d %s%n", URIs.toNormalizedSurt(urls[i]), ARC_DATE.format(dates[i]),
+                    urls[i], type.replace(" ", "%20").replace("\n", "%0A").replace("\0", "%00"), 200,
+                    "AAAABBBBCCCCDDDDEEEEFFFFGGGGHHHH", "-", 12345L, i * 12345L, "bench.warc.gz");
+        }
+        counters.records += LINES;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void cdxWriter(RecordCounters counters) {
+        for (int i = 0; i < LINES; i++) {
+            cdxWriter.write(cdxWriter.surt(urls[i]), dates[i], urls[i], "text/html", 200,
+                    "AAAABBBBCCCCDDDDEEEEFFFFGGGGHHHH", null, 12345L, i * 12345L, "bench.warc.gz");
+        }
+        counters.records += LINES;
+    }
+}
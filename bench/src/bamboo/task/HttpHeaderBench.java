@@ -0,0 +1,40 @@
+package bamboo.task;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpHeaderBench {
+    private byte[] header;
+
+    @Setup
+    public void setup() {
+        header = ("HTTP/1.1 301 Moved Permanently\r\n" +
+                "Date: Wed, 01 Jan 2020 00:00:00 GMT\r\n" +
+                "Server: Apache/2.4.41 (Ubuntu)\r\n" +
+                "Location: /new/location/index.html?a=1&b=2\r\n" +
+                "Cache-Control: max-age=3600\r\n" +
+                "Expires: Wed, 01 Jan 2020 01:00:00 GMT\r\n" +
+                "Content-Length: 245\r\n" +
+                "Content-Type: text/html; charset=iso-8859-1\r\n" +
+                "Set-Cookie: session=0123456789abcdef; path=/; HttpOnly\r\n" +
+                "\r\n").getBytes(US_ASCII);
+    }
+
+    @Benchmark
+    public HttpHeader parse(RecordCounters counters) throws IOException {
+        counters.records++;
+        counters.bytes += header.length;
+        return HttpHeader.parse(new ByteArrayInputStream(header), "http://www.example.org/old/location");
+    }
+}
@@ -0,0 +1,55 @@
+package bamboo.task;
+
+import org.netpreserve.jwarc.MediaType;
+import org.netpreserve.jwarc.WarcResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Parsing a PANDORA HTTrack url.map into alias records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PandoraAliaserBench {
+    @Param({"1000"})
+    public int lines;
+
+    private byte[] urlMap;
+    private PrintWriter out;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("www.example").append(i % 50).append(".gov.au/section/page").append(i).append(".html")
+                    .append("^^/12345/20010101-0000/www.example").append(i % 50).append(".gov.au/section/page")
+                    .append(i).append(".html\n");
+        }
+        urlMap = sb.toString().getBytes(US_ASCII);
+        out = new PrintWriter(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public boolean parseUrlMap(RecordCounters counters) throws IOException {
+        WarcResource record = new WarcResource.Builder(URI.create("http://pandora.nla.gov.au/pan/12345/20010101-0000/url.map"))
+                .date(Instant.parse("2001-01-01T00:00:00Z"))
+                .body(MediaType.parse("text/plain"), urlMap)
+                .build();
+        Cdx.PandoraAliaser aliaser = new Cdx.PandoraAliaser(out);
+        counters.records += lines;
+        counters.bytes += urlMap.length;
+        return aliaser.accept(record);
+    }
+}
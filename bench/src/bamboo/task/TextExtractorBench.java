@@ -0,0 +1,53 @@
+package bamboo.task;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text extraction over a whole file via the single-pass pipeline. This is dominated by Tika so uses fewer,
+ * longer iterations than the other benchmarks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 30)
+@Measurement(iterations = 3, time = 30)
+@Fork(1)
+public class TextExtractorBench {
+    @Param({"html-warc-gz", "binary-warc-gz", "sample"})
+    public String fixture;
+
+    private Path path;
+    private long size;
+    private TextExtractor extractor;
+
+    @Setup
+    public void setup() throws IOException {
+        path = BenchFixtures.get(fixture);
+        size = Files.size(path);
+        extractor = new TextExtractor();
+    }
+
+    @TearDown
+    public void teardown() {
+        extractor.close();
+    }
+
+    @Benchmark
+    public long extract(RecordCounters counters) throws IOException {
+        long[] documents = new long[1];
+        try (InputStream stream = Files.newInputStream(path)) {
+            new WarcPipeline()
+                    .text(extractor, doc -> documents[0]++)
+                    .run(stream, BenchFixtures.filename(path));
+        }
+        counters.records += documents[0];
+        counters.bytes += size;
+        return documents[0];
+    }
+}
@@ -0,0 +1,32 @@
+package bamboo.task;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WarcUtilsBench {
+    private static final String[] URLS = {
+            "http://www.example.org/",
+            "<http://www.example.org/section/page.html?a=1&b=2>",
+            "https://example.com/path with spaces/index.html",
+            "http://pandora.nla.gov.au/pan/12345/20010101-0000/www.example.org/index.html",
+            "dns:www.example.org",
+            "http://www.example.org/very/long/path/that/goes/on/for/a/while/and/has/lots/of/segments/in/it.jpg",
+    };
+
+    @Benchmark
+    @OperationsPerInvocation(6)
+    public void cleanUrl(Blackhole blackhole, RecordCounters counters) {
+        for (String url : URLS) {
+            blackhole.consume(WarcUtils.cleanUrl(url));
+        }
+        counters.records += URLS.length;
+    }
+}
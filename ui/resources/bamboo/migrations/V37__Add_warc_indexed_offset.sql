@@ -0,0 +1,2 @@
+alter table warc
+    add indexed_offset bigint;
\ No newline at end of file
@@ -0,0 +1,8 @@
+create table rollup_checkpoint
+(
+    id tinyint not null primary key,
+    warc_history_id bigint not null
+);
+
+insert into rollup_checkpoint (id, warc_history_id)
+select 1, coalesce(max(id), 0) from warc_history;
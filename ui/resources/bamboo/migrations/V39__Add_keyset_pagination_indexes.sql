@@ -0,0 +1,3 @@
+CREATE INDEX warc_crawl_id_filename ON warc (crawl_id, filename);
+CREATE INDEX crawl_end_time ON crawl (end_time);
+CREATE INDEX crawl_crawl_series_id_end_time ON crawl (crawl_series_id, end_time);
@@ -16,6 +16,7 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.io.IOException;
@@ -110,14 +111,23 @@ public class DataApiController {
     @GetMapping(value = "/data/crawls/{crawlId}/warcs", produces = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
     public ArrayList<WarcData> listWarcsByCrawl(@PathVariable long crawlId,
-                                                @RequestParam(value = "page", defaultValue = "1") int page,
+                                                @RequestParam(value = "page", required = false) Integer page,
+                                                @RequestParam(value = "after", required = false) String after,
                                                 @RequestParam(value = "size", defaultValue = "10000") int pageSize,
                                                 HttpServletRequest request,
+                                                HttpServletResponse response,
                                                 UriComponentsBuilder uriBuilder) throws AccessDeniedException, MissingCredentialsException {
         enforceAgwaCredentials(request);
         var crawl = wa.crawls.get(crawlId);
         enforceAgwaCrawl(crawl);
-        var pager = wa.warcs.paginateWithCrawlId(page, crawlId, pageSize);
+        // page numbers are still accepted but clients should follow the Link header's cursor instead
+        var pager = page != null ? wa.warcs.paginateWithCrawlId(page, crawlId, pageSize) :
+                wa.warcs.paginateWithCrawlIdAfter(after, crawlId, pageSize);
+        if (pager.nextCursor != null) {
+            response.setHeader("Link", "<" + ServletUriComponentsBuilder.fromRequest(request)
+                    .replaceQueryParam("page").replaceQueryParam("after", pager.nextCursor).toUriString()
+                    + ">; rel=\"next\"");
+        }
         var list = new ArrayList<WarcData>();
         String baseUrl = dataApiBaseUrl;
         if (baseUrl == null) {
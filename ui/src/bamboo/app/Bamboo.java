@@ -12,6 +12,7 @@ import bamboo.util.Oidc;
 import doss.BlobStore;
 import doss.DOSS;
 import doss.http.Credentials;
+import doss.http.HttpBlob;
 import doss.http.HttpBlobStore;
 import doss.http.OAuthClientCredentials;
 import doss.trivial.TrivialBlobStore;
@@ -78,13 +79,29 @@ public class Bamboo implements AutoCloseable {
         dao = dbPool.dao();
 
         textExtractor = new TextExtractor();
+        if (runTasks && config.isTasksEnabled() && config.isTikaWarmUp()) {
+            // only worth starting the child JVMs early when the background tasks will be extracting text
+            textExtractor.warmUp();
+        }
+        if (config.getTextDedupCache() != null) {
+            textExtractor.setDedupCache(new TextDedupCache(config.getTextDedupCache(), config.getTextDedupCacheSize()));
+        }
         this.taskManager = new TaskManager(dao.tasks());
+        taskManager.setPollInterval(config.getTaskPollInterval());
         this.lockManager = new LockManager(dao.lockManager());
 
         // crawl package
         this.agencies = new Agencies(dao.agency());
         this.serieses = new Serieses(dao.serieses());
         this.warcs = new Warcs(dao.warcs(), blobStore, config.getWarcUrl());
+        if (config.getBlobCacheDir() != null && blobStore instanceof HttpBlobStore) {
+            warcs.setBlobCache(new BlobBlockCache(config.getBlobCacheDir(), config.getBlobCacheSize(),
+                    config.getBlobCacheBlockSize(),
+                    (blobId, start, length) -> ((HttpBlob) blobStore.get(blobId)).openStream(start, length)));
+        }
+        if (runTasks && config.getRollupFlushInterval() > 0) {
+            warcs.deferRollups(config.getRollupFlushInterval());
+        }
         this.crawls = new Crawls(dao.crawls(), serieses, warcs, blobStore);
         this.collections = new Collections(dao.collections());
 
@@ -92,14 +109,28 @@ public class Bamboo implements AutoCloseable {
         this.seedlists = new Seedlists(dao.seedlists());
 
         // task package
-        taskManager.register(new Importer(config, crawls, lockManager));
+        Importer importer = new Importer(config, crawls, lockManager);
+        taskManager.register(importer);
         cdxIndexer = new CdxIndexer(warcs, crawls, collections, lockManager, oidc, config.getCdxIndexerThreads());
+        cdxIndexer.setPipelined(config.isCdxPipelined());
+        cdxIndexer.setParallelMinSize(config.getCdxParallelMinSize());
         if (config.getCdxIndexerThreads() <= 0) {
             log.warn("CDX indexing disabled (CDX_INDEXER_THREADS=0)");
         } else {
             taskManager.register(cdxIndexer);
         }
-        taskManager.register(new WatchImporter(collections, crawls, cdxIndexer, warcs, config.getWatches()));
+        cdxIndexer.onQueueLow(() -> taskManager.signal(cdxIndexer));
+        warcs.onStateChange((warcId, stateId) -> {
+            if (stateId == Warc.IMPORTED) taskManager.signal(cdxIndexer);
+        });
+        crawls.onStateChange((crawlId, stateId) -> {
+            if (stateId == Crawl.IMPORTING) taskManager.signal(importer);
+            if (stateId == Crawl.ARCHIVED) taskManager.signal(cdxIndexer); // new crawls arrive with imported warcs
+        });
+        WatchImporter watchImporter = new WatchImporter(collections, crawls, cdxIndexer, warcs, config.getWatches());
+        watchImporter.setDebounce(config.getWatchQuietPeriod(), config.getWatchMaxDelay());
+        watchImporter.setThreads(config.getWatchThreads());
+        taskManager.register(watchImporter);
         if (runTasks && config.isTasksEnabled()) {
             taskManager.start();
         }
@@ -117,6 +148,8 @@ public class Bamboo implements AutoCloseable {
 
     public void close() {
         taskManager.close();
+        cdxIndexer.close();
+        warcs.close();
         dbPool.close();
         if (pandas != null) {
             pandas.close();
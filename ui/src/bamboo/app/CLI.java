@@ -22,6 +22,7 @@ public class CLI {
 //        System.out.println("  recalc-crawl-times               - Fill approx crawl times based on warc filenames (migration hack)");
         System.out.println("  recalculate-warc-stats           - Refresh warc stats tables");
 //        System.out.println("  refresh-warc-stats-fs            - Refresh warc stats tables based on disk");
+        System.out.println("  scrub                            - Verify the SHA-256 digest of every WARC");
         System.out.println("  server                           - Run web server");
         System.out.println("  watch-importer <crawl-id> <path> - Monitor path for new warcs, incrementally index them and then import them to crawl-id");
         System.out.println("  import-pandas-instance  <series-id> <instance-id>");
@@ -31,7 +32,7 @@ public class CLI {
         System.exit(1);
     }
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length == 0) {
             usage();
             return;
@@ -124,6 +125,10 @@ public class CLI {
                     bamboo.pandas.importAllInstanceArtifacts();
                     break;
 
+                case "scrub":
+                    Scrub.scrub(bamboo);
+                    break;
+
 
             /* FIXME: restore these
             case "cdx-indexer":
@@ -138,9 +143,6 @@ public class CLI {
             case "refresh-warc-stats-fs":
                 bamboo.refreshWarcStatsFs();
                 break;
-            case "scrub":
-                Scrub.scrub(bamboo);
-                break;
             */
                 default:
                     usage();
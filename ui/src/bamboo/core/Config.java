@@ -26,6 +26,14 @@ public class Config {
         return Integer.parseInt(value);
     }
 
+    public boolean isCdxPipelined() {
+        return Boolean.parseBoolean(getEnv("CDX_PIPELINED", "false"));
+    }
+
+    public long getCdxParallelMinSize() {
+        return Long.parseLong(getEnv("CDX_PARALLEL_MIN_SIZE", "0"));
+    }
+
     public String getDbUser() {
         return getEnv("BAMBOO_DB_USER", "bamboo");
     }
@@ -74,6 +82,18 @@ public class Config {
         return Collections.unmodifiableList(watches);
     }
 
+    public long getWatchQuietPeriod() {
+        return Long.parseLong(getEnv("WATCH_QUIET_PERIOD", "2000"));
+    }
+
+    public long getWatchMaxDelay() {
+        return Long.parseLong(getEnv("WATCH_MAX_DELAY", "60000"));
+    }
+
+    public int getWatchThreads() {
+        return Integer.parseInt(getEnv("WATCH_THREADS", "4"));
+    }
+
     public Path getPandasWarcDir() {
         String value = getEnv("PANDAS_WARC_DIR", null);
         if (value == null) {
@@ -82,6 +102,45 @@ public class Config {
         return Paths.get(value);
     }
 
+    public long getTaskPollInterval() {
+        return Long.parseLong(getEnv("TASK_POLL_INTERVAL", "60000"));
+    }
+
+    public long getRollupFlushInterval() {
+        return Long.parseLong(getEnv("ROLLUP_FLUSH_INTERVAL", "1000"));
+    }
+
+    public int getScrubThreads() {
+        return Integer.parseInt(getEnv("SCRUB_THREADS", "4"));
+    }
+
+    public Path getScrubProgressFile() {
+        String value = getEnv("SCRUB_PROGRESS", null);
+        return value == null ? null : Paths.get(value);
+    }
+
+    public Path getTextDedupCache() {
+        String value = getEnv("TEXT_DEDUP_CACHE", null);
+        return value == null ? null : Paths.get(value);
+    }
+
+    public long getTextDedupCacheSize() {
+        return Long.parseLong(getEnv("TEXT_DEDUP_CACHE_SIZE", String.valueOf(10L * 1024 * 1024 * 1024)));
+    }
+
+    public Path getBlobCacheDir() {
+        String value = getEnv("BLOB_CACHE_DIR", null);
+        return value == null ? null : Paths.get(value);
+    }
+
+    public long getBlobCacheSize() {
+        return Long.parseLong(getEnv("BLOB_CACHE_SIZE", String.valueOf(50L * 1024 * 1024 * 1024)));
+    }
+
+    public int getBlobCacheBlockSize() {
+        return Integer.parseInt(getEnv("BLOB_CACHE_BLOCK_SIZE", String.valueOf(1024 * 1024)));
+    }
+
     public String getWarcUrl() {
         return getEnv("WARC_URL", null);
     }
@@ -102,6 +161,10 @@ public class Config {
         return Boolean.parseBoolean(getEnv("TASKS_ENABLED", "true"));
     }
 
+    public boolean isTikaWarmUp() {
+        return Boolean.parseBoolean(getEnv("TIKA_WARM_UP", "true"));
+    }
+
     public static class Watch {
         public final long crawlId;
         public final Path dir;
@@ -0,0 +1,231 @@
+package bamboo.crawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Read-through cache of remote blob ranges on local disk. Blobs are divided into fixed size aligned blocks which are
+ * fetched whole on first use, so repeated small range reads (e.g. replay) are served locally. Concurrent misses for
+ * the same block share a single fetch. Least recently used blocks are deleted once the capacity is exceeded.
+ */
+public class BlobBlockCache {
+    private static final Logger log = LoggerFactory.getLogger(BlobBlockCache.class);
+
+    public interface RangeSource {
+        InputStream open(long blobId, long start, long length) throws IOException;
+    }
+
+    private final Path root;
+    private final long capacity;
+    private final int blockSize;
+    private final RangeSource source;
+    private final LinkedHashMap<String, Long> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> fetches = new ConcurrentHashMap<>();
+    private long totalSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BlobBlockCache(Path root, long capacity, int blockSize, RangeSource source) throws IOException {
+        this.root = root;
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+        this.source = source;
+        Files.createDirectories(root);
+        load();
+        log.info("BlobBlockCache at {} with {} blocks ({} of {} bytes)", root, blocks.size(), totalSize, capacity);
+    }
+
+    private void load() throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Iterator<Path> it = paths.iterator(); it.hasNext(); ) {
+                Path path = it.next();
+                if (!Files.isRegularFile(path)) continue;
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                } else {
+                    found.add(path);
+                }
+            }
+        }
+        Map<Path, FileTime> modified = new HashMap<>();
+        for (Path path : found) {
+            modified.put(path, Files.getLastModifiedTime(path));
+        }
+        found.sort(Comparator.comparing(modified::get));
+        for (Path path : found) {
+            long size = Files.size(path);
+            blocks.put(path.getFileName().toString(), size);
+            totalSize += size;
+        }
+        evict();
+    }
+
+    private static String key(long blobId, long blockIndex) {
+        return blobId + "-" + blockIndex;
+    }
+
+    private Path blockPath(long blobId, String key) {
+        return root.resolve(String.format("%02x", blobId & 0xff)).resolve(key);
+    }
+
+    /**
+     * Copies a range of a blob to outputStream, fetching any blocks not yet cached.
+     *
+     * @param blobSize the total size of the blob, so the final block can be fetched without overrunning
+     */
+    public void copy(long blobId, long blobSize, OutputStream outputStream, long start, long length) throws IOException {
+        long end = Math.min(start + length, blobSize);
+        byte[] buf = new byte[16384];
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        long position = start;
+        while (position < end) {
+            long blockIndex = position / blockSize;
+            long blockStart = blockIndex * blockSize;
+            long blockLength = Math.min(blockSize, blobSize - blockStart);
+            long blockEnd = Math.min(end, blockStart + blockLength);
+            try (FileChannel channel = openBlock(blobId, blockIndex, blockStart, blockLength)) {
+                while (position < blockEnd) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buf.length, blockEnd - position));
+                    int n = channel.read(buffer, position - blockStart);
+                    if (n < 0) throw new IOException("cached block " + key(blobId, blockIndex) + " truncated");
+                    outputStream.write(buf, 0, n);
+                    position += n;
+                }
+            }
+        }
+    }
+
+    private FileChannel openBlock(long blobId, long blockIndex, long blockStart, long blockLength) throws IOException {
+        String key = key(blobId, blockIndex);
+        Path path = blockPath(blobId, key);
+        boolean cached;
+        synchronized (this) {
+            cached = blocks.get(key) != null; // get, not containsKey, so the access order is updated
+        }
+        if (cached) {
+            try {
+                FileChannel channel = FileChannel.open(path);
+                hits.increment();
+                return channel;
+            } catch (NoSuchFileException e) {
+                // evicted just now, fetch it again
+                remove(key);
+            }
+        }
+        misses.increment();
+        return FileChannel.open(fetch(blobId, key, path, blockStart, blockLength));
+    }
+
+    private Path fetch(long blobId, String key, Path path, long blockStart, long blockLength) throws IOException {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> existing = fetches.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            Path tmp = path.resolveSibling(key + ".tmp");
+            Files.createDirectories(path.getParent());
+            try (InputStream in = source.open(blobId, blockStart, blockLength)) {
+                long copied = Files.copy(in, tmp, REPLACE_EXISTING);
+                if (copied != blockLength) {
+                    throw new IOException("short read fetching block " + key + ": expected " + blockLength +
+                            " bytes but got " + copied);
+                }
+                Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            synchronized (this) {
+                Long previous = blocks.put(key, blockLength);
+                totalSize += blockLength - (previous == null ? 0 : previous);
+                evict();
+            }
+            future.complete(path);
+            return path;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            fetches.remove(key);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw new IOException(e.getCause().getMessage(), e.getCause());
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = blocks.remove(key);
+        if (size != null) totalSize -= size;
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = blocks.entrySet().iterator();
+        while (totalSize > capacity && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            totalSize -= entry.getValue();
+            String key = entry.getKey();
+            long blobId = Long.parseLong(key.substring(0, key.indexOf('-')));
+            try {
+                // readers that already have the file open can finish reading it
+                Files.deleteIfExists(blockPath(blobId, key));
+            } catch (IOException e) {
+                log.warn("Unable to evict cached block {}", key, e);
+            }
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
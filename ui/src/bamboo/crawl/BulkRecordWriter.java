@@ -0,0 +1,224 @@
+package bamboo.crawl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Writes a multipart response containing many WARC records or ranges in the order they were requested.
+ * <p>
+ * Records are grouped by WARC and sorted by offset, and records from the same remote WARC that lie close together are
+ * fetched as one span with a single read, however they're interleaved in the request. Spans are read ahead of the
+ * output concurrently in the order they're first needed, but only while at most maxReads of them are held and the
+ * held spans total at most maxBufferedBytes. A span is held until its last record has been written. If a record's
+ * span can't be read within the limits when its turn comes, the record is read on its own instead. So the memory a
+ * request can pin and the reads it can queue on the shared executor are bounded however many records it asks for.
+ * Records in local WARCs, and records bigger than maxSpanBytes, aren't buffered but copied straight to the output
+ * when their turn comes.
+ */
+class BulkRecordWriter {
+    interface Source {
+        boolean isRemote(Warc warc);
+
+        CompletableFuture<byte[]> readAsync(Warc warc, long start, int length);
+
+        void copy(Warc warc, OutputStream out, long start, long length) throws IOException;
+    }
+
+    private final Source source;
+    private final long coalesceGap;
+    private final long maxSpanBytes;
+    private final long maxBufferedBytes;
+    private final int maxReads;
+    private final List<Record> records = new ArrayList<>();
+    private final List<Span> spans = new ArrayList<>();
+    private int nextRead;
+    private int heldSpans;
+    private long bufferedBytes;
+    private long peakBufferedBytes;
+
+    private static class Record {
+        final Warc warc;
+        final WarcsController.Range range;
+        Span span;
+
+        Record(Warc warc, WarcsController.Range range) {
+            this.warc = warc;
+            this.range = range;
+        }
+    }
+
+    private static class Span {
+        final Warc warc;
+        final long start;
+        long end;
+        int firstUse = Integer.MAX_VALUE;
+        int lastUse = -1;
+        CompletableFuture<byte[]> future;
+
+        Span(Warc warc, WarcsController.Range range) {
+            this.warc = warc;
+            this.start = range.start;
+            this.end = range.end();
+        }
+
+        int length() {
+            return (int) (end - start);
+        }
+    }
+
+    static Source source(Warcs warcs) {
+        return new Source() {
+            public boolean isRemote(Warc warc) {
+                return warcs.isRemote(warc);
+            }
+
+            public CompletableFuture<byte[]> readAsync(Warc warc, long start, int length) {
+                return warcs.readAsync(warc, start, length);
+            }
+
+            public void copy(Warc warc, OutputStream out, long start, long length) throws IOException {
+                warcs.copy(warc, out, start, length);
+            }
+        };
+    }
+
+    BulkRecordWriter(Source source, long coalesceGap, long maxSpanBytes, long maxBufferedBytes, int maxReads) {
+        this.source = source;
+        this.coalesceGap = coalesceGap;
+        this.maxSpanBytes = maxSpanBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxReads = maxReads;
+    }
+
+    /**
+     * Adds the next record to write.
+     */
+    void add(Warc warc, WarcsController.Range range) {
+        records.add(new Record(warc, range));
+    }
+
+    /**
+     * Merges the records that are worth buffering into spans, working through them by WARC and offset.
+     */
+    private void planSpans() {
+        Map<Long, Boolean> remote = new HashMap<>();
+        List<Integer> sorted = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            if (record.range.length <= maxSpanBytes &&
+                    remote.computeIfAbsent(record.warc.getId(), id -> source.isRemote(record.warc))) {
+                sorted.add(i);
+            }
+        }
+        sorted.sort(Comparator.<Integer>comparingLong(i -> records.get(i).warc.getId())
+                .thenComparingLong(i -> records.get(i).range.start));
+        Span span = null;
+        for (int i : sorted) {
+            Record record = records.get(i);
+            if (span != null && span.warc.getId() == record.warc.getId() &&
+                    record.range.start <= span.end + coalesceGap &&
+                    Math.max(span.end, record.range.end()) - span.start <= maxSpanBytes) {
+                span.end = Math.max(span.end, record.range.end());
+            } else {
+                span = new Span(record.warc, record.range);
+                spans.add(span);
+            }
+            record.span = span;
+            span.firstUse = Math.min(span.firstUse, i);
+            span.lastUse = Math.max(span.lastUse, i);
+        }
+        spans.sort(Comparator.comparingInt(s -> s.firstUse));
+    }
+
+    interface PartHeaders {
+        String of(Warc warc, WarcsController.Range range);
+    }
+
+    /**
+     * Writes a multipart body with Content-Location and Content-Range headers on each part.
+     */
+    void writeTo(OutputStream out, String boundary) throws IOException {
+        writeTo(out, boundary, (warc, range) -> "Content-Type: application/warc\r\nContent-Location: /warcs/" +
+                warc.getFilename() + "\r\nContent-Range: bytes " + range + "\r\n");
+    }
+
+    void writeTo(OutputStream out, String boundary, PartHeaders partHeaders) throws IOException {
+        planSpans();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                WarcsController.Range range = record.range;
+                Span span = record.span;
+                readAhead(i);
+                out.write(("--" + boundary + "\r\n" + partHeaders.of(record.warc, range) + "\r\n")
+                        .getBytes(US_ASCII));
+                if (span != null && span.future != null) {
+                    out.write(join(span.future), (int) (range.start - span.start), (int) range.length);
+                } else {
+                    source.copy(record.warc, out, range.start, range.length);
+                }
+                out.write("\r\n".getBytes(US_ASCII));
+                if (span != null && span.lastUse == i && span.future != null) {
+                    span.future = null;
+                    bufferedBytes -= span.length();
+                    heldSpans--;
+                }
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes(US_ASCII));
+        } finally {
+            for (Span span : spans) {
+                if (span.future != null) span.future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Starts reading spans in the order they're first needed while the limits allow. Spans whose records have all
+     * been written already are skipped. A span is always started when nothing else is held, even if it alone is over
+     * the limits.
+     */
+    private void readAhead(int current) {
+        while (nextRead < spans.size()) {
+            Span span = spans.get(nextRead);
+            if (span.lastUse < current) {
+                nextRead++;
+                continue;
+            }
+            if (heldSpans > 0 && (heldSpans >= maxReads || bufferedBytes + span.length() > maxBufferedBytes)) {
+                break;
+            }
+            span.future = source.readAsync(span.warc, span.start, span.length());
+            heldSpans++;
+            bufferedBytes += span.length();
+            peakBufferedBytes = Math.max(peakBufferedBytes, bufferedBytes);
+            nextRead++;
+        }
+    }
+
+    /**
+     * The most bytes that were buffered or being read at once.
+     */
+    long getPeakBufferedBytes() {
+        return peakBufferedBytes;
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
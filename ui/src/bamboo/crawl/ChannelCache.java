@@ -0,0 +1,157 @@
+package bamboo.crawl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps recently used WARC channels open so that replay, which makes many small range requests against the same
+ * few WARCs, doesn't pay for an open and close on every request.
+ * <p>
+ * Channels are reference counted: an evicted channel is only closed once every lease on it has been released. A
+ * cached channel that has been closed anyway is dropped and reopened by the next acquire.
+ * Only FileChannels are shared, and callers must use positional reads on them since other threads may be reading
+ * too. Other channels (e.g. from a blob store) can only be read by seeking, so they are opened for a single lease
+ * and closed when it's released rather than being cached.
+ */
+class ChannelCache implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ChannelCache.class);
+
+    interface Opener {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    private final Cache<Long, Entry> cache;
+
+    ChannelCache(long maxSize, Duration idleTimeout) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(idleTimeout)
+                .removalListener((RemovalNotification<Long, Entry> notification) -> notification.getValue().release())
+                .build();
+    }
+
+    /**
+     * Returns a lease on the open channel for a WARC, opening it if necessary. The lease must be closed when the
+     * caller has finished reading.
+     */
+    Lease acquire(long warcId, Opener opener) throws IOException {
+        while (true) {
+            Entry entry;
+            try {
+                entry = cache.get(warcId, () -> {
+                    SeekableByteChannel channel = opener.open();
+                    if (!(channel instanceof FileChannel)) {
+                        throw new Unshareable(channel);
+                    }
+                    return new Entry(channel);
+                });
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                if (e.getCause() instanceof Unshareable) {
+                    // not cached so the lease holds the only reference
+                    return new Lease(new Entry(((Unshareable) e.getCause()).channel));
+                }
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            if (entry.retain()) {
+                if (entry.channel.isOpen()) {
+                    return new Lease(entry);
+                }
+                // closed under us, e.g. by a reader being interrupted (ClosedByInterruptException), so replace it
+                entry.release();
+                cache.asMap().remove(warcId, entry);
+            }
+            // lost a race with eviction, the entry is closing so try again
+        }
+    }
+
+    void invalidate(long warcId) {
+        cache.invalidate(warcId);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /**
+     * Thrown from the cache loader to hand back a channel that mustn't be cached.
+     */
+    private static class Unshareable extends RuntimeException {
+        final SeekableByteChannel channel;
+
+        Unshareable(SeekableByteChannel channel) {
+            super(null, null, false, false);
+            this.channel = channel;
+        }
+    }
+
+    private static class Entry {
+        final SeekableByteChannel channel;
+        // starts at one for the cache's own reference
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Entry(SeekableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean retain() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Error closing cached channel", e);
+                }
+            }
+        }
+    }
+
+    static class Lease implements Closeable {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        SeekableByteChannel channel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+    }
+}
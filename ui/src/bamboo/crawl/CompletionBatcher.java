@@ -0,0 +1,263 @@
+package bamboo.crawl;
+
+import bamboo.core.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind batching of the database updates made when a WARC finishes CDX indexing. Completions from many WARCs
+ * are applied in a single transaction with the crawl, series and collection rollups summed in memory first, so
+ * indexer threads don't each lock the same few crawl and series rows. A batch is flushed once it reaches
+ * maxBatchSize completions, maxDelayMillis after its first completion or when {@link #flush()} is called.
+ */
+class CompletionBatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CompletionBatcher.class);
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final WarcsDAO dao;
+    private final Consumer<Completion> onCommit;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Warcs-completions");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private List<Completion> batch = new ArrayList<>();
+    private boolean flushScheduled;
+
+    static class Completion {
+        final long warcId;
+        final RecordStats stats;
+        final Set<Long> collectionIds;
+        final boolean deleteMode;
+        final Long indexedOffset;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Completion(long warcId, RecordStats stats, Set<Long> collectionIds, boolean deleteMode, Long indexedOffset) {
+            this.warcId = warcId;
+            this.stats = stats;
+            this.collectionIds = collectionIds;
+            this.deleteMode = deleteMode;
+            this.indexedOffset = indexedOffset;
+        }
+
+        int stateId() {
+            return deleteMode ? Warc.DELETED : Warc.CDX_INDEXED;
+        }
+    }
+
+    /**
+     * @param onCommit called for each completion after its transaction commits
+     */
+    CompletionBatcher(WarcsDAO dao, Consumer<Completion> onCommit, int maxBatchSize, long maxDelayMillis) {
+        this.dao = dao;
+        this.onCommit = onCommit;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    synchronized CompletableFuture<Void> add(Completion completion) {
+        batch.add(completion);
+        try {
+            if (batch.size() >= maxBatchSize) {
+                executor.execute(this::flushBatch);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                executor.schedule(this::flushBatch, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            batch.remove(completion);
+            completion.future.completeExceptionally(e);
+        }
+        return completion.future;
+    }
+
+    /**
+     * Starts flushing the pending batch now rather than waiting for it to fill.
+     */
+    void flush() {
+        try {
+            executor.execute(this::flushBatch);
+        } catch (RejectedExecutionException e) {
+            // closed, the batch was flushed on close
+        }
+    }
+
+    private void flushBatch() {
+        List<Completion> completions;
+        synchronized (this) {
+            flushScheduled = false;
+            if (batch.isEmpty()) return;
+            completions = batch;
+            batch = new ArrayList<>();
+        }
+        if (!commit(completions) && completions.size() > 1) {
+            // isolate whichever completion is failing so the rest can still be committed
+            for (Completion completion : completions) {
+                commit(List.of(completion));
+            }
+        }
+    }
+
+    private boolean commit(List<Completion> completions) {
+        // only the last completion for a warc matters as stats and offsets are totals, not increments
+        Map<Long, Completion> latest = new LinkedHashMap<>();
+        for (Completion completion : completions) {
+            latest.put(completion.warcId, completion);
+        }
+        List<Completion> applied;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                applied = dao.inTransaction(tx -> apply(tx, latest));
+                break;
+            } catch (RuntimeException e) {
+                if (attempt < MAX_ATTEMPTS) {
+                    log.warn("Committing {} indexing completions failed, retrying", latest.size(), e);
+                    continue;
+                }
+                if (completions.size() == 1) {
+                    log.error("Committing indexing completion for warc {} failed", completions.get(0).warcId, e);
+                    completions.get(0).future.completeExceptionally(e);
+                }
+                return false;
+            }
+        }
+        for (Completion completion : applied) {
+            try {
+                onCommit.accept(completion);
+            } catch (RuntimeException e) {
+                log.error("Error notifying completion of warc {}", completion.warcId, e);
+            }
+        }
+        for (Completion completion : completions) {
+            completion.future.complete(null); // no-op for those already failed as not found
+        }
+        return true;
+    }
+
+    private static class Rollup {
+        long records;
+        long recordBytes;
+        Date startTime;
+        Date endTime;
+
+        void add(long records, long recordBytes) {
+            this.records += records;
+            this.recordBytes += recordBytes;
+        }
+
+        void include(Date start, Date end) {
+            if (start != null && (startTime == null || start.before(startTime))) startTime = start;
+            if (end != null && (endTime == null || end.after(endTime))) endTime = end;
+        }
+    }
+
+    /**
+     * Applies the completions within a transaction, removing any for warcs that no longer exist.
+     */
+    private List<Completion> apply(WarcsDAO tx, Map<Long, Completion> completions) {
+        Map<Long, Warc> prevs = new TreeMap<>();
+        for (Warc warc : tx.selectWarcsForUpdate(new ArrayList<>(new TreeMap<>(completions).keySet()))) {
+            prevs.put(warc.getId(), warc);
+        }
+        List<Completion> applied = new ArrayList<>();
+        for (Completion completion : completions.values()) {
+            if (prevs.containsKey(completion.warcId)) {
+                applied.add(completion);
+            } else {
+                completion.future.completeExceptionally(new NotFoundException("warc", completion.warcId));
+            }
+        }
+
+        // warc stats, summing the differences from their previous stats into per-crawl rollups
+        Map<Long, Rollup> crawlRollups = new TreeMap<>();
+        for (Completion completion : applied) {
+            Warc prev = prevs.get(completion.warcId);
+            Rollup rollup = crawlRollups.computeIfAbsent(prev.getCrawlId(), id -> new Rollup());
+            rollup.add(-prev.getRecords(), -prev.getRecordBytes());
+            if (completion.deleteMode) {
+                tx.clearWarcRecordCounts(completion.warcId);
+            } else {
+                RecordStats stats = completion.stats;
+                rollup.add(stats.getRecords(), stats.getRecordBytes());
+                rollup.include(stats.getStartTime(), stats.getEndTime());
+                tx.updateWarcRecordStats(completion.warcId, stats);
+                tx.updateWarcIndexedOffset(completion.warcId, completion.indexedOffset);
+            }
+        }
+        for (Map.Entry<Long, Rollup> entry : crawlRollups.entrySet()) {
+            Rollup rollup = entry.getValue();
+            tx.incrementRecordStatsForCrawl(entry.getKey(), rollup.records, rollup.recordBytes,
+                    rollup.startTime, rollup.endTime);
+            tx.incrementRecordStatsForSeriesByCrawlId(entry.getKey(), rollup.records, rollup.recordBytes);
+        }
+
+        // collection membership and rollups
+        Map<Long, Rollup> collectionRollups = new TreeMap<>();
+        List<Long> warcIds = new ArrayList<>(prevs.keySet());
+        for (CollectionWarc old : tx.selectCollectionWarcsForUpdate(warcIds)) {
+            Completion completion = completions.get(old.warcId);
+            if (completion == null || !completion.collectionIds.contains(old.collectionId)) continue;
+            collectionRollups.computeIfAbsent(old.collectionId, id -> new Rollup()).add(-old.records, -old.recordBytes);
+            tx.deleteCollectionWarc(old.collectionId, old.warcId);
+        }
+        for (Completion completion : applied) {
+            if (completion.deleteMode) continue;
+            RecordStats stats = completion.stats;
+            for (long collectionId : completion.collectionIds) {
+                tx.insertCollectionWarc(collectionId, completion.warcId, stats.getRecords(), stats.getRecordBytes());
+                collectionRollups.computeIfAbsent(collectionId, id -> new Rollup())
+                        .add(stats.getRecords(), stats.getRecordBytes());
+            }
+        }
+        for (Map.Entry<Long, Rollup> entry : collectionRollups.entrySet()) {
+            tx.incrementRecordStatsForCollection(entry.getKey(), entry.getValue().records,
+                    entry.getValue().recordBytes);
+        }
+
+        // state transitions
+        for (Completion completion : applied) {
+            Warc prev = prevs.get(completion.warcId);
+            int stateId = completion.stateId();
+            if (prev.getStateId() != stateId) {
+                tx.updateWarcStateWithoutHistory(completion.warcId, stateId);
+            }
+            WarcsDAO.WarcHistoryRow latestHistory = tx.selectLatestHistoryForUpdate(completion.warcId);
+            if (latestHistory != null && latestHistory.stateId == stateId) {
+                tx.touchWarcHistory(latestHistory.id);
+            } else {
+                tx.insertWarcHistory(completion.warcId, stateId);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Commits any pending completions and stops the flush thread.
+     */
+    @Override
+    public void close() {
+        flush();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,6 +2,8 @@ package bamboo.crawl;
 
 import bamboo.AuthHelper;
 import bamboo.core.NotFoundException;
+import bamboo.util.CountCache;
+import bamboo.util.Cursor;
 import bamboo.util.Pager;
 import doss.*;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
@@ -19,6 +21,7 @@ import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.*;
@@ -32,6 +35,7 @@ public class Crawls {
     private final Serieses serieses;
     private final Warcs warcs;
     private final BlobStore blobStore;
+    private final CountCache countCache = new CountCache(Duration.ofMinutes(1));
 
     private Set<CrawlStateListener> stateListeners = new HashSet<>();
 
@@ -128,6 +132,9 @@ public class Crawls {
                 }
             }
             tx.commit();
+            for (Warc warc : warcs) {
+                this.warcs.notifyStateChanged(warc.getId(), warc.getStateId());
+            }
             return warcs;
         }
     }
@@ -250,13 +257,29 @@ public class Crawls {
             }
     }
 
-    public Pager<CrawlAndSeriesName> pager(long page) {
-            return new Pager<>(page, dao.countCrawls(), dao::paginateCrawlsWithSeriesName);
-    }
-
-    public Pager<Crawl> paginateWithSeriesId(long page, long seriesId) {
-        return new Pager<>(page, dao.countCrawlsWithSeriesId(seriesId),
-                (limit, offset) -> dao.paginateCrawlsWithSeriesId(seriesId, limit, offset));
+    /**
+     * Keyset pagination of all crawls, most recently finished first. The total may be up to a minute old.
+     */
+    public Pager<CrawlAndSeriesName> pager(String cursor) {
+        long total = countCache.get("all", dao::countCrawls);
+        return new Pager<>(cursor, 100, total, (after, limit) -> after == null ?
+                        dao.paginateCrawlsWithSeriesName(limit, 0) :
+                        dao.paginateCrawlsWithSeriesNameAfter(after.getTimestamp(0), after.getTimestamp(0) != null,
+                                after.getLong(1), limit),
+                crawl -> Cursor.of(crawl.getEndTime(), crawl.getId()));
+    }
+
+    public Pager<Crawl> paginateWithSeriesId(String cursor, long seriesId) {
+        return paginateWithSeriesId(cursor, seriesId, 100);
+    }
+
+    public Pager<Crawl> paginateWithSeriesId(String cursor, long seriesId, long pageSize) {
+        long total = countCache.get("series " + seriesId, () -> dao.countCrawlsWithSeriesId(seriesId));
+        return new Pager<>(cursor, pageSize, total, (after, limit) -> after == null ?
+                        dao.paginateCrawlsWithSeriesId(seriesId, limit, 0) :
+                        dao.paginateCrawlsWithSeriesIdAfter(seriesId, after.getTimestamp(0),
+                                after.getTimestamp(0) != null, after.getLong(1), limit),
+                crawl -> Cursor.of(crawl.getEndTime(), crawl.getId()));
     }
 
     public List<Crawl> listBySeriesId(long seriesId) {
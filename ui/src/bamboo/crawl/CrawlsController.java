@@ -44,8 +44,8 @@ public class CrawlsController {
 
     @GetMapping("/crawls")
     @PreAuthorize("hasRole('PANADMIN')")
-    String index(@RequestParam(value = "page", defaultValue = "1") long page, Model model) {
-        Pager<CrawlAndSeriesName> pager = bamboo.crawls.pager(page);
+    String index(@RequestParam(value = "after", required = false) String after, Model model) {
+        Pager<CrawlAndSeriesName> pager = bamboo.crawls.pager(after);
         model.addAttribute("crawls", pager.items);
         model.addAttribute("crawlsPager", pager);
         return "crawls/index";
@@ -107,15 +107,22 @@ public class CrawlsController {
     @GetMapping("/crawls/{id}/warcs")
     @PreAuthorize("hasPermission(#id, 'Crawl', 'view')")
     String listWarcs(@PathVariable("id") long id,
-                     @RequestParam(value = "page", defaultValue = "1") long page,
+                     @RequestParam(value = "page", required = false) Long page,
+                     @RequestParam(value = "after", required = false) String after,
                      @RequestParam(value = "format", defaultValue = "html") String format,
                      Model model, HttpServletResponse response) throws IOException {
         Crawl crawl = bamboo.crawls.get(id);
-        Pager<Warc> pager = bamboo.warcs.paginateWithCrawlId(page, id);
+        // numbered pages are still accepted for existing scripts but get slow deep into large crawls
+        Pager<Warc> pager = page != null ? bamboo.warcs.paginateWithCrawlId(page, id, 100) :
+                bamboo.warcs.paginateWithCrawlIdAfter(after, id, 100);
 
         if ("ids".equals(format)) {
             response.setContentType("text/plain");
             response.setHeader("Total", String.valueOf(pager.totalItems));
+            if (pager.nextCursor != null) {
+                response.setHeader("Link", "<" + ServletUriComponentsBuilder.fromCurrentRequest()
+                        .replaceQueryParam("after", pager.nextCursor).toUriString() + ">; rel=\"next\"");
+            }
             try (Writer w = new OutputStreamWriter(response.getOutputStream())) {
                 for (Warc warc: pager.items) {
                     w.write(warc.getId() + "\n");
@@ -210,10 +217,10 @@ public class CrawlsController {
     @GetMapping("/crawls/{id}/warcs/corrupt")
     @PreAuthorize("hasPermission(#id, 'Crawl', 'view')")
     String listCorruptWarcs(@PathVariable("id") long id,
-                            @RequestParam(value = "page", defaultValue = "1") long page,
+                            @RequestParam(value = "after", required = false) String after,
                             Model model) {
         Crawl crawl = bamboo.crawls.get(id);
-        Pager<Warc> pager = bamboo.warcs.paginateWithCrawlIdAndState(page, id, Warc.CDX_ERROR);
+        Pager<Warc> pager = bamboo.warcs.paginateWithCrawlIdAndStateAfter(after, id, Warc.CDX_ERROR);
         model.addAttribute("titlePrefix", "Corrupt");
         model.addAttribute("crawl", crawl);
         model.addAttribute("warcs", pager.items);
@@ -16,6 +16,7 @@ import org.jdbi.v3.sqlobject.transaction.Transactional;
 import java.nio.file.Path;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.*;
 
 @RegisterRowMapper(CrawlsDAO.CrawlMapper.class)
@@ -101,12 +102,25 @@ public interface CrawlsDAO extends Transactional<CrawlsDAO> {
     @SqlQuery("SELECT crawl.*, crawl_series.name FROM crawl LEFT JOIN crawl_series ON crawl.crawl_series_id = crawl_series.id ORDER BY crawl.end_time DESC, crawl.id DESC LIMIT :limit OFFSET :offset")
     List<CrawlAndSeriesName> paginateCrawlsWithSeriesName(@Bind("limit") long limit, @Bind("offset") long offset);
 
+    /*
+     * Keyset pagination in ORDER BY end_time DESC, id DESC order, where crawls with a null end_time sort last. When
+     * the previous page ended on a null end_time only null end_times remain.
+     */
+    String CRAWLS_AFTER = "(crawl.end_time < :endTime OR (crawl.end_time = :endTime AND crawl.id < :id) " +
+            "OR (crawl.end_time IS NULL AND (:hasEndTime OR crawl.id < :id)))";
+
+    @SqlQuery("SELECT crawl.*, crawl_series.name FROM crawl LEFT JOIN crawl_series ON crawl.crawl_series_id = crawl_series.id WHERE " + CRAWLS_AFTER + " ORDER BY crawl.end_time DESC, crawl.id DESC LIMIT :limit")
+    List<CrawlAndSeriesName> paginateCrawlsWithSeriesNameAfter(@Bind("endTime") Timestamp endTime, @Bind("hasEndTime") boolean hasEndTime, @Bind("id") long id, @Bind("limit") long limit);
+
     @SqlQuery("SELECT COUNT(*) FROM crawl")
     long countCrawls();
 
     @SqlQuery("SELECT * FROM crawl LEFT JOIN crawl_series ON crawl.crawl_series_id = crawl_series.id WHERE crawl_series_id = :seriesId ORDER BY crawl.end_time DESC, crawl.id DESC LIMIT :limit OFFSET :offset")
     List<Crawl> paginateCrawlsWithSeriesId(@Bind("seriesId") long seriesId, @Bind("limit") long limit, @Bind("offset") long offset);
 
+    @SqlQuery("SELECT * FROM crawl LEFT JOIN crawl_series ON crawl.crawl_series_id = crawl_series.id WHERE crawl_series_id = :seriesId AND " + CRAWLS_AFTER + " ORDER BY crawl.end_time DESC, crawl.id DESC LIMIT :limit")
+    List<Crawl> paginateCrawlsWithSeriesIdAfter(@Bind("seriesId") long seriesId, @Bind("endTime") Timestamp endTime, @Bind("hasEndTime") boolean hasEndTime, @Bind("id") long id, @Bind("limit") long limit);
+
     @SqlQuery("SELECT COUNT(*) FROM crawl WHERE crawl_series_id = :seriesId")
     long countCrawlsWithSeriesId(@Bind("seriesId") long seriesId);
 
@@ -13,6 +13,19 @@ public class RecordStats {
     private Date endTime = null;
     private String software;
 
+    /**
+     * Returns the stats already recorded for a WARC, so that stats for newly appended records can be merged in.
+     */
+    public static RecordStats of(Warc warc) {
+        RecordStats stats = new RecordStats();
+        stats.records = warc.getRecords();
+        stats.recordBytes = warc.getRecordBytes();
+        stats.startTime = warc.getStartTime();
+        stats.endTime = warc.getEndTime();
+        stats.software = warc.getSoftware();
+        return stats;
+    }
+
     public void update(long recordLength, Date time) {
         records += 1;
         recordBytes += recordLength;
@@ -28,6 +41,23 @@ public class RecordStats {
         }
     }
 
+    /**
+     * Combines the stats for another part of the same file into these ones. Software from the earliest part wins.
+     */
+    public void merge(RecordStats other) {
+        records += other.records;
+        recordBytes += other.recordBytes;
+        if (other.startTime != null && (startTime == null || other.startTime.before(startTime))) {
+            startTime = other.startTime;
+        }
+        if (other.endTime != null && (endTime == null || other.endTime.after(endTime))) {
+            endTime = other.endTime;
+        }
+        if (software == null) {
+            software = other.software;
+        }
+    }
+
     public long getRecords() {
         return records;
     }
@@ -0,0 +1,227 @@
+package bamboo.crawl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Accumulates changes to the crawl and series warc_files and warc_size rollups in memory and periodically writes
+ * them as a single delta per crawl, so concurrent WARC writes don't all queue on the same few crawl and series rows.
+ * <p>
+ * A transaction's increments are only added to the in-memory deltas once it has committed, so a flush never writes
+ * an increment that could still roll back. Each flush also advances a checkpoint, below which every warc_history row
+ * written alongside an increment has had that increment flushed. A transaction's history ids are known to be greater
+ * than the largest id seen when it started, which bounds the checkpoint while it is in progress. After a crash,
+ * {@link #recover()} recalculates the rollups of any crawl with history past the checkpoint (or with open WARCs, as
+ * size updates don't write history) from its WARCs. Only a single process should defer rollups against a database;
+ * {@link Crawls#recalculateWarcStats()} remains the way to reconcile everything else.
+ * <p>
+ * Until {@link #start(long)} is called increments are written through within the caller's transaction.
+ */
+class RollupCounters implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RollupCounters.class);
+
+    private final WarcsDAO dao;
+    private final Map<Long, Delta> crawlDeltas = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Warcs-rollups");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean deferred;
+    private long checkpoint = -1;
+
+    // guarded by pendingLock
+    private final Object pendingLock = new Object();
+    private final Set<Increments> pending = new HashSet<>();
+    private long maxHistoryId;
+
+    private static class Delta {
+        final LongAdder files = new LongAdder();
+        final LongAdder size = new LongAdder();
+    }
+
+    /**
+     * The rollup increments and history rows written within one transaction. Deferred increments are held here until
+     * the transaction commits.
+     */
+    class Increments {
+        private final WarcsDAO tx;
+        private final List<long[]> increments = new ArrayList<>();
+        private long floor;
+        private long maxHistoryId;
+
+        private Increments(WarcsDAO tx) {
+            this.tx = tx;
+        }
+
+        void add(long crawlId, int files, long size) {
+            if (deferred) {
+                increments.add(new long[]{crawlId, files, size});
+            } else {
+                tx.incrementWarcStatsForCrawlInternal(crawlId, files, size);
+                tx.incrementWarcStatsForCrawlSeriesByCrawlId(crawlId, files, size);
+            }
+        }
+
+        /**
+         * Inserts a warc_history row, noting its id so the checkpoint can pass it once this transaction's increments
+         * have been flushed.
+         */
+        void insertHistory(long warcId, int stateId) {
+            maxHistoryId = Math.max(maxHistoryId, tx.insertWarcHistory(warcId, stateId));
+        }
+    }
+
+    RollupCounters(WarcsDAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Runs a transaction that may increment rollups and insert history, via the Increments passed to the body.
+     */
+    <T> T inTransaction(BiFunction<WarcsDAO, Increments, T> body) {
+        List<Increments> started = new ArrayList<>(1);
+        try {
+            T result = dao.inTransaction(tx -> {
+                Increments increments = new Increments(tx);
+                synchronized (pendingLock) {
+                    // any history this transaction inserts will have a greater id than those seen so far
+                    increments.floor = maxHistoryId;
+                    pending.add(increments);
+                }
+                started.add(increments);
+                return body.apply(tx, increments);
+            });
+            started.forEach(this::committed);
+            return result;
+        } finally {
+            synchronized (pendingLock) {
+                pending.removeAll(started);
+            }
+        }
+    }
+
+    private void committed(Increments increments) {
+        synchronized (pendingLock) {
+            for (long[] increment : increments.increments) {
+                add(increment[0], increment[1], increment[2]);
+            }
+            maxHistoryId = Math.max(maxHistoryId, increments.maxHistoryId);
+            pending.remove(increments);
+        }
+    }
+
+    private void add(long crawlId, long files, long size) {
+        Delta delta = crawlDeltas.computeIfAbsent(crawlId, id -> new Delta());
+        delta.files.add(files);
+        delta.size.add(size);
+    }
+
+    /**
+     * Recalculates the rollups of crawls changed since the last checkpoint, in case the process that made the
+     * changes exited before flushing them.
+     */
+    synchronized void recover() {
+        dao.inTransaction(tx -> {
+            long since = tx.selectRollupCheckpoint();
+            long upTo = tx.selectMaxWarcHistoryId();
+            int crawls = tx.recalculateWarcStatsForCrawlsChangedSince(since);
+            tx.recalculateWarcStatsForSeriesChangedSince(since);
+            tx.updateRollupCheckpoint(upTo);
+            if (crawls > 0) {
+                log.info("Recalculated warc stats for {} crawls changed since rollup checkpoint {}", crawls, since);
+            }
+            checkpoint = upTo;
+            synchronized (pendingLock) {
+                maxHistoryId = Math.max(maxHistoryId, upTo);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Starts deferring increments and flushing them every flushIntervalMillis.
+     */
+    void start(long flushIntervalMillis) {
+        deferred = true;
+        executor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Error flushing rollups", e);
+        }
+    }
+
+    /**
+     * Writes the accumulated increments to the database.
+     */
+    synchronized void flush() {
+        Map<Long, long[]> drained = new TreeMap<>(); // sorted to lock rows in a consistent order
+        long upTo;
+        synchronized (pendingLock) {
+            // everything committed so far is in the deltas, so only transactions still pending hold back the checkpoint
+            upTo = maxHistoryId;
+            for (Increments increments : pending) {
+                upTo = Math.min(upTo, increments.floor);
+            }
+            for (Map.Entry<Long, Delta> entry : crawlDeltas.entrySet()) {
+                long files = entry.getValue().files.sumThenReset();
+                long size = entry.getValue().size.sumThenReset();
+                if (files != 0 || size != 0) {
+                    drained.put(entry.getKey(), new long[]{files, size});
+                }
+            }
+        }
+        long newCheckpoint = Math.max(upTo, checkpoint);
+        if (drained.isEmpty() && newCheckpoint == checkpoint) return;
+        try {
+            dao.inTransaction(tx -> {
+                for (Map.Entry<Long, long[]> entry : drained.entrySet()) {
+                    long[] delta = entry.getValue();
+                    tx.incrementWarcStatsForCrawlInternal(entry.getKey(), Math.toIntExact(delta[0]), delta[1]);
+                    tx.incrementWarcStatsForCrawlSeriesByCrawlId(entry.getKey(), Math.toIntExact(delta[0]), delta[1]);
+                }
+                tx.updateRollupCheckpoint(newCheckpoint);
+                return null;
+            });
+            checkpoint = newCheckpoint;
+        } catch (RuntimeException e) {
+            drained.forEach((crawlId, delta) -> add(crawlId, delta[0], delta[1]));
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the flush thread and writes any remaining increments.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (deferred) {
+            deferred = false;
+            flush();
+        }
+    }
+}
@@ -2,29 +2,64 @@ package bamboo.crawl;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import bamboo.app.Bamboo;
+import bamboo.util.TaskScope;
 import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Scrub {
 
+    private static final Logger log = LoggerFactory.getLogger(Scrub.class);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int PAGE_SIZE = 1000;
+    private static final long REPORT_INTERVAL_SECONDS = 60;
+
     private final Bamboo bamboo;
+    private final int threads;
+    private final Path progressFile;
+    private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    private final Map<ResultType, LongAdder> counts = new EnumMap<>(ResultType.class);
+    private final LongAdder bytes = new LongAdder();
+    private volatile long submittedUpTo;
 
     public Scrub(Bamboo bamboo) {
+        this(bamboo, 4, null);
+    }
+
+    /**
+     * @param threads number of warcs to read concurrently
+     * @param progressFile where to record the last completed warc id so an interrupted scrub can resume, or null
+     */
+    public Scrub(Bamboo bamboo, int threads, Path progressFile) {
         this.bamboo = bamboo;
+        this.threads = threads;
+        this.progressFile = progressFile;
+        for (ResultType type : ResultType.values()) {
+            counts.put(type, new LongAdder());
+        }
     }
 
     enum ResultType {NEW, OK, MISMATCH, ERROR}
 
-    ;
-
     public static class Result {
         public final ResultType type;
         public final long warcId;
@@ -66,11 +101,21 @@ public class Scrub {
 
     static String calculateDigest(String algorithm, ReadableByteChannel channel) throws NoSuchAlgorithmException, IOException {
         MessageDigest md = MessageDigest.getInstance(algorithm);
-        ByteBuffer buffer = ByteBuffer.allocate(8192);
-        while (channel.read(buffer) > 0) {
-            buffer.flip();
-            md.update(buffer);
-            buffer.clear();
+        if (channel instanceof FileChannel) {
+            // hash straight out of the page cache rather than copying through a read buffer
+            FileChannel fileChannel = (FileChannel) channel;
+            long size = fileChannel.size();
+            for (long position = fileChannel.position(); position < size; position += MAP_CHUNK_SIZE) {
+                md.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK_SIZE, size - position)));
+            }
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
         }
         return Hex.encodeHexString(md.digest(), true);
     }
@@ -85,8 +130,8 @@ public class Scrub {
 
     Result scrub(Warc warc) {
         String digest;
-        try {
-            digest = calculateDigest("SHA-256", bamboo.warcs.openChannel(warc));
+        try (ReadableByteChannel channel = bamboo.warcs.openChannel(warc)) {
+            digest = calculateDigest("SHA-256", channel);
         } catch (IOException | NoSuchAlgorithmException e) {
             return new Result(ResultType.ERROR, warc.getId(), warc.getPath(), warc.getSha256(), e);
         }
@@ -100,20 +145,101 @@ public class Scrub {
         }
     }
 
-    void scrub() {
-        List<Warc> warcs = bamboo.warcs.listAll();
-
-        warcs.parallelStream()
-                .map(this::scrub)
-                .forEach(result -> {
-                    System.out.println(result);
-                    if (result.type == ResultType.NEW) {
-                        bamboo.warcs.updateSha256(result.warcId, result.calculatedDigest);
-                    }
-                });
+    /**
+     * Scrubs every warc in id order, resuming after the id recorded in the progress file (if any). The progress file
+     * is removed once the whole table has been scrubbed so the next run starts again from the beginning.
+     */
+    void scrub() throws IOException, InterruptedException {
+        long fromId = readProgress();
+        if (fromId > 0) {
+            log.info("Resuming scrub after warc {}", fromId);
+        }
+        long startTime = System.nanoTime();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Scrub-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleWithFixedDelay(() -> {
+            report(startTime);
+            try {
+                writeProgress();
+            } catch (IOException e) {
+                log.warn("Unable to save scrub progress to {}", progressFile, e);
+            }
+        }, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        submittedUpTo = fromId;
+        try (TaskScope scope = new TaskScope("Scrub", threads)) {
+            while (true) {
+                List<Warc> page = bamboo.warcs.stream(submittedUpTo, PAGE_SIZE);
+                if (page.isEmpty()) break;
+                for (Warc warc : page) {
+                    inFlight.add(warc.getId());
+                    submittedUpTo = warc.getId();
+                    scope.fork(() -> {
+                        try {
+                            handle(scrub(warc), warc);
+                        } catch (RuntimeException e) {
+                            log.error("Error scrubbing warc {}", warc.getId(), e);
+                        } finally {
+                            inFlight.remove(warc.getId());
+                        }
+                    });
+                }
+            }
+            scope.join();
+        } finally {
+            reporter.shutdownNow();
+        }
+        report(startTime);
+        if (progressFile != null) {
+            Files.deleteIfExists(progressFile);
+        }
+    }
+
+    private void handle(Result result, Warc warc) {
+        System.out.println(result);
+        counts.get(result.type).increment();
+        if (result.type != ResultType.ERROR) {
+            bytes.add(warc.getSize());
+        }
+        if (result.type == ResultType.NEW) {
+            bamboo.warcs.updateSha256(result.warcId, result.calculatedDigest);
+        }
+    }
+
+    private void report(long startTime) {
+        long files = counts.values().stream().mapToLong(LongAdder::sum).sum();
+        long totalBytes = bytes.sum();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        log.info(String.format("Scrubbed %d warcs, %d MiB in %.0fs (%.1f MiB/s, %.1f warcs/s) up to id %d: %s",
+                files, totalBytes / 1024 / 1024, seconds, totalBytes / 1024.0 / 1024.0 / seconds,
+                files / seconds, completedUpTo(), counts));
+    }
+
+    /**
+     * The highest id such that every warc up to and including it has been scrubbed.
+     */
+    private long completedUpTo() {
+        long submitted = submittedUpTo;
+        Long oldestInFlight = inFlight.isEmpty() ? null : inFlight.first();
+        return oldestInFlight == null ? submitted : Math.min(submitted, oldestInFlight - 1);
+    }
+
+    private long readProgress() throws IOException {
+        if (progressFile == null || !Files.exists(progressFile)) return 0;
+        return Long.parseLong(Files.readString(progressFile).trim());
+    }
+
+    private void writeProgress() throws IOException {
+        if (progressFile == null) return;
+        Path tmp = progressFile.resolveSibling(progressFile.getFileName() + ".tmp");
+        Files.writeString(tmp, completedUpTo() + "\n");
+        Files.move(tmp, progressFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    public static void scrub(Bamboo bamboo) {
-        new Scrub(bamboo).scrub();
+    public static void scrub(Bamboo bamboo) throws IOException, InterruptedException {
+        new Scrub(bamboo, bamboo.config.getScrubThreads(), bamboo.config.getScrubProgressFile()).scrub();
     }
 }
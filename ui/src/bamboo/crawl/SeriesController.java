@@ -4,9 +4,11 @@ import bamboo.User;
 import bamboo.app.Bamboo;
 import bamboo.core.Permission;
 import bamboo.util.Markdown;
+import bamboo.util.Cursor;
 import bamboo.util.Pager;
-import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.stereotype.Controller;
@@ -18,12 +20,14 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import jakarta.servlet.http.HttpServletRequest;
 import java.util.List;
+import java.util.Map;
 
 import static java.util.Collections.emptyList;
 
 @Controller
 public class SeriesController {
     private final Bamboo wa;
+    private static final Sort SERIES_ORDER = Sort.by("name", "id");
     private final SeriesRepository seriesRepository;
 
     public SeriesController(Bamboo wa, SeriesRepository seriesRepository) {
@@ -33,25 +37,39 @@ public class SeriesController {
 
     @GetMapping("/series")
     @PreAuthorize("hasAnyAuthority('PERM_SERIES_VIEW_AGENCY', 'PERM_SERIES_VIEW_ALL')")
-    String index(@RequestParam(value = "page", defaultValue = "1") int page, Model model,
+    String index(@RequestParam(value = "after", required = false) String after, Model model,
                  @AuthenticationPrincipal User user) {
-        Page<Series> pager;
+        Pager<Series> pager;
         if (user == null || user.hasAuthority(Permission.SERIES_VIEW_ALL)) {
-            pager = seriesRepository.findAll(PageRequest.of(page - 1, 100));
+            pager = new Pager<>(after, 100, seriesRepository.count(), (cursor, limit) ->
+                    seriesRepository.findAllBy(scrollPosition(cursor), Limit.of((int) limit), SERIES_ORDER).getContent(),
+                    SeriesController::cursorOf);
         } else if (user.hasAuthority(Permission.SERIES_VIEW_AGENCY)) {
             if (user.getAgencyId() == null) {
                 throw new IllegalStateException("user has no agencyId");
             }
             model.addAttribute("agency", wa.agencies.getOrNull(user.getAgencyId()));
-            pager = seriesRepository.findByAgencyId(user.getAgencyId(), PageRequest.of(page - 1, 100));
+            pager = new Pager<>(after, 100, seriesRepository.countByAgencyId(user.getAgencyId()), (cursor, limit) ->
+                    seriesRepository.findAllByAgencyId(user.getAgencyId(), scrollPosition(cursor),
+                            Limit.of((int) limit), SERIES_ORDER).getContent(),
+                    SeriesController::cursorOf);
         } else {
             throw new IllegalStateException();
         }
-        model.addAttribute("seriesList", pager.toList());
+        model.addAttribute("seriesList", pager.items);
         model.addAttribute("seriesPager", pager);
         return "series/index";
     }
 
+    private static ScrollPosition scrollPosition(Cursor cursor) {
+        if (cursor == null) return ScrollPosition.keyset();
+        return ScrollPosition.forward(Map.of("name", cursor.getString(0), "id", cursor.getLong(1)));
+    }
+
+    private static Cursor cursorOf(Series series) {
+        return Cursor.of(series.getName(), series.getId());
+    }
+
     @GetMapping("/series/new")
     @PreAuthorize("hasAnyAuthority('PERM_SERIES_EDIT_AGENCY', 'PERM_SERIES_EDIT_ALL')")
     String newForm() {
@@ -71,11 +89,11 @@ public class SeriesController {
     @GetMapping("/series/{id}")
     @PreAuthorize("hasPermission(#id, 'Series', 'view')")
     String show(@PathVariable("id") long id,
-                @RequestParam(value = "page", defaultValue = "1") long page,
+                @RequestParam(value = "after", required = false) String after,
                 Model model, HttpServletRequest request) {
         Series series = wa.serieses.get(id);
         Agency agency = series.getAgencyId() == null ? null : wa.agencies.get(series.getAgencyId());
-        Pager<Crawl> crawlPager = wa.crawls.paginateWithSeriesId(page, id);
+        Pager<Crawl> crawlPager = wa.crawls.paginateWithSeriesId(after, id);
         model.addAttribute("series", series);
         model.addAttribute("agency", agency);
         model.addAttribute("descriptionHtml", Markdown.render(series.getDescription(), request.getRequestURI()));
@@ -1,8 +1,13 @@
 package bamboo.crawl;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.ScrollPosition;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Window;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.rest.core.annotation.RestResource;
 
 import java.util.List;
 
@@ -11,4 +16,14 @@ public interface SeriesRepository extends PagingAndSortingRepository<Series, Lon
     List<Series> findByAgencyIdAndName(Integer agencyId, String name);
 
     Page<Series> findByAgencyId(Integer agencyId, Pageable pageable);
+
+    long count();
+
+    long countByAgencyId(Integer agencyId);
+
+    @RestResource(exported = false)
+    Window<Series> findAllBy(ScrollPosition position, Limit limit, Sort sort);
+
+    @RestResource(exported = false)
+    Window<Series> findAllByAgencyId(Integer agencyId, ScrollPosition position, Limit limit, Sort sort);
 }
@@ -0,0 +1,245 @@
+package bamboo.crawl;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads WARCs from web servers (WARC_URL) that may be spread over several addresses behind one hostname.
+ * <p>
+ * Addresses are resolved once and refreshed every {@link #DNS_TTL}, keeping the previous addresses if a lookup
+ * fails. Requests are spread round-robin over the addresses. An address that refuses connections or returns a server
+ * error is skipped for an exponentially increasing backoff period and the request retried against the next one.
+ * Connections are kept alive and pooled per address by the underlying {@link HttpClient}, which also uses HTTP/2 where
+ * the server supports it.
+ * <p>
+ * Requests normally use the hostname, which leaves the choice of address to the JVM's resolver and only the retries
+ * apply. With pinAddresses (WARC_URL_PIN_ADDRESSES=true) plain HTTP requests to a hostname with several addresses are
+ * instead sent directly to the chosen address. HttpClient won't let us set the Host header, so pinned requests are
+ * sent with {@code Host: <address>} and the servers must not rely on name-based virtual hosting. HTTPS is never
+ * pinned as the certificate must be verified against the hostname.
+ */
+public class WarcHttpClient {
+    private static final Logger log = LoggerFactory.getLogger(WarcHttpClient.class);
+    static final Duration DNS_TTL = Duration.ofSeconds(30);
+    private static final long MIN_BACKOFF_NANOS = Duration.ofSeconds(1).toNanos();
+    private static final long MAX_BACKOFF_NANOS = Duration.ofMinutes(1).toNanos();
+    private static final int MAX_ATTEMPTS = 3;
+
+    interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private final HttpClient client;
+    private final Resolver resolver;
+    private final boolean pinAddresses;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public WarcHttpClient() {
+        this(InetAddress::getAllByName, Boolean.parseBoolean(System.getenv("WARC_URL_PIN_ADDRESSES")));
+    }
+
+    WarcHttpClient(Resolver resolver, boolean pinAddresses) {
+        this.resolver = resolver;
+        this.pinAddresses = pinAddresses;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public InputStream open(URI uri) throws IOException {
+        return open(uri, 0, -1);
+    }
+
+    /**
+     * Opens a byte range of a remote file.
+     *
+     * @param length the number of bytes to read or -1 to read to the end of the file
+     */
+    public InputStream open(URI uri, long start, long length) throws IOException {
+        Host host = hosts.computeIfAbsent(uri.getHost(), Host::new);
+        List<Backend> candidates = host.candidates();
+        // a single address gains nothing from pinning so keep the hostname for the Host header
+        boolean pin = pinAddresses && candidates.size() > 1 && "http".equals(uri.getScheme());
+        IOException failure = null;
+        for (int i = 0; i < Math.min(candidates.size(), MAX_ATTEMPTS); i++) {
+            Backend backend = candidates.get(i);
+            URI target = withAddress(uri, pin ? backend.address : null);
+            HttpResponse<InputStream> response;
+            try {
+                response = client.send(buildRequest(uri, target, start, length),
+                        HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (IOException e) {
+                backend.failed();
+                log.warn("Request to {} for {} failed, trying another address", backend.address, uri, e);
+                failure = e;
+                continue;
+            }
+
+            int status = response.statusCode();
+            if (status >= 500) {
+                response.body().close();
+                backend.failed();
+                log.warn("{} returned {} for {}, trying another address", backend.address, status, uri);
+                failure = new IOException("HTTP " + status + " from " + backend.address + " for " + uri);
+                continue;
+            }
+            backend.succeeded();
+            if (status == 206) {
+                return response.body();
+            } else if (status == 200) {
+                // server ignored the range
+                InputStream body = response.body();
+                ByteStreams.skipFully(body, start);
+                return length < 0 ? body : ByteStreams.limit(body, length);
+            }
+            response.body().close();
+            if (status == 404) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            throw new IOException("HTTP " + status + " for " + uri);
+        }
+        throw failure;
+    }
+
+    private static HttpRequest buildRequest(URI uri, URI target, long start, long length) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(target).GET();
+        if (uri.getUserInfo() != null) {
+            String auth = Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(UTF_8));
+            request.header("Authorization", "Basic " + auth);
+        }
+        if (start > 0 || length >= 0) {
+            request.header("Range", "bytes=" + start + "-" + (length >= 0 ? start + length - 1 : ""));
+        }
+        return request.build();
+    }
+
+    /**
+     * Rewrites the URI to connect to a specific address, and strips the user info which the client doesn't accept.
+     */
+    private static URI withAddress(URI uri, InetAddress address) throws IOException {
+        try {
+            return new URI(uri.getScheme(), null, address == null ? uri.getHost() : address.getHostAddress(),
+                    uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw new IOException("building round-robin URL", e);
+        }
+    }
+
+    private class Host {
+        private final String name;
+        private final AtomicInteger next = new AtomicInteger();
+        private volatile List<Backend> backends = List.of();
+        private volatile long resolvedAt;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the backends in the order to try them: healthy ones round-robin, then the ones that have been down
+         * longest.
+         */
+        List<Backend> candidates() throws IOException {
+            List<Backend> all = resolve();
+            if (all.isEmpty()) throw new UnknownHostException(name);
+            int offset = Math.floorMod(next.getAndIncrement(), all.size());
+            long now = System.nanoTime();
+            List<Backend> healthy = new ArrayList<>();
+            List<Backend> unhealthy = new ArrayList<>();
+            for (int i = 0; i < all.size(); i++) {
+                Backend backend = all.get((offset + i) % all.size());
+                (backend.isUp(now) ? healthy : unhealthy).add(backend);
+            }
+            unhealthy.sort(Comparator.comparingLong(backend -> backend.downUntil));
+            healthy.addAll(unhealthy);
+            return healthy;
+        }
+
+        private List<Backend> resolve() throws IOException {
+            if (!backends.isEmpty() && System.nanoTime() - resolvedAt < DNS_TTL.toNanos()) {
+                return backends;
+            }
+            synchronized (this) {
+                if (!backends.isEmpty() && System.nanoTime() - resolvedAt < DNS_TTL.toNanos()) {
+                    return backends;
+                }
+                InetAddress[] addresses;
+                try {
+                    addresses = resolver.resolve(name);
+                } catch (UnknownHostException e) {
+                    if (backends.isEmpty()) throw e;
+                    log.warn("Unable to resolve {}, keeping previous addresses", name, e);
+                    resolvedAt = System.nanoTime();
+                    return backends;
+                }
+                // keep the health of addresses we already know about
+                Map<InetAddress, Backend> previous = new HashMap<>();
+                for (Backend backend : backends) {
+                    previous.put(backend.address, backend);
+                }
+                List<Backend> list = new ArrayList<>();
+                for (InetAddress address : addresses) {
+                    list.add(previous.getOrDefault(address, new Backend(address)));
+                }
+                backends = List.copyOf(list);
+                resolvedAt = System.nanoTime();
+                return backends;
+            }
+        }
+    }
+
+    private static class Backend {
+        final InetAddress address;
+        private int failures;
+        private volatile long downUntil;
+        private volatile boolean down;
+
+        Backend(InetAddress address) {
+            this.address = address;
+        }
+
+        boolean isUp(long now) {
+            return !down || now - downUntil >= 0;
+        }
+
+        synchronized void failed() {
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF_NANOS, MIN_BACKOFF_NANOS << Math.min(failures - 1, 16));
+            downUntil = System.nanoTime() + backoff;
+            down = true;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            down = false;
+        }
+    }
+}
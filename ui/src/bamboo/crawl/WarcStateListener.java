@@ -0,0 +1,5 @@
+package bamboo.crawl;
+
+public interface WarcStateListener {
+    void warcStateChanged(long warcId, int stateId);
+}
@@ -1,10 +1,14 @@
 package bamboo.crawl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
@@ -14,15 +18,23 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
-import java.util.Base64;
+import java.time.Duration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import bamboo.core.NotFoundException;
 import bamboo.core.Streams;
+import bamboo.util.CountCache;
+import bamboo.util.Cursor;
 import bamboo.util.Pager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import doss.*;
 import doss.http.HttpBlob;
 import org.archive.io.ArchiveReader;
@@ -41,6 +53,28 @@ public class Warcs {
     private final WarcsDAO dao;
     private final BlobStore blobStore;
     private final String baseUrl;
+    private final WarcHttpClient httpClient;
+    private static final long BLOB_CACHE_MAX_RANGE = 64 * 1024 * 1024;
+    private static final int COMPLETION_BATCH_SIZE = 100;
+    private static final long COMPLETION_MAX_DELAY_MILLIS = 500;
+    private volatile BlobBlockCache blobCache;
+    private final ExecutorService rangeExecutor = Executors.newFixedThreadPool(16, runnable -> {
+        Thread thread = new Thread(runnable, "Warcs-range");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ChannelCache channelCache = new ChannelCache(256, Duration.ofMinutes(1));
+    /**
+     * Short-lived cache of WARC metadata for the replay path which looks up the same few WARCs many times a second.
+     */
+    private final Cache<Object, Warc> metadataCache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(Duration.ofSeconds(5))
+            .build();
+    private final CountCache countCache = new CountCache(Duration.ofMinutes(1));
+    private final Set<WarcStateListener> stateListeners = new HashSet<>();
+    private final CompletionBatcher completionBatcher;
+    private final RollupCounters rollupCounters;
 
     public Warcs(WarcsDAO warcsDAO) {
         this(warcsDAO, null, null);
@@ -50,6 +84,22 @@ public class Warcs {
         this.dao = warcsDAO;
         this.blobStore = blobStore;
         this.baseUrl = baseUrl;
+        this.httpClient = baseUrl == null ? null : new WarcHttpClient();
+        this.completionBatcher = new CompletionBatcher(warcsDAO, completion -> {
+            invalidate(completion.warcId);
+            notifyStateChanged(completion.warcId, completion.stateId());
+        }, COMPLETION_BATCH_SIZE, COMPLETION_MAX_DELAY_MILLIS);
+        this.rollupCounters = new RollupCounters(warcsDAO);
+    }
+
+    public void onStateChange(WarcStateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    void notifyStateChanged(long warcId, int stateId) {
+        for (WarcStateListener listener : stateListeners) {
+            listener.warcStateChanged(warcId, stateId);
+        }
     }
 
     public List<Warc> findByCrawlId(long crawlId) {
@@ -61,19 +111,28 @@ public class Warcs {
                 (limit, offset) -> dao.paginateWarcsInCrawl(crawlId, limit, offset));
     }
 
-    public Pager<Warc> paginateWithCrawlId(long page, long crawlId) {
-        return new Pager<>(page, dao.countWarcsWithCrawlId(crawlId),
-                (limit, offset) -> dao.paginateWarcsInCrawl(crawlId, limit, offset));
+    /**
+     * Keyset pagination of a crawl's WARCs in filename order. The total may be up to a minute old.
+     */
+    public Pager<Warc> paginateWithCrawlIdAfter(String cursor, long crawlId, long pageSize) {
+        long total = countCache.get("crawl " + crawlId, () -> dao.countWarcsWithCrawlId(crawlId));
+        return new Pager<>(cursor, pageSize, total, (after, limit) -> after == null ?
+                        dao.paginateWarcsInCrawl(crawlId, limit, 0) :
+                        dao.paginateWarcsInCrawlAfter(crawlId, after.getString(0), after.getLong(1), limit),
+                warc -> Cursor.of(warc.getFilename(), warc.getId()));
     }
 
-    public Pager<Warc> paginateWithCrawlIdAndState(long page, long crawlId, int state) {
-        return new Pager<>(page, dao.countWarcsInCrawlAndState(crawlId, state),
-                (limit, offset) -> dao.paginateWarcsInCrawlAndState(crawlId, state, limit, offset));
+    public Pager<Warc> paginateWithCrawlIdAndStateAfter(String cursor, long crawlId, int stateId) {
+        long total = countCache.get("crawl " + crawlId + " state " + stateId,
+                () -> dao.countWarcsInCrawlAndState(crawlId, stateId));
+        return new Pager<>(cursor, 100, total, (after, limit) -> dao.paginateWarcsInCrawlAndStateAfter(crawlId,
+                stateId, after == null ? 0 : after.getLong(0), limit), warc -> Cursor.of(warc.getId()));
     }
 
-    public Pager<Warc> paginateWithState(long page, int stateId) {
-        return new Pager<>(page, dao.countWarcsInState(stateId),
-                (offset, limit) -> dao.paginateWarcsInState(stateId, offset, limit));
+    public Pager<Warc> paginateWithStateAfter(String cursor, int stateId) {
+        long total = countCache.get("state " + stateId, () -> dao.countWarcsInState(stateId));
+        return new Pager<>(cursor, 100, total, (after, limit) -> dao.paginateWarcsInStateAfter(stateId,
+                after == null ? 0 : after.getLong(0), limit), warc -> Cursor.of(warc.getId()));
     }
 
     public Warc getOrNull(long id) {
@@ -89,6 +148,42 @@ public class Warcs {
         return NotFoundException.check(getOrNull(id), "warc", id);
     }
 
+    /**
+     * Like {@link #get(long)} but may return metadata up to a few seconds old.
+     */
+    public Warc getCached(long id) {
+        Warc warc = metadataCache.getIfPresent(id);
+        if (warc == null) {
+            warc = get(id);
+            metadataCache.put(id, warc);
+        }
+        return warc;
+    }
+
+    /**
+     * Like {@link #getByFilename(String)} but may return metadata up to a few seconds old.
+     */
+    public Warc getCachedByFilename(String filename) {
+        Warc warc = metadataCache.getIfPresent(filename);
+        if (warc == null) {
+            warc = getByFilename(filename);
+            metadataCache.put(filename, warc);
+        }
+        return warc;
+    }
+
+    /**
+     * Drops any cached metadata and open channel for a WARC after it has been modified.
+     */
+    private void invalidate(long warcId) {
+        Warc warc = metadataCache.getIfPresent(warcId);
+        metadataCache.invalidate(warcId);
+        if (warc != null) {
+            metadataCache.invalidate(warc.getFilename());
+        }
+        channelCache.invalidate(warcId);
+    }
+
     public Warc getOrNullByFilename(String filename) {
         return dao.findWarcByFilename(filename);
     }
@@ -117,6 +212,7 @@ public class Warcs {
 
     public void updateSha256(long warcId, String calculatedDigest) {
         int rows = dao.updateWarcSha256(warcId, calculatedDigest);
+        invalidate(warcId);
         if (rows == 0) {
             throw new NotFoundException("warc", warcId);
         }
@@ -131,8 +227,13 @@ public class Warcs {
             updateState0(id, stateId);
             return null;
         });
+        invalidate(id);
+        notifyStateChanged(id, stateId);
     }
 
+    /**
+     * Callers must {@link #invalidate} the WARC once the transaction has committed.
+     */
     private void updateState0(long id, int stateId) {
         int rows = dao.updateWarcStateWithoutHistory(id, stateId);
         if (rows == 0) {
@@ -141,105 +242,83 @@ public class Warcs {
         dao.insertWarcHistory(id, stateId);
     }
 
-    public void markCdxIndexed(long warcId) {
-        dao.inTransaction(tx -> {
-            Warc prev = getAndLock(warcId);
-            if (prev.getStateId() != Warc.CDX_INDEXED) {
-                int rows = tx.updateWarcStateWithoutHistory(warcId, Warc.CDX_INDEXED);
-                if (rows == 0) {
-                    throw new NotFoundException("warc", warcId);
-                }
-            }
-
-            WarcsDAO.WarcHistoryRow latest = tx.selectLatestHistoryForUpdate(warcId);
-            if (latest != null && latest.stateId == Warc.CDX_INDEXED) {
-                tx.touchWarcHistory(latest.id);
-            } else {
-                tx.insertWarcHistory(warcId, Warc.CDX_INDEXED);
-            }
-            return null;
-        });
+    /**
+     * Records the result of CDX indexing a WARC: its record stats, the crawl, series and collection rollups and its
+     * new state (CDX_INDEXED, or DELETED in delete mode). The update is batched with those of other WARCs and the
+     * returned future completes once it has been committed.
+     *
+     * @param collectionIds the collections whose CDX servers the WARC was (de)indexed into
+     * @param indexedOffset the offset up to which an open WARC has been incrementally indexed, or null
+     */
+    public CompletableFuture<Void> completeIndexing(long warcId, RecordStats stats, Set<Long> collectionIds,
+                                                    boolean deleteMode, Long indexedOffset) {
+        return completionBatcher.add(new CompletionBatcher.Completion(warcId, stats, collectionIds, deleteMode,
+                indexedOffset));
     }
 
-    public void updateRecordStats(long warcId, RecordStats stats, boolean deleteMode) {
-        dao.inTransaction(tx -> {
-            long records = stats.getRecords();
-            long recordBytes = stats.getRecordBytes();
-            if (deleteMode) {
-                records = -records;
-                recordBytes = -recordBytes;
-            }
-            tx.updateRecordStatsRollupForCrawl(warcId, records, recordBytes,
-                    stats.getStartTime(), stats.getEndTime());
-            tx.updateRecordStatsRollupForSeries(warcId, records, recordBytes,
-                    stats.getStartTime(), stats.getEndTime());
-            int rows = tx.updateWarcRecordStats(warcId, stats);
-            if (rows == 0) {
-                throw new NotFoundException("warc", warcId);
-            }
-            return null;
-        });
+    /**
+     * Commits batched indexing completions now, for callers waiting on one.
+     */
+    public void flushCompletions() {
+        completionBatcher.flush();
     }
 
-    public void updateCollections(long warcId, Map<Long, RecordStats> collectionStatsMap, boolean deleteMode) {
-        for (Map.Entry<Long, RecordStats> entry : collectionStatsMap.entrySet()) {
-            long collectionId = entry.getKey();
-            RecordStats stats = entry.getValue();
-
-            dao.inTransaction(tx -> {
-                long recordsDelta = deleteMode ? 0 : stats.getRecords();
-                long bytesDelta = deleteMode ? 0 : stats.getRecordBytes();
-
-                CollectionWarc old = tx.selectCollectionWarcForUpdate(collectionId, warcId);
-                if (old != null) {
-                    recordsDelta -= old.records;
-                    bytesDelta -= old.recordBytes;
-                }
+    /**
+     * Accumulates the crawl and series warc_files and warc_size rollups in memory and writes them every
+     * flushIntervalMillis instead of within each WARC's transaction. First recalculates any rollups left unflushed by
+     * a previous process.
+     */
+    public void deferRollups(long flushIntervalMillis) {
+        rollupCounters.recover();
+        rollupCounters.start(flushIntervalMillis);
+    }
 
-                tx.deleteCollectionWarc(collectionId, warcId);
-                if (!deleteMode) {
-                    tx.insertCollectionWarc(collectionId, warcId, stats.getRecords(), stats.getRecordBytes());
-                    tx.incrementRecordStatsForCollection(collectionId, recordsDelta, bytesDelta);
-                }
+    /**
+     * Writes any deferred rollup increments now.
+     */
+    public void flushRollups() {
+        rollupCounters.flush();
+    }
 
-                return null;
-            });
-        }
+    /**
+     * Returns the offset up to which an open WARC has been incrementally indexed, or null if it hasn't been.
+     */
+    public Long getIndexedOffset(long warcId) {
+        return dao.findWarcIndexedOffset(warcId);
     }
 
     public long create(long crawlId, int stateId, Path path, String filename, long size, String sha256) {
-        return dao.inTransaction(tx -> {
-            tx.incrementWarcStatsForCrawlInternal(crawlId, 1, size);
-            tx.incrementWarcStatsForCrawlSeriesByCrawlId(crawlId, 1, size);
+        long id = rollupCounters.inTransaction((tx, rollups) -> {
+            rollups.add(crawlId, 1, size);
             long warcId = tx.insertWarcWithoutRollup(crawlId, stateId, path.toString(), filename, size, sha256, null);
-            tx.insertWarcHistory(warcId, stateId);
+            rollups.insertHistory(warcId, stateId);
             return warcId;
         });
+        notifyStateChanged(id, stateId);
+        return id;
     }
 
     public void updateSize(long warcId, long currentSize) {
-        dao.inTransaction(tx -> {
+        rollupCounters.inTransaction((tx, rollups) -> {
             Warc prev = getAndLock(warcId);
+            rollups.add(prev.getCrawlId(), 0, currentSize - prev.getSize());
             tx.updateWarcSizeWithoutRollup(warcId, currentSize);
-            long crawlId = prev.getCrawlId();
-            long sizeDelta = currentSize - prev.getSize();
-            tx.incrementWarcStatsForCrawlInternal(crawlId, 0, sizeDelta);
-            tx.incrementWarcStatsForCrawlSeriesByCrawlId(crawlId, 0, sizeDelta);
             return null;
         });
+        // after commit so a concurrent read can't cache the old row again
+        invalidate(warcId);
     }
 
     public void update(long warcId, int stateId, Path path, String filename, long size, String digest) {
-        dao.inTransaction(tx -> {
+        rollupCounters.inTransaction((tx, rollups) -> {
             Warc prev = getAndLock(warcId);
+            rollups.add(prev.getCrawlId(), 0, size - prev.getSize());
             tx.updateWarcWithoutRollup(warcId, stateId, path.toString(), filename, size, digest);
-            tx.insertWarcHistory(warcId, stateId);
-            long crawlId = prev.getCrawlId();
-            long sizeDelta = size - prev.getSize();
-            tx.incrementWarcStatsForCrawlInternal(crawlId, 0, sizeDelta);
-            tx.incrementWarcStatsForCrawlSeriesByCrawlId(crawlId, 0, sizeDelta);
+            rollups.insertHistory(warcId, stateId);
             return null;
         });
+        invalidate(warcId);
+        notifyStateChanged(warcId, stateId);
     }
 
     private Warc getAndLock(long warcId) {
@@ -289,6 +368,7 @@ public class Warcs {
             int rows = dao.updateWarcBlobId(warc.getId(), blob.id());
             if (rows != 1) throw new RuntimeException("updating blob id failed");
             tx.commit();
+            invalidate(warc.getId());
 
             if (deleteOriginal) {
                 try {
@@ -355,49 +435,16 @@ public class Warcs {
     }
 
 
-    private static AtomicInteger roundRobin = new AtomicInteger(0);
-
     public InputStream openStream(Warc warc) throws IOException {
         if (warc.getBlobId() != null) {
             return blobStore.get(warc.getBlobId()).openStream();
         }
         if (baseUrl != null) {
-            return openStreamViaRoundRobinHttp(warc);
+            return httpClient.open(getUri(warc));
         }
         return Files.newInputStream(warc.getPath());
     }
 
-    private InputStream openStreamViaRoundRobinHttp(Warc warc) throws IOException {
-        URI uri = URI.create(baseUrl + warc.getPath());
-        return openStreamViaRoundRobinHttp(uri);
-    }
-
-    public static InputStream openStreamViaRoundRobinHttp(URI uri) throws IOException {
-        String host = uri.getHost();
-        InetAddress[] addresses = InetAddress.getAllByName(host);
-        if (addresses.length > 1) {
-            int index = Math.floorMod(roundRobin.getAndIncrement(), addresses.length);
-            String selectedHost = addresses[index].getHostAddress();
-            try {
-                uri = new URI(uri.getScheme(), uri.getUserInfo(), selectedHost, uri.getPort(), uri.getPath(),
-                        uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw new IOException("building round-robin URL", e);
-            }
-        }
-
-        URLConnection conn = uri.toURL().openConnection();
-        if (uri.getUserInfo() != null) {
-            String auth = Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(UTF_8));
-            conn.setRequestProperty("Authorization", "Basic " + auth);
-        }
-
-        if (addresses.length > 1) {
-            conn.setRequestProperty("Host", host);
-        }
-        return conn.getInputStream();
-    }
-
     public URI getUri(Warc warc) {
         return URI.create(baseUrl + warc.getPath());
     }
@@ -431,7 +478,20 @@ public class Warcs {
         return dao.streamWarcsInSeries(fromWarcId, seriesId, limit);
     }
 
+    /**
+     * Serves range reads of remote blobs from a local block cache.
+     */
+    public void setBlobCache(BlobBlockCache blobCache) {
+        this.blobCache = blobCache;
+    }
+
     public void copy(Warc warc, OutputStream outputStream, long start, long length) throws IOException {
+        // large ranges are probably whole file downloads and would just flush the cache
+        if (warc.getBlobId() != null && blobCache != null && length <= BLOB_CACHE_MAX_RANGE) {
+            blobCache.copy(warc.getBlobId(), warc.getSize(), outputStream, start, length);
+            return;
+        }
+
         // optimisation for HttpBlob: use an exact range
         if (warc.getBlobId() != null) {
             Blob blob = blobStore.get(warc.getBlobId());
@@ -441,14 +501,87 @@ public class Warcs {
                     return;
                 }
             }
+        } else if (baseUrl != null) {
+            try (InputStream in = httpClient.open(getUri(warc), start, length)) {
+                Streams.copy(in, outputStream);
+                return;
+            }
         }
 
-        try (SeekableByteChannel in = openChannel(warc)) {
-            in.position(start);
-            Streams.copy(Channels.newInputStream(in), outputStream, length);
+        try (ChannelCache.Lease lease = channelCache.acquire(warc.getId(), () -> openChannel(warc))) {
+            SeekableByteChannel in = lease.channel();
+            if (in instanceof FileChannel) {
+                copy((FileChannel) in, outputStream, start, length);
+            } else {
+                // other channels aren't shared so this lease has it to itself
+                in.position(start);
+                Streams.copy(Channels.newInputStream(in), outputStream, length);
+            }
         }
     }
 
+    /**
+     * Returns true if reads of this WARC go to remote storage, where each read costs a round trip.
+     */
+    public boolean isRemote(Warc warc) {
+        return warc.getBlobId() != null || baseUrl != null;
+    }
+
+    /**
+     * Reads a range of a WARC into memory on a background thread, so several ranges can be fetched from remote
+     * storage concurrently.
+     */
+    public CompletableFuture<byte[]> readAsync(Warc warc, long start, int length) {
+        return CompletableFuture.supplyAsync(() -> {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(length);
+            try {
+                copy(warc, buffer, start, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (buffer.size() != length) {
+                throw new UncheckedIOException(new EOFException("WARC " + warc.getId() + " ended before " +
+                        (start + length)));
+            }
+            return buffer.toByteArray();
+        }, rangeExecutor);
+    }
+
+    /**
+     * Copies a range of a channel using positional reads, which are safe while other threads read the same
+     * channel. Stops early at end of file.
+     */
+    static void copy(FileChannel in, OutputStream outputStream, long start, long length) throws IOException {
+        byte[] buf = new byte[16384];
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        long position = start;
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buf.length) buffer.limit((int) remaining);
+            int n = in.read(buffer, position);
+            if (n < 0) break;
+            outputStream.write(buf, 0, n);
+            position += n;
+            remaining -= n;
+        }
+    }
+
+    public void close() {
+        completionBatcher.close();
+        rollupCounters.close();
+        rangeExecutor.shutdown();
+        channelCache.close();
+    }
+
+    /**
+     * Returns the local file a WARC is stored in, or null if it's in a blob store or read over HTTP.
+     */
+    public Path localFile(Warc warc) {
+        if (warc.getBlobId() != null || baseUrl != null) return null;
+        return warc.getPath();
+    }
+
     public Statistics getStatistics() {
         return dao.getStatistics();
     }
@@ -485,6 +618,7 @@ public class Warcs {
             dao.updateWarcBlobId(existing.getId(), blob.id());
 
             tx.commit();
+            invalidate(existing.getId());
             return true;
         }
     }
@@ -10,9 +10,6 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
-import org.apache.commons.io.output.TeeOutputStream;
-import org.archive.io.ArchiveReader;
-import org.archive.io.ArchiveRecord;
 import org.archive.url.SURT;
 import org.netpreserve.jwarc.WarcReader;
 import org.slf4j.Logger;
@@ -30,19 +27,20 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -75,6 +73,10 @@ public class WarcsController {
             return String.format("%d-%d/%d", start, start + length - 1, total);
         }
 
+        long end() {
+            return start + length;
+        }
+
         static List<Range> parseHeader(String headerValue, long fileSize) {
             if (headerValue == null || !headerValue.startsWith("bytes=") || headerValue.equals("bytes=")) {
                 return null;
@@ -125,11 +127,23 @@ public class WarcsController {
         }
     }
 
+    /**
+     * Like findWarc but may return metadata a few seconds stale. For the replay path.
+     */
+    private Warc findWarcCached(String id) {
+        try {
+            long warcId = Long.parseLong(id);
+            return wa.warcs.getCached(warcId);
+        } catch (NumberFormatException e) {
+            return wa.warcs.getCachedByFilename(id);
+        }
+    }
+
     @GetMapping("/warcs/{id}")
     public void serve(@PathVariable("id") String id,
                  @RequestHeader(value = "Range", required = false) String rangeHeader,
                  HttpServletRequest request, HttpServletResponse response) {
-        Warc warc = findWarc(id);
+        Warc warc = findWarcCached(id);
         serveWarc(warc, rangeHeader, request, response);
     }
 
@@ -157,6 +171,7 @@ public class WarcsController {
                     response.setHeader("Digest", "sha-256=" + Base64.getEncoder().encodeToString(Hex.decode(sha256)));
                 }
                 if (request.getMethod().equals("HEAD")) return;
+                if (trySendfile(request, warc, 0, warc.getSize())) return;
 
                 try (InputStream src = wa.warcs.openStream(warc);
                      OutputStream dst = response.getOutputStream()) {
@@ -181,22 +196,110 @@ public class WarcsController {
         response.setHeader("Content-Range", range.toString());
         response.setHeader("Content-Length", Long.toString(range.length));
         if (request.getMethod().equals("HEAD")) return;
+        if (trySendfile(request, warc, range.start, range.length)) return;
         wa.warcs.copy(warc, response.getOutputStream(), range.start, range.length);
     }
 
+    /**
+     * Asks the servlet container to send a range of a local WARC file itself with sendfile(2) after the request
+     * returns, so the bytes never pass through the JVM heap. Returns false if the container or storage doesn't
+     * support it, in which case the caller must write the body.
+     */
+    private boolean trySendfile(HttpServletRequest request, Warc warc, long start, long length) throws IOException {
+        if (!Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+            return false;
+        }
+        Path file = wa.warcs.localFile(warc);
+        if (file == null || !Files.isRegularFile(file)) {
+            return false;
+        }
+        request.setAttribute("org.apache.tomcat.sendfile.filename", file.toFile().getCanonicalPath());
+        request.setAttribute("org.apache.tomcat.sendfile.start", start);
+        request.setAttribute("org.apache.tomcat.sendfile.end", start + length);
+        return true;
+    }
+
     private static final String boundary = "Te2akaimeeThe8eip5oh";
+    private static final long RANGE_COALESCE_GAP = 8192;
+    private static final long MAX_SPAN_BYTES = 1024 * 1024;
+    private static final long MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_READS_AHEAD = 8;
 
     private void multipleRangeResponse(HttpServletRequest request, HttpServletResponse response, Warc warc, List<Range> ranges) throws IOException {
         response.setStatus(206);
         response.setContentType("multipart/byteranges; boundary=" + boundary);
         if (request.getMethod().equals("HEAD")) return;
+
+        // every read of remote storage is a round trip, so nearby ranges are merged and read ahead of the output
+        BulkRecordWriter writer = newBulkRecordWriter();
+        for (Range range : ranges) {
+            writer.add(warc, range);
+        }
         try (OutputStream out = response.getOutputStream()) {
-            for (Range range : ranges) {
-                out.write(("--" + boundary + "\r\nContent-Type: application/warc\r\nContent-Range: " + range.toString() + "\r\n\r\n").getBytes(US_ASCII));
-                wa.warcs.copy(warc, out, range.start, range.length);
-                out.write("\r\n".getBytes(US_ASCII));
+            writer.writeTo(out, boundary, (partWarc, range) ->
+                    "Content-Type: application/warc\r\nContent-Range: " + range + "\r\n");
+        }
+    }
+
+    private BulkRecordWriter newBulkRecordWriter() {
+        return new BulkRecordWriter(BulkRecordWriter.source(wa.warcs), RANGE_COALESCE_GAP, MAX_SPAN_BYTES,
+                MAX_BUFFERED_BYTES, MAX_READS_AHEAD);
+    }
+
+    private static final int MAX_BULK_RECORDS = 1000;
+    private static final long MAX_BULK_BYTES = 64 * 1024 * 1024;
+
+    static class RecordRequest {
+        String warc; // id or filename
+        long offset;
+        long length;
+    }
+
+    /**
+     * Fetches many records, possibly from different WARCs, in one request. The body is a JSON array of
+     * {"warc": id or filename, "offset": n, "length": n} objects. The response is a multipart/mixed body with one part
+     * per record in the order requested. Records are grouped by WARC and sorted by offset so nearby records in a
+     * remote WARC are fetched with a single read wherever they appear in the request. Parts are streamed as they
+     * become available with a bounded number of reads running ahead of the output, see {@link BulkRecordWriter}.
+     */
+    @PostMapping(value = "/warcs/records", consumes = "application/json")
+    public void serveRecords(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RecordRequest[] records;
+        try (Reader reader = new InputStreamReader(request.getInputStream(), UTF_8)) {
+            records = gson.fromJson(reader, RecordRequest[].class);
+        } catch (JsonSyntaxException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+        }
+        if (records == null || records.length == 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No records requested");
+        }
+        if (records.length > MAX_BULK_RECORDS) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "At most " + MAX_BULK_RECORDS + " records per request");
+        }
+
+        BulkRecordWriter writer = newBulkRecordWriter();
+        Map<String, Warc> warcsById = new HashMap<>();
+        long totalBytes = 0;
+        for (RecordRequest record : records) {
+            if (record == null || record.warc == null || record.offset < 0 || record.length <= 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Each record needs a warc, offset and positive length");
+            }
+            Warc warc = warcsById.computeIfAbsent(record.warc, this::findWarcCached);
+            if (record.offset >= warc.getSize()) {
+                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "Offset " + record.offset + " past end of " + warc.getFilename());
             }
-            out.write(("--" + boundary + "--\r\n").getBytes(US_ASCII));
+            Range range = new Range(record.offset, Math.min(record.length, warc.getSize() - record.offset), warc.getSize());
+            totalBytes += range.length;
+            if (totalBytes > MAX_BULK_BYTES) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "At most " + MAX_BULK_BYTES + " bytes per request");
+            }
+            writer.add(warc, range);
+        }
+
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        try (OutputStream out = response.getOutputStream()) {
+            writer.writeTo(out, boundary);
         }
     }
 
@@ -241,7 +344,54 @@ public class WarcsController {
         }
     }
 
-    private boolean serveTextFromCache(HttpServletRequest request, HttpServletResponse response, Warc warc, List<CollectionMatcher> collections) throws IOException {
+    /**
+     * Selects a subset of a WARC's documents by record offset or URL. Lets clients fetch a single document (offset or
+     * url) or resume part way through a WARC (after, limit).
+     */
+    static class DocumentRange {
+        final Long offset;
+        final Long after;
+        final String url;
+        final int limit;
+
+        DocumentRange(Long offset, Long after, String url, Integer limit) {
+            this.offset = offset;
+            this.after = after;
+            this.url = url;
+            this.limit = limit == null ? Integer.MAX_VALUE : limit;
+        }
+
+        static DocumentRange fromRequest(HttpServletRequest request) {
+            String offset = request.getParameter("offset");
+            String after = request.getParameter("after");
+            String url = request.getParameter("url");
+            String limit = request.getParameter("limit");
+            if (offset == null && after == null && url == null && limit == null) return null;
+            try {
+                return new DocumentRange(offset == null ? null : Long.parseLong(offset),
+                        after == null ? null : Long.parseLong(after), url,
+                        limit == null ? null : Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid offset, after or limit");
+            }
+        }
+
+        boolean matches(long warcOffset, String docUrl) {
+            return (offset == null || warcOffset == offset) && (after == null || warcOffset > after) &&
+                    (url == null || url.equals(docUrl));
+        }
+
+        /**
+         * Like matches but using the text cache's index, so documents can be skipped without reading them.
+         */
+        boolean matches(TextCache.IndexEntry entry) {
+            return (offset == null || entry.warcOffset == offset) && (after == null || entry.warcOffset > after) &&
+                    (url == null || entry.hasUrl(url));
+        }
+    }
+
+    private boolean serveTextFromCache(HttpServletRequest request, HttpServletResponse response, Warc warc,
+                                       List<CollectionMatcher> collections, DocumentRange range) throws IOException {
         if (textCache == null) return false;
         if (!textCache.isCurrent(warc)) {
             textCache.invalidate(warc.getId());
@@ -252,7 +402,15 @@ public class WarcsController {
 
         response.setContentType("application/json");
 
-        if ("false".equals(request.getParameter("populateCollections"))) {
+        if (range != null && file.equals(textCache.entryPath(warc.getId()))) {
+            List<TextCache.IndexEntry> index = textCache.readIndex(warc.getId());
+            if (index != null) {
+                serveIndexedText(response, warc, collections, range, index);
+                return true;
+            }
+        }
+
+        if (range == null && "false".equals(request.getParameter("populateCollections"))) {
             try (InputStream in = Files.newInputStream(file, READ)) {
                 InputStream stream;
                 if ("gzip".equals(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
@@ -271,12 +429,15 @@ public class WarcsController {
              JsonReader reader = gson.newJsonReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file), 8192), UTF_8))) {
             reader.beginArray();
             writer.beginArray();
-            while (reader.hasNext()) {
+            int count = 0;
+            while (reader.hasNext() && (range == null || count < range.limit)) {
                 Document doc = gson.fromJson(reader, Document.class);
+                if (range != null && !range.matches(doc.getWarcOffset(), doc.getUrl())) continue;
                 populateCollectionInfo(collections, doc);
                 gson.toJson(doc, Document.class, writer);
+                count++;
             }
-            reader.endArray();
+            if (range == null) reader.endArray();
             writer.endArray();
             writer.flush();
             return true;
@@ -288,6 +449,32 @@ public class WarcsController {
         }
     }
 
+    private void serveIndexedText(HttpServletResponse response, Warc warc, List<CollectionMatcher> collections,
+                                  DocumentRange range, List<TextCache.IndexEntry> index) throws IOException {
+        try (JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(response.getOutputStream(), UTF_8));
+             FileChannel channel = FileChannel.open(textCache.entryPath(warc.getId()))) {
+            writer.beginArray();
+            int count = 0;
+            for (TextCache.IndexEntry entry : index) {
+                if (count >= range.limit) break;
+                if (!range.matches(entry)) continue;
+                Document doc = textCache.readDocument(channel, entry);
+                populateCollectionInfo(collections, doc);
+                gson.toJson(doc, Document.class, writer);
+                count++;
+            }
+            writer.endArray();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns extracted text for the records of a WARC as a JSON array.
+     * <p>
+     * Optional parameters: offset (only the record at this WARC offset), url (only records of this URL), after (only
+     * records after this WARC offset) and limit (maximum number of records). When the text is cached, offset and url
+     * are looked up in the cache entry's index so only the matching documents are decompressed.
+     */
     @GetMapping(value = "/warcs/{id}/text", produces = "application/json")
     public void showText(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) throws IOException {
 
@@ -302,59 +489,45 @@ public class WarcsController {
                            Crawl crawl) throws IOException {
         List<CollectionMatcher> collections = wa.collections.findByCrawlSeriesId(crawl.getCrawlSeriesId())
                 .stream().map(CollectionMatcher::new).collect(Collectors.toList());
+        DocumentRange range = DocumentRange.fromRequest(request);
 
-        if (serveTextFromCache(request, response, warc, collections)) {
+        if (serveTextFromCache(request, response, warc, collections, range)) {
             return;
         }
 
         response.setContentType("application/json");
 
-        OutputStream out = response.getOutputStream();
-        Path cachePath = null;
-        Path tmpCachePath = null;
-        OutputStream cacheStream = null;
-        if (textCache != null) {
-            cachePath = textCache.entryPath(warc.getId());
-            tmpCachePath = Paths.get(cachePath.toString() + ".tmp");
-            Files.createDirectories(tmpCachePath.getParent());
-            cacheStream = new GZIPOutputStream(Files.newOutputStream(tmpCachePath, WRITE, CREATE, TRUNCATE_EXISTING), 8192);
-            out = new TeeOutputStream(out, cacheStream);
-        }
-
-        OutputStreamWriter streamWriter = new OutputStreamWriter(out, UTF_8);
-        String url = null;
-        try (ArchiveReader reader = wa.warcs.openReader(warc)) {
+        OutputStreamWriter streamWriter = new OutputStreamWriter(response.getOutputStream(), UTF_8);
+        String[] url = new String[1];
+        int[] count = new int[1];
+        try (TextCache.EntryWriter cacheEntry = textCache == null ? null : textCache.newEntry(warc);
+             InputStream stream = wa.warcs.openStream(warc)) {
             JsonWriter writer = gson.newJsonWriter(streamWriter);
             writer.beginArray();
-            for (ArchiveRecord record : reader) {
-                url = record.getHeader().getUrl();
-                if (url == null) continue;
-                try {
-                    Document doc = wa.textExtractor.extract(record);
+            new WarcPipeline().text(wa.textExtractor, doc -> {
+                url[0] = doc.getUrl();
+                if (cacheEntry != null) {
+                    cacheEntry.accept(doc);
+                }
+                if (range == null || (count[0] < range.limit && range.matches(doc.getWarcOffset(), doc.getUrl()))) {
                     populateCollectionInfo(collections, doc);
                     gson.toJson(doc, Document.class, writer);
-                } catch (TextExtractionException e) {
-                    continue; // skip it
+                    count[0]++;
                 }
-            }
+            }).run(stream, warc.getFilename());
             writer.endArray();
             writer.flush();
 
-            if (tmpCachePath != null) {
-                cacheStream.close();
-                cacheStream = null;
-                Files.move(tmpCachePath, cachePath, StandardCopyOption.REPLACE_EXISTING);
-                textCache.writeMetadata(warc);
+            if (cacheEntry != null) {
+                cacheEntry.commit();
             }
         } catch (Exception | StackOverflowError e) {
-            String message = "Text extraction failed. warcId=" + warc.getId() + " path=" + warc.getPath() + " recordUrl=" + url;
+            String message = "Text extraction failed. warcId=" + warc.getId() + " path=" + warc.getPath() + " recordUrl=" + url[0];
             log.error(message, e);
             streamWriter.write("\n\n" + message + "\n");
             e.printStackTrace(new PrintWriter(streamWriter));
         } finally {
             streamWriter.close(); // ensure output stream always closed to avoid gzip issues
-            if (cacheStream != null) cacheStream.close();
-            if (tmpCachePath != null) Files.deleteIfExists(tmpCachePath);
         }
     }
 
@@ -6,6 +6,7 @@ import org.jdbi.v3.sqlobject.config.RegisterConstructorMapper;
 import org.jdbi.v3.sqlobject.config.RegisterRowMapper;
 import org.jdbi.v3.sqlobject.customizer.Bind;
 import org.jdbi.v3.sqlobject.customizer.BindBean;
+import org.jdbi.v3.sqlobject.customizer.BindList;
 import org.jdbi.v3.sqlobject.statement.GetGeneratedKeys;
 import org.jdbi.v3.sqlobject.statement.SqlBatch;
 import org.jdbi.v3.sqlobject.statement.SqlQuery;
@@ -82,6 +83,28 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
     @SqlUpdate("UPDATE crawl SET warc_files = warc_files + :warc_files, warc_size = warc_size + :warc_size WHERE id = :crawlId")
     void incrementWarcStatsForCrawlInternal(@Bind("crawlId") long crawlId, @Bind("warc_files") int warcFilesDelta, @Bind("warc_size") long warcSizeDelta);
 
+    @SqlQuery("SELECT warc_history_id FROM rollup_checkpoint WHERE id = 1")
+    long selectRollupCheckpoint();
+
+    @SqlUpdate("UPDATE rollup_checkpoint SET warc_history_id = :warcHistoryId WHERE id = 1")
+    int updateRollupCheckpoint(@Bind("warcHistoryId") long warcHistoryId);
+
+    @SqlQuery("SELECT COALESCE(MAX(id), 0) FROM warc_history")
+    long selectMaxWarcHistoryId();
+
+    String CRAWLS_CHANGED_SINCE = "SELECT crawl_id FROM warc WHERE warc_state_id = " + Warc.OPEN + " UNION " +
+            "SELECT warc.crawl_id FROM warc_history JOIN warc ON warc.id = warc_history.warc_id WHERE warc_history.id > :warcHistoryId";
+
+    @SqlUpdate("UPDATE crawl SET warc_files = (SELECT COUNT(*) FROM warc WHERE warc.crawl_id = crawl.id AND warc.warc_state_id <> " + Warc.DELETED + "),\n" +
+            "warc_size = (SELECT COALESCE(SUM(size), 0) FROM warc WHERE warc.crawl_id = crawl.id AND warc.warc_state_id <> " + Warc.DELETED + ")\n" +
+            "WHERE id IN (" + CRAWLS_CHANGED_SINCE + ")")
+    int recalculateWarcStatsForCrawlsChangedSince(@Bind("warcHistoryId") long warcHistoryId);
+
+    @SqlUpdate("UPDATE crawl_series SET warc_files = (SELECT COALESCE(SUM(warc_files), 0) FROM crawl WHERE crawl.crawl_series_id = crawl_series.id),\n" +
+            "warc_size = (SELECT COALESCE(SUM(warc_size), 0) FROM crawl WHERE crawl.crawl_series_id = crawl_series.id)\n" +
+            "WHERE id IN (SELECT crawl_series_id FROM crawl WHERE id IN (" + CRAWLS_CHANGED_SINCE + "))")
+    int recalculateWarcStatsForSeriesChangedSince(@Bind("warcHistoryId") long warcHistoryId);
+
     @SqlUpdate("INSERT INTO warc (crawl_id, path, filename, size, warc_state_id, sha256, blob_id) VALUES (:crawlId, :path, :filename, :size, :stateId, :sha256, :blobId)")
     @GetGeneratedKeys
     long insertWarcWithoutRollup(@Bind("crawlId") long crawlId, @Bind("stateId") int stateId, @Bind("path") String path, @Bind("filename") String filename, @Bind("size") long size, @Bind("sha256") String sha256, @Bind("blobId") Long blobId);
@@ -93,14 +116,14 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
     @SqlQuery("SELECT * FROM warc")
     List<Warc> listWarcs();
 
-    @SqlQuery("SELECT * FROM warc WHERE id > :fromId LIMIT :limit")
+    @SqlQuery("SELECT * FROM warc WHERE id > :fromId ORDER BY id LIMIT :limit")
     List<Warc> streamWarcs(@Bind("fromId") long fromId, @Bind("limit") int limit);
 
     @SqlQuery("SELECT * FROM warc " +
             "LEFT JOIN crawl ON warc.crawl_id = crawl.id " +
             "WHERE warc.id > :fromId AND " +
             "crawl.crawl_series_id = :seriesId " +
-            "LIMIT :limit")
+            "ORDER BY warc.id LIMIT :limit")
     List<Warc> streamWarcsInSeries(@Bind("fromId") long fromId, @Bind("seriesId") long seriesId, @Bind("limit") int limit);
 
     @SqlQuery("SELECT * FROM warc WHERE id = :warcId FOR UPDATE")
@@ -130,14 +153,17 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
     @SqlQuery("SELECT COUNT(*) FROM warc WHERE crawl_id = :crawlId")
     long countWarcsWithCrawlId(@Bind("crawlId") long crawlId);
 
-    @SqlQuery("SELECT * FROM warc WHERE warc_state_id = :stateId LIMIT :limit OFFSET :offset")
-    List<Warc> paginateWarcsInState(@Bind("stateId") int stateId, @Bind("limit") long limit, @Bind("offset") long offset);
+    @SqlQuery("SELECT * FROM warc WHERE warc_state_id = :stateId AND id > :afterId ORDER BY id LIMIT :limit")
+    List<Warc> paginateWarcsInStateAfter(@Bind("stateId") int stateId, @Bind("afterId") long afterId, @Bind("limit") long limit);
 
-    @SqlQuery("SELECT * FROM warc WHERE crawl_id = :crawlId ORDER BY filename LIMIT :limit OFFSET :offset")
+    @SqlQuery("SELECT * FROM warc WHERE crawl_id = :crawlId ORDER BY filename, id LIMIT :limit OFFSET :offset")
     List<Warc> paginateWarcsInCrawl(@Bind("crawlId") long crawlId, @Bind("limit") long limit, @Bind("offset") long offset);
 
-    @SqlQuery("SELECT * FROM warc WHERE crawl_id = :crawlId AND warc_state_id = :stateId LIMIT :limit OFFSET :offset")
-    List<Warc> paginateWarcsInCrawlAndState(@Bind("crawlId") long crawlId, @Bind("stateId") int stateId, @Bind("limit") long limit, @Bind("offset") long offset);
+    @SqlQuery("SELECT * FROM warc WHERE crawl_id = :crawlId AND (filename > :filename OR (filename = :filename AND id > :id)) ORDER BY filename, id LIMIT :limit")
+    List<Warc> paginateWarcsInCrawlAfter(@Bind("crawlId") long crawlId, @Bind("filename") String filename, @Bind("id") long id, @Bind("limit") long limit);
+
+    @SqlQuery("SELECT * FROM warc WHERE crawl_id = :crawlId AND warc_state_id = :stateId AND id > :afterId ORDER BY id LIMIT :limit")
+    List<Warc> paginateWarcsInCrawlAndStateAfter(@Bind("crawlId") long crawlId, @Bind("stateId") int stateId, @Bind("afterId") long afterId, @Bind("limit") long limit);
 
     @SqlQuery("SELECT COUNT(*) FROM warc WHERE crawl_id = :it AND warc_state_id = :stateId")
     long countWarcsInCrawlAndState(@Bind("it") long crawlId, @Bind("stateId") int stateId);
@@ -146,11 +172,18 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
     int updateWarcStateWithoutHistory(@Bind("warcId") long warcId, @Bind("stateId") int stateId);
 
     @SqlUpdate("INSERT INTO warc_history (warc_id, warc_state_id) VALUES (:warcId, :stateId)")
-    int insertWarcHistory(@Bind("warcId") long warcId, @Bind("stateId") int stateId);
+    @GetGeneratedKeys
+    long insertWarcHistory(@Bind("warcId") long warcId, @Bind("stateId") int stateId);
 
     @SqlUpdate("UPDATE warc SET records = :stats.records, record_bytes = :stats.recordBytes, start_time = :stats.startTime, end_time = :stats.endTime, software = :stats.software WHERE id = :id")
     int updateWarcRecordStats(@Bind("id") long warcId, @BindBean("stats") RecordStats stats);
 
+    @SqlUpdate("UPDATE warc SET indexed_offset = :offset WHERE id = :id")
+    int updateWarcIndexedOffset(@Bind("id") long warcId, @Bind("offset") Long offset);
+
+    @SqlQuery("SELECT indexed_offset FROM warc WHERE id = :id")
+    Long findWarcIndexedOffset(@Bind("id") long warcId);
+
     @SqlUpdate("UPDATE warc SET size = :size WHERE id = :id")
     int updateWarcSizeWithoutRollup(@Bind("id") long warcId, @Bind("size") long size);
 
@@ -169,23 +202,31 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
 
     @SqlUpdate(
             "UPDATE crawl SET " +
-            "  records = records + :records - (SELECT records FROM warc WHERE id = :warcId), " +
-            "  record_bytes = record_bytes + :recordBytes - (SELECT record_bytes FROM warc WHERE id = :warcId), " +
-            "  start_time = COALESCE(LEAST(start_time, :startTime), :startTime), " +
-            "  end_time = COALESCE(GREATEST(end_time, :endTime), :endTime) " +
-            "WHERE id = (SELECT crawl_id FROM warc WHERE id = :warcId)")
-    int updateRecordStatsRollupForCrawl(@Bind("warcId") long warcId, @Bind("records") long records,
-                                        @Bind("recordBytes") long recordBytes, @Bind("startTime") Date startTime,
-                                        @Bind("endTime") Date endTime);
+            "  records = records + :records, " +
+            "  record_bytes = record_bytes + :recordBytes, " +
+            "  start_time = COALESCE(LEAST(start_time, :startTime), start_time, :startTime), " +
+            "  end_time = COALESCE(GREATEST(end_time, :endTime), end_time, :endTime) " +
+            "WHERE id = :crawlId")
+    int incrementRecordStatsForCrawl(@Bind("crawlId") long crawlId, @Bind("records") long records,
+                                     @Bind("recordBytes") long recordBytes, @Bind("startTime") Date startTime,
+                                     @Bind("endTime") Date endTime);
 
     @SqlUpdate(
             "UPDATE crawl_series SET " +
-            "  records = records + :records - (SELECT records FROM warc WHERE id = :warcId), " +
-            "  record_bytes = record_bytes + :recordBytes - (SELECT record_bytes FROM warc WHERE id = :warcId) " +
-            "WHERE id = (SELECT crawl.crawl_series_id FROM crawl INNER JOIN warc ON warc.crawl_id = crawl.id WHERE warc.id = :warcId)")
-    int updateRecordStatsRollupForSeries(@Bind("warcId") long warcId, @Bind("records") long records,
-                                         @Bind("recordBytes") long recordBytes, @Bind("startTime") Date startTime,
-                                         @Bind("endTime") Date endTime);
+            "  records = records + :records, " +
+            "  record_bytes = record_bytes + :recordBytes " +
+            "WHERE id = (SELECT crawl_series_id FROM crawl WHERE id = :crawlId)")
+    int incrementRecordStatsForSeriesByCrawlId(@Bind("crawlId") long crawlId, @Bind("records") long records,
+                                               @Bind("recordBytes") long recordBytes);
+
+    @SqlQuery("SELECT * FROM warc WHERE id IN (<ids>) ORDER BY id FOR UPDATE")
+    List<Warc> selectWarcsForUpdate(@BindList("ids") List<Long> ids);
+
+    @SqlUpdate("UPDATE warc SET records = 0, record_bytes = 0, indexed_offset = NULL WHERE id = :id")
+    int clearWarcRecordCounts(@Bind("id") long warcId);
+
+    @SqlQuery("SELECT * FROM collection_warc WHERE warc_id IN (<warcIds>) ORDER BY collection_id, warc_id FOR UPDATE")
+    List<CollectionWarc> selectCollectionWarcsForUpdate(@BindList("warcIds") List<Long> warcIds);
 
     class CollectionWarcMapper implements RowMapper<CollectionWarc> {
         @Override
@@ -197,9 +238,6 @@ public interface WarcsDAO extends Transactional<WarcsDAO> {
     @SqlQuery("SELECT * FROM collection_warc WHERE collection_id = :collectionId AND warc_id = :warcId")
     CollectionWarc findCollectionWarc(@Bind("collectionId") long collectionId, @Bind("warcId") long warcId);
 
-    @SqlQuery("SELECT * FROM collection_warc WHERE collection_id = :collectionId AND warc_id = :warcId FOR UPDATE")
-    CollectionWarc selectCollectionWarcForUpdate(@Bind("collectionId") long collectionId, @Bind("warcId") long warcId);
-
     @SqlUpdate("DELETE FROM collection_warc WHERE collection_id = :collectionId AND warc_id = :warcId")
     int deleteCollectionWarc(@Bind("collectionId") long collectionId, @Bind("warcId") long warcId);
 
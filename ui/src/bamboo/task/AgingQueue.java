@@ -0,0 +1,79 @@
+package bamboo.task;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A blocking queue that hands out the lowest priority item first, except that once the oldest item has waited
+ * longer than maxWait it is taken next regardless of priority. This stops a steady stream of higher priority items
+ * from starving the rest forever.
+ */
+class AgingQueue<T> {
+    private final PriorityQueue<Entry<T>> byPriority;
+    private final Deque<Entry<T>> byAge = new ArrayDeque<>();
+    private final long maxWaitNanos;
+    private final LongSupplier clock;
+    private int size;
+
+    private static class Entry<T> {
+        final T item;
+        final long enqueuedAt;
+        boolean taken;
+
+        Entry(T item, long enqueuedAt) {
+            this.item = item;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    AgingQueue(Comparator<T> comparator, long maxWait, TimeUnit unit) {
+        this(comparator, maxWait, unit, System::nanoTime);
+    }
+
+    AgingQueue(Comparator<T> comparator, long maxWait, TimeUnit unit, LongSupplier clock) {
+        this.byPriority = new PriorityQueue<>((a, b) -> comparator.compare(a.item, b.item));
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.clock = clock;
+    }
+
+    synchronized void add(T item) {
+        Entry<T> entry = new Entry<>(item, clock.getAsLong());
+        byPriority.add(entry);
+        byAge.add(entry);
+        size++;
+        notifyAll();
+    }
+
+    synchronized T take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        // entries are removed lazily from whichever view they weren't taken from
+        while (byAge.peekFirst().taken) byAge.pollFirst();
+        Entry<T> entry;
+        if (clock.getAsLong() - byAge.peekFirst().enqueuedAt >= maxWaitNanos) {
+            entry = byAge.pollFirst();
+        } else {
+            do {
+                entry = byPriority.poll();
+            } while (entry.taken);
+        }
+        entry.taken = true;
+        size--;
+        return entry.item;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        byPriority.clear();
+        byAge.clear();
+        size = 0;
+    }
+}
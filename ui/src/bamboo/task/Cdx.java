@@ -3,33 +3,31 @@ package bamboo.task;
 import bamboo.crawl.RecordStats;
 import bamboo.util.Urls;
 import org.apache.commons.lang3.StringUtils;
+import org.archive.util.Base32;
 import org.netpreserve.jwarc.*;
 import org.netpreserve.jwarc.cdx.CdxRequestEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static bamboo.task.WarcUtils.cleanUrl;
 import static java.nio.charset.StandardCharsets.US_ASCII;
-import static java.time.ZoneOffset.UTC;
 
 public class Cdx {
     final static Pattern PANDORA_URL_MAP = Pattern.compile("^http://pandora\\.nla\\.gov\\.au/pan/([0-9]+/[0-9-]+)/url\\.map$");
     final static Pattern PANDORA_RECURSIVE_URL = Pattern.compile("^http://pandora\\.nla\\.gov\\.au/pan/([0-9]+/[0-9-]+)/pandora\\.nla\\.gov\\.au/pan/.*");
-    private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(UTC);
     private static final Instant YEAR1990 = Instant.ofEpochMilli(631152000L);
     private static final Logger log = LoggerFactory.getLogger(Cdx.class);
 
@@ -50,8 +48,43 @@ public class Cdx {
     }
 
     public static RecordStats buildIndex(WarcReader reader, PrintWriter out, String filename, boolean allowAliases) throws IOException {
+        return buildIndex(reader, out, filename, allowAliases, null);
+    }
+
+    /**
+     * Receives each indexed response or resource record before its payload has been consumed. This lets other
+     * consumers (such as text extraction) share the same read of the WARC as the CDX indexer.
+     */
+    public interface RecordListener {
+        /**
+         * @param payload the record's payload. May be read as far as needed, the remainder is consumed afterwards.
+         * @param position the offset of the record in the WARC file
+         */
+        void record(WarcCaptureRecord record, InputStream payload, long position) throws IOException;
+    }
+
+    public static RecordStats buildIndex(WarcReader reader, PrintWriter out, String filename, boolean allowAliases,
+                                         RecordListener listener) throws IOException {
+        PandoraAliaser pandoraAliaser = newPandoraAliaser(out, filename, allowAliases);
+        RecordStats stats = buildIndex(reader, out, filename, pandoraAliaser, listener, 0);
+        if (pandoraAliaser != null) pandoraAliaser.finish();
+        return stats;
+    }
+
+    static PandoraAliaser newPandoraAliaser(PrintWriter out, String filename, boolean allowAliases) {
+        return allowAliases && filename.startsWith("nla.arc") ? new PandoraAliaser(out) : null;
+    }
+
+    /**
+     * Indexes records from reader without finishing the pandoraAliaser. This allows a file to be indexed as
+     * several separate ranges.
+     *
+     * @param baseOffset the offset in the file that the reader starts at
+     */
+    static RecordStats buildIndex(WarcReader reader, PrintWriter out, String filename, PandoraAliaser pandoraAliaser,
+                                  RecordListener listener, long baseOffset) throws IOException {
         RecordStats stats = new RecordStats();
-        PandoraAliaser pandoraAliaser = allowAliases && filename.startsWith("nla.arc") ? new PandoraAliaser(out) : null;
+        CdxWriter cdxWriter = new CdxWriter(out);
         WarcRecord record = reader.next().orElse(null);
         while (record != null) {
             try {
@@ -73,6 +106,13 @@ public class Cdx {
                     }
 
                     WarcPayload payload = ((WarcCaptureRecord) record).payload().get();
+                    long position = baseOffset + reader.position();
+                    String digest = payload.digest().map(WarcDigest::base32).orElse(null);
+
+                    if (listener != null) {
+                        digest = notifyListener(listener, (WarcCaptureRecord) record, payload, position, digest);
+                    }
+
                     MediaType type;
                     try {
                         type = payload.type().base();
@@ -82,10 +122,7 @@ public class Cdx {
                     URI id = record.version().getProtocol().equals("ARC") ? null : record.id();
                     String url = ((WarcCaptureRecord) record).target();
                     Instant instant = record.date();
-                    String date = ARC_DATE.format(instant);
                     int status = record instanceof WarcResponse ? ((WarcResponse) record).http().status() : 200;
-                    String digest = payload.digest().map(WarcDigest::base32).orElse(null);
-                    long position = reader.position();
 
                     String redirect = null;
                     if (record instanceof WarcResponse response && status >= 300 && status <= 399) {
@@ -137,7 +174,7 @@ public class Cdx {
 
                     // advance to the next record so we can calculate the length
                     record = reader.next().orElse(null);
-                    long length = reader.position() - position;
+                    long length = baseOffset + reader.position() - position;
 
                     String urlKey = null;
 
@@ -151,7 +188,7 @@ public class Cdx {
                                     String rawUrlKey = url +
                                             (url.contains("?") ? '&' : '?')
                                             + encodedRequest;
-                                    urlKey = URIs.toNormalizedSurt(rawUrlKey);
+                                    urlKey = cdxWriter.surt(rawUrlKey);
                                 }
                                 break;
                             }
@@ -160,29 +197,43 @@ public class Cdx {
                         record = reader.next().orElse(null);
                     }
 
-                    if (urlKey == null) urlKey = URIs.toNormalizedSurt(url);
+                    if (urlKey == null) urlKey = cdxWriter.surt(url);
 
-                    out.printf("%s %s %s %s %d %s %s - %d %d %s%n", urlKey, date, url, escape(type.toString()), status, digest,
-                            redirect == null ? "-" : redirect, length, position, filename);
+                    cdxWriter.write(urlKey, instant, url, type.toString(), status, digest, redirect, length, position,
+                            filename);
                     stats.update(length, Date.from(instant));
                 } else {
                     record = reader.next().orElse(null);
                 }
             } catch (ParsingException e) {
-                log.warn("Bad record in " + filename + " (position " + reader.position() + ")", e);
+                log.warn("Bad record in " + filename + " (position " + (baseOffset + reader.position()) + ")", e);
                 record = reader.next().orElse(null);
             }
         }
 
-        if (pandoraAliaser != null) pandoraAliaser.finish();
         return stats;
     }
 
-    private static String escape(String str) {
-        if (str == null) return null;
-        return str.replace(" ", "%20")
-                .replace("\n", "%0A")
-                .replace("\0", "%00");
+    /**
+     * Passes the payload to the listener. If the record has no payload digest one is calculated as the listener
+     * reads so that the payload doesn't need to be read twice.
+     */
+    private static String notifyListener(RecordListener listener, WarcCaptureRecord record, WarcPayload payload,
+                                         long position, String digest) throws IOException {
+        InputStream stream = payload.body().stream();
+        DigestInputStream digestStream = null;
+        if (digest == null) {
+            try {
+                digestStream = new DigestInputStream(stream, MessageDigest.getInstance("SHA1"));
+                stream = digestStream;
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        listener.record(record, stream, position);
+        if (digestStream == null) return digest;
+        digestStream.transferTo(OutputStream.nullOutputStream());
+        return Base32.encode(digestStream.getMessageDigest().digest());
     }
 
     static class PandoraAliaser {
@@ -193,6 +244,18 @@ public class Cdx {
             this.out = out;
         }
 
+        /**
+         * Copies the state of an aliaser used to index a later range of the same file into this one. Aliases for
+         * url.map records have already been written by the other aliaser so only the index pages are carried over.
+         */
+        void merge(PandoraAliaser other) {
+            if (other.indexPages == null) {
+                indexPages = null;
+            } else if (indexPages != null) {
+                indexPages.addAll(other.indexPages);
+            }
+        }
+
         boolean accept(WarcCaptureRecord record) throws IOException {
             String url = record.target();
 
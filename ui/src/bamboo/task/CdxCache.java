@@ -2,6 +2,7 @@ package bamboo.task;
 
 import bamboo.crawl.Warc;
 import bamboo.crawl.Warcs;
+import bamboo.util.TaskScope;
 import org.netpreserve.jwarc.WarcReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +24,7 @@ public class CdxCache {
     private static final Logger log = LoggerFactory.getLogger(CdxCache.class);
     private final Path root;
     private Warcs warcs;
+    private int concurrency = Runtime.getRuntime().availableProcessors();
 
     public CdxCache(Path root, Warcs warcs) {
         this.root = root;
@@ -56,30 +58,42 @@ public class CdxCache {
         }
     }
 
-    public void populateAll(long startId, long endId) {
+    /**
+     * Sets the number of WARCs read concurrently by populateAll.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void populateAll(long startId, long endId) throws InterruptedException {
         long lastId = startId;
         AtomicLong count = new AtomicLong(0);
 
-        while (lastId < endId) {
-            List<Warc> list = warcs.stream(lastId, 1000);
-            if (list.isEmpty()) {
-                break;
-            }
-
-            list.parallelStream().forEach(warc -> {
-                if (warc.getId() >= endId) {
-                    return;
+        try (TaskScope scope = new TaskScope("CdxCache", concurrency)) {
+            while (lastId < endId) {
+                List<Warc> list = warcs.stream(lastId, 1000);
+                if (list.isEmpty()) {
+                    break;
                 }
-                try {
-                    populate(warc);
-                } catch (Exception e) {
-                    log.error("Error indexing warc " + warc.getId() + " " + warc.getFilename(), e);
+
+                for (Warc warc : list) {
+                    if (warc.getId() >= endId) {
+                        break;
+                    }
+                    scope.fork(() -> {
+                        try {
+                            populate(warc);
+                        } catch (Exception e) {
+                            log.error("Error indexing warc " + warc.getId() + " " + warc.getFilename(), e);
+                        }
+                        long progress = count.incrementAndGet();
+                        System.out.println(progress);
+                    });
                 }
-                long progress = count.incrementAndGet();
-                System.out.println(progress);
-            });
 
-            lastId = list.get(list.size() - 1).getId();
+                lastId = list.get(list.size() - 1).getId();
+            }
+            scope.join();
         }
     }
 }
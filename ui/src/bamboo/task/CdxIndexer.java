@@ -5,34 +5,47 @@ import bamboo.crawl.Collection;
 import bamboo.crawl.*;
 import bamboo.crawl.Collections;
 import bamboo.util.Oidc;
+import bamboo.util.Threads;
+import bamboo.util.Units;
 import org.netpreserve.jwarc.WarcReader;
+import org.netpreserve.jwarc.WarcRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.StreamUtils;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipException;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardOpenOption.*;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class CdxIndexer implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(CdxIndexer.class);
     private static final int BATCH_SIZE = 1024;
+    private static final int REFILL_THRESHOLD = BATCH_SIZE / 4;
+    private static final int SUBMIT_BATCH_SIZE = 4 * 1024 * 1024;
+    private static final int SUBMIT_MAX_IN_FLIGHT = 4;
+    private static final int SUBMIT_MAX_ATTEMPTS = 5;
+    private static final long SUBMIT_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_QUEUE_WAIT_MINUTES = 30;
     private final Warcs warcs;
     private final Crawls crawls;
     private final Collections collections;
@@ -41,6 +54,17 @@ public class CdxIndexer implements Runnable {
     private final int threads;
 
     private Map<Long, Instant> temporaryFailues = new ConcurrentHashMap<>();
+    private volatile TextCache textCache;
+    private final AgingQueue<Warc> queue = new AgingQueue<>(
+            Comparator.comparingLong(Warc::getSize).thenComparingLong(Warc::getId), MAX_QUEUE_WAIT_MINUTES, MINUTES);
+    private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+    private final List<Worker> workers = new ArrayList<>();
+    private volatile boolean closed;
+    private volatile ExecutorService submitExecutor;
+    private volatile ExecutorService rangeExecutor;
+    private long parallelMinSize;
+    private volatile Runnable queueLowListener = () -> {};
+    private final AtomicBoolean refillRequested = new AtomicBoolean();
 
     public CdxIndexer(Warcs warcs, Crawls crawls, Collections collections, LockManager lockManager,
                       Oidc oidc, int threads) {
@@ -52,46 +76,214 @@ public class CdxIndexer implements Runnable {
         this.threads = threads;
     }
 
+    /**
+     * Enables pipelined submission, where batches of CDX lines are POSTed to the CDX servers while the WARC is
+     * still being parsed rather than buffering the whole index in a temp file first.
+     */
+    public synchronized void setPipelined(boolean pipelined) {
+        if (pipelined && submitExecutor == null) {
+            submitExecutor = Threads.newTaskExecutor("CdxSubmitter");
+        } else if (!pipelined && submitExecutor != null) {
+            submitExecutor.shutdown();
+            submitExecutor = null;
+        }
+    }
+
+    /**
+     * Index gzipped WARCs at least this large by splitting them into ranges and indexing each range on a separate
+     * thread. Zero disables parallel indexing.
+     */
+    public synchronized void setParallelMinSize(long parallelMinSize) {
+        this.parallelMinSize = parallelMinSize;
+        if (parallelMinSize > 0 && rangeExecutor == null) {
+            rangeExecutor = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+                Thread thread = new Thread(runnable, "CdxIndexer-range");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else if (parallelMinSize <= 0 && rangeExecutor != null) {
+            rangeExecutor.shutdown();
+            rangeExecutor = null;
+        }
+    }
+
+    /**
+     * When set, text is extracted into the cache during the same pass over the WARC as CDX indexing.
+     */
+    public void setTextCache(TextCache textCache) {
+        this.textCache = textCache;
+    }
+
+    /**
+     * Called when the work queue runs low so that run() can be scheduled to top it up.
+     */
+    public void onQueueLow(Runnable listener) {
+        this.queueLowListener = listener;
+    }
+
+    /**
+     * Tops up the work queue from the database and ensures the worker threads are running. Workers take the
+     * smallest queued WARC first so that a handful of huge WARCs never hold up the rest of the queue, unless the
+     * oldest queued WARC has been waiting more than MAX_QUEUE_WAIT_MINUTES.
+     */
     public void run() {
-        List<Warc> candidates = warcs.findByState(Warc.IMPORTED, BATCH_SIZE);
-        if (!candidates.isEmpty()) {
-            indexWarcs(candidates);
+        startWorkers();
+        refillRequested.set(false);
+        if (queue.size() >= REFILL_THRESHOLD) {
+            return;
+        }
+        Instant now = Instant.now();
+        for (Warc warc : warcs.findByState(Warc.IMPORTED, BATCH_SIZE)) {
+            Instant failedUntil = temporaryFailues.get(warc.getId());
+            if (failedUntil != null && failedUntil.isAfter(now)) {
+                continue;
+            }
+            if (pending.add(warc.getId())) {
+                queue.add(warc);
+            }
         }
     }
 
-    private void indexWarcs(List<Warc> candidates) {
-        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
-        try {
-            for (Warc warc : candidates) {
-                Instant failedUntil = temporaryFailues.get(warc.getId());
-                if (failedUntil != null && failedUntil.isAfter(Instant.now())) {
-                    continue;
+    private synchronized void startWorkers() {
+        if (closed || !workers.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker("CdxIndexer-" + i);
+            workers.add(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads. WARCs being indexed at the time are interrupted and will be retried later.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        workers.clear();
+        queue.clear();
+        pending.clear();
+        setPipelined(false);
+        setParallelMinSize(0);
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized List<Worker> getWorkers() {
+        return new ArrayList<>(workers);
+    }
+
+    public class Worker implements Runnable {
+        private final Thread thread;
+        private volatile Warc current;
+        private volatile long currentStartTime;
+        private volatile long warcsIndexed;
+        private volatile long bytesIndexed;
+        private volatile long busyNanos;
+
+        Worker(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Warc warc;
+                try {
+                    warc = queue.take();
+                } catch (InterruptedException e) {
+                    break;
                 }
-                threadPool.submit(() -> {
-                    try {
-                        String lockName = "warc-" + warc.getId();
-                        if (lockManager.takeLock(lockName)) {
-                            try {
-                                indexWarc(warc);
-                            } finally {
-                                lockManager.releaseLock(lockName);
-                            }
-                        } else {
-                            // warc is locked by someone else, skip it for now.
-                        }
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                        temporarilyFail(warc);
+                if (queue.size() < REFILL_THRESHOLD && refillRequested.compareAndSet(false, true)) {
+                    queueLowListener.run();
+                }
+                current = warc;
+                currentStartTime = System.nanoTime();
+                CompletableFuture<?> committed = null;
+                try {
+                    committed = indexQueuedWarc(warc);
+                } finally {
+                    busyNanos += System.nanoTime() - currentStartTime;
+                    current = null;
+                    // keep it out of the queue until the database says it's no longer IMPORTED
+                    if (committed == null) {
+                        pending.remove(warc.getId());
+                    } else {
+                        committed.whenComplete((r, t) -> pending.remove(warc.getId()));
                     }
-                });
+                }
+                warcsIndexed++;
+                bytesIndexed += warc.getSize();
             }
-            threadPool.shutdown();
-            threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            threadPool.shutdownNow();
         }
+
+        public String getName() {
+            return thread.getName();
+        }
+
+        public Warc getCurrent() {
+            return current;
+        }
+
+        public long getWarcsIndexed() {
+            return warcsIndexed;
+        }
+
+        public long getBytesIndexed() {
+            return bytesIndexed;
+        }
+
+        /**
+         * Average throughput in bytes per second while this worker was busy.
+         */
+        public long getBytesPerSecond() {
+            long nanos = busyNanos;
+            return nanos == 0 ? 0 : (long) (bytesIndexed * 1e9 / nanos);
+        }
+
+        public String getDisplayThroughput() {
+            return Units.displaySize(getBytesPerSecond()) + "/s";
+        }
+    }
+
+    /**
+     * Indexes a queued WARC, returning a future that completes once the result has been committed to the database.
+     * The lock is held until then so no one else picks the WARC up while it's still in the IMPORTED state.
+     */
+    private CompletableFuture<?> indexQueuedWarc(Warc warc) {
+        String lockName = "warc-" + warc.getId();
+        try {
+            if (!lockManager.takeLock(lockName)) {
+                // warc is locked by someone else, skip it for now.
+                return CompletableFuture.completedFuture(null);
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+            temporarilyFail(warc);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<RecordStats> future;
+        try {
+            future = indexWarc(warc, false);
+        } catch (Throwable t) {
+            future = CompletableFuture.failedFuture(t);
+        }
+        return future.whenComplete((stats, t) -> {
+            try {
+                lockManager.releaseLock(lockName);
+            } finally {
+                if (t != null) {
+                    t.printStackTrace();
+                    temporarilyFail(warc);
+                }
+            }
+        });
     }
 
     private void temporarilyFail(Warc warc) {
@@ -100,36 +292,242 @@ public class CdxIndexer implements Runnable {
     }
 
     public RecordStats indexWarc(Warc warc) throws IOException {
-        return indexWarc(warc, false);
+        CompletableFuture<RecordStats> future = indexWarc(warc, false);
+        warcs.flushCompletions();
+        return await(future);
     }
 
     public RecordStats deindexWarc(Warc warc) throws IOException {
-        return indexWarc(warc, true);
+        CompletableFuture<RecordStats> future = indexWarc(warc, true);
+        warcs.flushCompletions();
+        return await(future);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
     }
 
-    private RecordStats indexWarc(Warc warc, boolean deleteMode) throws IOException {
+    /**
+     * Indexes a WARC and queues the database update. The returned future completes with the stats once that has
+     * been committed, or with null if indexing failed and was logged.
+     */
+    private CompletableFuture<RecordStats> indexWarc(Warc warc, boolean deleteMode) throws IOException {
         System.out.println("\nCDX indexing " + warc.getId() + " " + warc.getPath());
 
-        // fetch the list of collections from the database
         List<URL> cdxServerUrls = new ArrayList<>();
-        Crawl crawl = crawls.get(warc.getCrawlId());
         Map<Long, RecordStats> collectionStats = new HashMap<>();
+        findCdxServers(warc, deleteMode, cdxServerUrls, collectionStats);
+
+        RecordStats stats;
+        if (submitExecutor != null) {
+            // pipelined mode: POST batches of CDX lines while the rest of the WARC is still being parsed
+            CdxSubmitter submitter = new CdxSubmitter(cdxServerUrls, oidc, submitExecutor, SUBMIT_BATCH_SIZE,
+                    SUBMIT_MAX_IN_FLIGHT, SUBMIT_MAX_ATTEMPTS, SUBMIT_RETRY_DELAY_MILLIS);
+            boolean submitted = false;
+            try {
+                stats = parseWarc(warc, new PrintWriter(submitter), deleteMode);
+                if (stats == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                submitter.close();
+                submitted = true;
+            } catch (CdxSubmitter.SubmitException e) {
+                log.error("Submitting CDX for warc {} failed", warc.getId(), e.getCause());
+                temporarilyFail(warc);
+                return CompletableFuture.completedFuture(null);
+            } catch (IOException e) {
+                if (submitter.getFailure() == null) throw e;
+                log.error("Submitting CDX for warc {} failed", warc.getId(), e);
+                temporarilyFail(warc);
+                return CompletableFuture.completedFuture(null);
+            } finally {
+                if (!submitted) {
+                    // don't leave the lines already posted for a WARC that failed or was marked CDX_ERROR, but a
+                    // partial delete is left for the retry to finish
+                    submitter.abort(!deleteMode);
+                }
+            }
+        } else {
+            Path tempFile = Files.createTempFile("bamboo-", ".cdx");
+            try (FileChannel tempChannel = FileChannel.open(tempFile, READ, WRITE, CREATE, DELETE_ON_CLOSE)) {
+                PrintWriter printWriter = new PrintWriter(Channels.newOutputStream(tempChannel), false, UTF_8);
+                stats = parseWarc(warc, printWriter, deleteMode);
+                if (stats == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                if (!postCdx(warc, cdxServerUrls, tempChannel)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+        }
+
+        // update the statistics and mark indexing as finished
+        return warcs.completeIndexing(warc.getId(), stats, new HashSet<>(collectionStats.keySet()), deleteMode, null)
+                .thenApply(v -> {
+                    System.out.println("Finished CDX indexing " + warc.getId() + " " + warc.getPath() + " " + stats);
+                    return stats;
+                });
+    }
+
+    /**
+     * Fetches the CDX server of each collection the WARC belongs to from the database.
+     */
+    private void findCdxServers(Warc warc, boolean deleteMode, List<URL> cdxServerUrls,
+                                Map<Long, RecordStats> collectionStats) throws MalformedURLException {
+        Crawl crawl = crawls.get(warc.getCrawlId());
         for (Collection collection: collections.findByCrawlSeriesId(crawl.getCrawlSeriesId())) {
             if (collection.getCdxUrl() != null && !collection.getCdxUrl().isEmpty()) {
                 cdxServerUrls.add(new URL(collection.getCdxUrl() + (deleteMode ? "/delete" : "")));
                 collectionStats.put(collection.getId(), null);
             }
         }
+    }
 
-        RecordStats stats;
+    /**
+     * Submits the CDX records in cdxChannel to each collection's CDX server.
+     *
+     * @return false if a server rejected them, in which case the WARC has been marked for retry later
+     */
+    private boolean postCdx(Warc warc, List<URL> cdxServerUrls, FileChannel cdxChannel) throws IOException {
+        long cdxLength = cdxChannel.size();
+        for (URL url : cdxServerUrls) {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.addRequestProperty("Content-Type", "text/plain");
+            if (oidc != null) {
+                connection.addRequestProperty("Authorization", oidc.accessToken().toAuthorizationHeader());
+            }
+            connection.setFixedLengthStreamingMode(cdxLength);
+            connection.setDoOutput(true);
 
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                cdxChannel.position(0);
+                Channels.newInputStream(cdxChannel).transferTo(outputStream);
+            }
+            if (connection.getResponseCode() != 200) {
+                log.error(url + " returned " + connection.getResponseCode());
+                temporarilyFail(warc);
+                // try again later ?
+                return false;
+            }
+            StreamUtils.drain(connection.getInputStream());
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the records appended to an open WARC since it was last indexed. Only complete records are indexed, so
+     * the next call resumes from the start of any record still being written. Only the new CDX lines are submitted
+     * and the new records are added to the WARC's existing stats. Text extraction is left until the WARC is closed
+     * and indexed in full.
+     *
+     * @return the stats for the new records, or null if indexing failed
+     */
+    public RecordStats indexOpenWarc(Warc warc) throws IOException {
+        Long indexedOffset = warcs.getIndexedOffset(warc.getId());
+        long start = indexedOffset == null ? 0 : indexedOffset;
+        long end;
+        try (SeekableByteChannel channel = warcs.openChannel(warc)) {
+            channel.position(start);
+            end = findCompleteRecordsEnd(channel, start, channel.size());
+        }
+        if (end <= start) {
+            return new RecordStats();
+        }
+        log.info("CDX indexing {} {} from {} to {}", warc.getId(), warc.getPath(), start, end);
+
+        List<URL> cdxServerUrls = new ArrayList<>();
+        Map<Long, RecordStats> collectionStats = new HashMap<>();
+        findCdxServers(warc, false, cdxServerUrls, collectionStats);
+
+        RecordStats stats;
         Path tempFile = Files.createTempFile("bamboo-", ".cdx");
-        try (FileChannel tempChannel = FileChannel.open(tempFile, READ, WRITE, CREATE, DELETE_ON_CLOSE)) {
+        try (FileChannel tempChannel = FileChannel.open(tempFile, READ, WRITE, CREATE, DELETE_ON_CLOSE);
+             SeekableByteChannel channel = warcs.openChannel(warc)) {
             PrintWriter printWriter = new PrintWriter(Channels.newOutputStream(tempChannel), false, UTF_8);
-            // parse the warc file
-            try (WarcReader warcReader = new WarcReader(warcs.openStream(warc))) {
-                stats = Cdx.buildIndex(warcReader, printWriter, warc.getFilename(), !deleteMode);
-                printWriter.flush();
+            channel.position(start);
+            try (WarcReader reader = new WarcReader(new ParallelCdx.BoundedChannel(channel, end - start))) {
+                Cdx.PandoraAliaser pandoraAliaser = Cdx.newPandoraAliaser(printWriter, warc.getFilename(), true);
+                stats = Cdx.buildIndex(reader, printWriter, warc.getFilename(), pandoraAliaser, null, start);
+                if (pandoraAliaser != null) pandoraAliaser.finish();
+            }
+            printWriter.flush();
+            if (!postCdx(warc, cdxServerUrls, tempChannel)) {
+                return null;
+            }
+        }
+
+        // a WARC indexed before offsets were tracked has no stats worth keeping, as it's about to be indexed from 0
+        RecordStats total = indexedOffset == null ? new RecordStats() : RecordStats.of(warc);
+        total.merge(stats);
+        CompletableFuture<Void> future = warcs.completeIndexing(warc.getId(), total,
+                new HashSet<>(collectionStats.keySet()), false, end);
+        warcs.flushCompletions();
+        await(future);
+        return stats;
+    }
+
+    /**
+     * Returns the offset just after the last complete record in the channel, reading from start. A record is known
+     * to be complete once the next record is found after it or the end of the channel is cleanly reached.
+     */
+    static long findCompleteRecordsEnd(SeekableByteChannel channel, long start, long size) throws IOException {
+        long lastRecordStart = -1;
+        try (WarcReader reader = new WarcReader(new ParallelCdx.BoundedChannel(channel, size - start))) {
+            while (true) {
+                Optional<WarcRecord> record = reader.next();
+                if (record.isEmpty()) {
+                    return lastRecordStart < 0 ? start : size;
+                }
+                lastRecordStart = start + reader.position();
+            }
+        } catch (IOException e) {
+            // truncated record, still being written
+            return lastRecordStart < 0 ? start : lastRecordStart;
+        }
+    }
+
+    /**
+     * Parses the warc file writing CDX lines to cdxWriter. Text is extracted into the text cache and the digest
+     * is calculated in the same pass.
+     *
+     * @return the record stats or null if the WARC couldn't be parsed (it will be marked CDX_ERROR)
+     */
+    private RecordStats parseWarc(Warc warc, PrintWriter cdxWriter, boolean deleteMode) throws IOException {
+        TextCache textCache = deleteMode ? null : this.textCache;
+        if (textCache != null && textCache.isCurrent(warc)) {
+            textCache = null;
+        }
+
+        try (TextCache.EntryWriter textEntry = textCache == null ? null : textCache.newEntry(warc)) {
+            WarcPipeline pipeline = new WarcPipeline()
+                    .cdx(cdxWriter, !deleteMode)
+                    .digest("SHA-256");
+            if (textEntry != null) {
+                pipeline.text(textCache.extractor(), textEntry);
+            }
+            try {
+                if (textEntry == null && isParallelCandidate(warc)) {
+                    return parseWarcInParallel(warc, cdxWriter, deleteMode);
+                }
+                WarcPipeline.Result result;
+                try (InputStream stream = warcs.openStream(warc)) {
+                    result = pipeline.run(stream, warc.getFilename());
+                }
+                checkDigest(warc, result.digest);
+                if (textEntry != null) {
+                    textEntry.commit();
+                }
+                return result.stats;
             } catch (RuntimeException e) {
                 if (e.getCause() != null && e.getCause() instanceof ZipException) {
                     warcs.updateState(warc.getId(), Warc.CDX_ERROR);
@@ -151,53 +549,46 @@ public class CdxIndexer implements Runnable {
                     return null;
                 }
             }
-
-            long cdxLength = tempChannel.size();
-            // submit the records to each collection
-            for (URL url : cdxServerUrls) {
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("POST");
-                connection.addRequestProperty("Content-Type", "text/plain");
-                if (oidc != null) {
-                    connection.addRequestProperty("Authorization", oidc.accessToken().toAuthorizationHeader());
-                }
-                connection.setFixedLengthStreamingMode(cdxLength);
-                connection.setDoOutput(true);
-
-                try (OutputStream outputStream = connection.getOutputStream()) {
-                    tempChannel.position(0);
-                    Channels.newInputStream(tempChannel).transferTo(outputStream);
-                }
-                if (connection.getResponseCode() != 200) {
-                    log.error(url + " returned " + connection.getResponseCode());
-                    temporarilyFail(warc);
-                    // try again later ?
-                    return null;
-                }
-                StreamUtils.drain(connection.getInputStream());
-            }
         }
+    }
 
-        // update the statistics in the database
-        warcs.updateRecordStats(warc.getId(), stats, deleteMode);
-        collectionStats.replaceAll((i, v) -> stats);
-        warcs.updateCollections(warc.getId(), collectionStats, deleteMode);
-
-        // mark indexing as finished
-        if (deleteMode) {
-            warcs.updateState(warc.getId(), Warc.DELETED);
-        } else {
-            warcs.markCdxIndexed(warc.getId());
-        }
+    boolean isParallelCandidate(Warc warc) {
+        return rangeExecutor != null && warc.getSize() >= parallelMinSize && warc.getStateId() != Warc.OPEN &&
+                warc.getSha256() != null && (warc.getFilename().endsWith(".warc.gz") || warc.getFilename().endsWith(".arc.gz"));
+    }
 
-        System.out.println("Finished CDX indexing " + warc.getId() + " " + warc.getPath() + " " + stats);
+    /**
+     * Indexes ranges of a large WARC concurrently. The digest can't be split across ranges and calculating it would
+     * mean reading the whole file again, so this is only used for WARCs that already have one, which
+     * {@link bamboo.crawl.Scrub} verifies. WARCs without a digest are indexed sequentially so it's calculated.
+     */
+    private RecordStats parseWarcInParallel(Warc warc, PrintWriter cdxWriter, boolean deleteMode) throws IOException {
+        RecordStats stats = ParallelCdx.buildIndex(() -> warcs.openChannel(warc), warc.getSize(), cdxWriter,
+                warc.getFilename(), !deleteMode, threads, rangeExecutor);
+        cdxWriter.flush();
         return stats;
     }
 
+    private void checkDigest(Warc warc, String sha256) {
+        if (warc.getStateId() == Warc.OPEN) {
+            return; // still being written so the digest isn't final
+        }
+        if (warc.getSha256() == null) {
+            warcs.updateSha256(warc.getId(), sha256);
+        } else if (!warc.getSha256().equals(sha256)) {
+            log.warn("SHA-256 mismatch for warc {} {}: expected {} but calculated {}", warc.getId(),
+                    warc.getPath(), warc.getSha256(), sha256);
+        }
+    }
+
     void indexWarc(long warcId) throws IOException {
         indexWarc(warcs.get(warcId));
     }
 
+    void indexOpenWarc(long warcId) throws IOException {
+        indexOpenWarc(warcs.get(warcId));
+    }
+
     public boolean healthcheck(PrintWriter out) {
         boolean ok = true;
 
@@ -0,0 +1,271 @@
+package bamboo.task;
+
+import bamboo.util.Oidc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A Writer which cuts CDX lines into batches and POSTs each batch to every CDX server while the rest of the
+ * WARC is still being parsed. At most maxInFlight batches are outstanding at once; once that many are queued
+ * further writes block until one completes. Each batch is retried with exponential backoff independently, so a
+ * transient error only resends the affected batch rather than the whole WARC.
+ * <p>
+ * Once a batch has failed every attempt the next write throws {@link SubmitException}, which unlike an
+ * IOException isn't swallowed by PrintWriter, so the parse is abandoned straight away. Submitted batches are
+ * spooled to a temp file so that {@link #abort(boolean)} can delete whatever reached the servers.
+ */
+class CdxSubmitter extends Writer {
+    private static final Logger log = LoggerFactory.getLogger(CdxSubmitter.class);
+
+    private final List<URL> urls;
+    private final Oidc oidc;
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final Semaphore inFlight;
+    private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+    private final StringBuilder buffer = new StringBuilder();
+    private final List<Integer> batchLengths = new ArrayList<>();
+    private volatile IOException failure;
+    private volatile boolean aborted;
+    private FileChannel spool;
+    private long batches;
+
+    /**
+     * Thrown from write() once a batch has failed, carrying the failure.
+     */
+    static class SubmitException extends UncheckedIOException {
+        SubmitException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    CdxSubmitter(List<URL> urls, Oidc oidc, ExecutorService executor, int batchSize, int maxInFlight,
+                 int maxAttempts, long retryDelayMillis) {
+        this.urls = urls;
+        this.oidc = oidc;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.inFlight = new Semaphore(maxInFlight * Math.max(1, urls.size()));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (failure != null) {
+            throw new SubmitException(failure);
+        }
+        buffer.append(cbuf, off, len);
+        if (buffer.length() >= batchSize) {
+            int end = buffer.lastIndexOf("\n") + 1;
+            if (end > 0) {
+                submit(buffer.substring(0, end));
+                buffer.delete(0, end);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // batches are only sent once they are full or the writer is closed
+    }
+
+    /**
+     * Sends any remaining lines and waits for all batches to be accepted by every CDX server.
+     *
+     * @throws IOException if any batch could not be submitted after retrying
+     */
+    @Override
+    public void close() throws IOException {
+        checkFailure();
+        if (buffer.length() > 0) {
+            submit(buffer.toString());
+            buffer.setLength(0);
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            // failure is recorded below
+        }
+        checkFailure();
+        closeSpool();
+    }
+
+    /**
+     * Abandons the submission after a failed or abandoned parse. Stops retrying and waits for the outstanding
+     * batches to finish, then if deindex is true POSTs every submitted batch to each server's /delete endpoint so
+     * the partially indexed WARC doesn't leave orphan lines behind. Failures here are only logged as the WARC will
+     * be indexed again or have its lines deleted by a later deindex.
+     */
+    void abort(boolean deindex) {
+        aborted = true;
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeSpool();
+            return;
+        } catch (ExecutionException e) {
+            // already recorded
+        }
+        try {
+            if (deindex && spool != null) {
+                for (URL url : urls) {
+                    URL deleteUrl = new URL(url + "/delete");
+                    long position = 0;
+                    for (int length : batchLengths) {
+                        ByteBuffer batch = ByteBuffer.allocate(length);
+                        while (batch.hasRemaining()) {
+                            spool.read(batch, position + batch.position());
+                        }
+                        postWithRetry(deleteUrl, batch.array(), false);
+                        position += length;
+                    }
+                }
+                log.info("Deleted {} partially submitted CDX batches", batchLengths.size());
+            }
+        } catch (IOException e) {
+            log.error("Deleting partially submitted CDX batches failed, orphan CDX lines may remain", e);
+        } finally {
+            closeSpool();
+        }
+    }
+
+    long getBatches() {
+        return batches;
+    }
+
+    /**
+     * The first batch failure, or null if none have failed.
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void submit(String lines) throws IOException {
+        byte[] batch = lines.getBytes(UTF_8);
+        try {
+            inFlight.acquire(urls.size());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            // a batch failed while we were waiting for a slot
+            inFlight.release(urls.size());
+            throw new SubmitException(failure);
+        }
+        try {
+            if (spool == null) {
+                spool = FileChannel.open(Files.createTempFile("bamboo-", ".cdx"), READ, WRITE, DELETE_ON_CLOSE);
+            }
+            spool.write(ByteBuffer.wrap(batch));
+            batchLengths.add(batch.length);
+        } catch (IOException e) {
+            inFlight.release(urls.size());
+            throw e;
+        }
+        batches++;
+        for (URL url : urls) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    postWithRetry(url, batch, true);
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e; // keep the first failure rather than the aborts it causes
+                    }
+                    throw new RuntimeException(e);
+                } finally {
+                    inFlight.release();
+                }
+            }, executor));
+        }
+    }
+
+    private void closeSpool() {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                log.warn("Error closing CDX spool", e);
+            }
+            spool = null;
+        }
+    }
+
+    /**
+     * @param abortable whether to give up early if another batch has failed or the submission was aborted
+     */
+    private void postWithRetry(URL url, byte[] batch, boolean abortable) throws IOException {
+        long delay = retryDelayMillis;
+        for (int attempt = 1; ; attempt++) {
+            if (abortable && (failure != null || aborted)) {
+                throw new IOException("aborted due to earlier failure", failure);
+            }
+            try {
+                post(url, batch);
+                return;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                log.warn("CDX batch POST to {} failed (attempt {}/{}), retrying in {}ms: {}", url, attempt,
+                        maxAttempts, delay, e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            delay *= 2;
+        }
+    }
+
+    private void post(URL url, byte[] batch) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.addRequestProperty("Content-Type", "text/plain");
+        if (oidc != null) {
+            connection.addRequestProperty("Authorization", oidc.accessToken().toAuthorizationHeader());
+        }
+        connection.setFixedLengthStreamingMode(batch.length);
+        connection.setDoOutput(true);
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            outputStream.write(batch);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException(url + " returned " + connection.getResponseCode());
+        }
+        StreamUtils.drain(connection.getInputStream());
+    }
+}
@@ -0,0 +1,134 @@
+package bamboo.task;
+
+import org.netpreserve.jwarc.URIs;
+
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.time.ZoneOffset.UTC;
+
+/**
+ * Formats CDX11 lines into a reusable buffer. This produces the same output as the printf formatting that was
+ * previously used but avoids the per-field allocation of Formatter, DateTimeFormatter and chained String.replace.
+ * SURTs are cached as WARCs often contain the same URL several times (revisits, redirects, duplicate captures).
+ */
+class CdxWriter {
+    private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(UTC);
+    private static final String NEWLINE = System.lineSeparator();
+    private static final int SURT_CACHE_SIZE = 4096;
+    private static final long MAX_EPOCH_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+
+    private final PrintWriter out;
+    private final StringBuilder line = new StringBuilder(512);
+    private final char[] date = new char[14];
+    private long dateEpochSecond = Long.MIN_VALUE;
+    private final Map<String, String> surtCache = new LinkedHashMap<>(SURT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > SURT_CACHE_SIZE;
+        }
+    };
+
+    CdxWriter(PrintWriter out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns the normalized SURT for a URL, as per {@link URIs#toNormalizedSurt(String)}.
+     */
+    String surt(String url) {
+        String surt = surtCache.get(url);
+        if (surt == null) {
+            surt = URIs.toNormalizedSurt(url);
+            surtCache.put(url, surt);
+        }
+        return surt;
+    }
+
+    void write(String urlKey, Instant instant, String url, String mimeType, int status, String digest,
+               String redirect, long length, long position, String filename) {
+        StringBuilder line = this.line;
+        line.setLength(0);
+        line.append(urlKey).append(' ');
+        appendDate(line, instant);
+        line.append(' ').append(url).append(' ');
+        appendEscaped(line, mimeType);
+        line.append(' ').append(status)
+                .append(' ').append(digest)
+                .append(' ').append(redirect == null ? "-" : redirect)
+                .append(" - ").append(length)
+                .append(' ').append(position)
+                .append(' ').append(filename)
+                .append(NEWLINE);
+        out.append(line);
+    }
+
+    /**
+     * Appends a 14-digit timestamp (yyyyMMddHHmmss). The last value is cached as consecutive records usually
+     * share the same second.
+     */
+    void appendDate(StringBuilder sb, Instant instant) {
+        long epochSecond = instant.getEpochSecond();
+        if (epochSecond != dateEpochSecond) {
+            if (epochSecond < 0 || epochSecond > MAX_EPOCH_SECOND) {
+                sb.append(ARC_DATE.format(instant));
+                return;
+            }
+            encodeDate(epochSecond, date);
+            dateEpochSecond = epochSecond;
+        }
+        sb.append(date);
+    }
+
+    private static void encodeDate(long epochSecond, char[] buf) {
+        long days = epochSecond / 86400;
+        int secondOfDay = (int) (epochSecond % 86400);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = z / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        putDigits(buf, 0, year, 4);
+        putDigits(buf, 4, month, 2);
+        putDigits(buf, 6, day, 2);
+        putDigits(buf, 8, secondOfDay / 3600, 2);
+        putDigits(buf, 10, secondOfDay / 60 % 60, 2);
+        putDigits(buf, 12, secondOfDay % 60, 2);
+    }
+
+    private static void putDigits(char[] buf, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Appends str with spaces, newlines and nulls percent-encoded.
+     */
+    static void appendEscaped(StringBuilder sb, String str) {
+        if (str == null) {
+            sb.append("null");
+            return;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case ' ' -> sb.append("%20");
+                case '\n' -> sb.append("%0A");
+                case '\0' -> sb.append("%00");
+                default -> sb.append(c);
+            }
+        }
+    }
+}
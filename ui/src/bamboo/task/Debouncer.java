@@ -0,0 +1,112 @@
+package bamboo.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces bursts of signals for the same key into a single call of the action, made once the key has been quiet
+ * for the quiet period (or at most maxDelay after the first signal, so a key that never goes quiet is still handled
+ * periodically). Actions for different keys run concurrently on the worker executor but the action for any one key
+ * never runs concurrently with itself: a signal arriving while it runs causes it to run again afterwards.
+ */
+class Debouncer<K> {
+    private static final Logger log = LoggerFactory.getLogger(Debouncer.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor workers;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final Consumer<K> action;
+    private final Map<K, State> states = new HashMap<>();
+
+    private static class State {
+        long firstSignal;
+        long lastSignal;
+        boolean scheduled;
+        boolean running;
+        boolean dirty;
+    }
+
+    Debouncer(ScheduledExecutorService scheduler, Executor workers, long quietMillis, long maxDelayMillis,
+              Consumer<K> action) {
+        this.scheduler = scheduler;
+        this.workers = workers;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.action = action;
+    }
+
+    synchronized void signal(K key) {
+        long now = System.nanoTime();
+        State state = states.computeIfAbsent(key, k -> new State());
+        state.lastSignal = now;
+        if (state.running) {
+            state.dirty = true;
+        } else if (!state.scheduled) {
+            state.firstSignal = now;
+            state.scheduled = true;
+            schedule(key, quietNanos);
+        }
+    }
+
+    synchronized int pending() {
+        return states.size();
+    }
+
+    private void schedule(K key, long delayNanos) {
+        try {
+            scheduler.schedule(() -> fire(key), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            states.remove(key); // shutting down
+        }
+    }
+
+    private synchronized void fire(K key) {
+        State state = states.get(key);
+        if (state == null) return;
+        long now = System.nanoTime();
+        long quietAt = state.lastSignal + quietNanos;
+        long deadline = state.firstSignal + maxDelayNanos;
+        if (now - quietAt < 0 && now - deadline < 0) {
+            // signalled again since scheduled, wait until it goes quiet
+            schedule(key, Math.min(quietAt - now, deadline - now));
+            return;
+        }
+        state.scheduled = false;
+        state.running = true;
+        try {
+            workers.execute(() -> run(key));
+        } catch (RejectedExecutionException e) {
+            states.remove(key); // shutting down
+        }
+    }
+
+    private void run(K key) {
+        try {
+            action.accept(key);
+        } catch (RuntimeException e) {
+            log.error("Error handling {}", key, e);
+        } finally {
+            synchronized (this) {
+                State state = states.get(key);
+                state.running = false;
+                if (state.dirty) {
+                    state.dirty = false;
+                    state.firstSignal = System.nanoTime();
+                    state.scheduled = true;
+                    schedule(key, quietNanos);
+                } else {
+                    states.remove(key);
+                }
+            }
+        }
+    }
+}
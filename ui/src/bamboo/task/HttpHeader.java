@@ -2,6 +2,7 @@ package bamboo.task;
 
 import org.archive.format.arc.ARCConstants;
 import org.archive.util.LaxHttpParser;
+import org.netpreserve.jwarc.HttpResponse;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,31 +29,49 @@ public class HttpHeader {
         HttpHeader result = new HttpHeader();
         result.status = parseStatusLine(line);
         for (var header : LaxHttpParser.parseHeaders(in, ARCConstants.DEFAULT_ENCODING)) {
-            switch (header.getName().toLowerCase()) {
-                case "location":
-                    try {
-                        result.rawLocation = header.getValue();
-                        URL url = new URL(targetUrl);
-                        result.location = new URL(url, header.getValue()).toString().replace(" ", "%20");
-                    } catch (MalformedURLException e) {
-                        // skip it
-                    }
-                    break;
-                case "content-type":
-                    result.contentType = header.getValue();
-                    break;
-                case "content-encoding":
-                    String[] encodings = header.getValue().split(",");
-                    for (String encoding: encodings) {
-                        if (encoding.trim().toLowerCase(Locale.ROOT).equals("br")) {
-                            result.brotli = true;
-                        }
-                    }
-            }
+            result.addField(header.getName(), header.getValue(), targetUrl);
         }
         return result;
     }
 
+    /**
+     * Builds a header from an HTTP response already parsed by jwarc.
+     */
+    public static HttpHeader from(HttpResponse response, String targetUrl) {
+        HttpHeader result = new HttpHeader();
+        result.status = response.status();
+        response.headers().map().forEach((name, values) -> {
+            for (String value : values) {
+                result.addField(name, value, targetUrl);
+            }
+        });
+        return result;
+    }
+
+    private void addField(String name, String value, String targetUrl) {
+        switch (name.toLowerCase()) {
+            case "location":
+                try {
+                    rawLocation = value;
+                    URL url = new URL(targetUrl);
+                    location = new URL(url, value).toString().replace(" ", "%20");
+                } catch (MalformedURLException e) {
+                    // skip it
+                }
+                break;
+            case "content-type":
+                contentType = value;
+                break;
+            case "content-encoding":
+                String[] encodings = value.split(",");
+                for (String encoding: encodings) {
+                    if (encoding.trim().toLowerCase(Locale.ROOT).equals("br")) {
+                        brotli = true;
+                    }
+                }
+        }
+    }
+
     private static final Pattern STATUS_LINE = Pattern.compile("\\s*\\S+\\s+(\\d+)(?:\\s.*|$)", Pattern.DOTALL);
 
     static int parseStatusLine(String line) {
@@ -0,0 +1,227 @@
+package bamboo.task;
+
+import bamboo.crawl.RecordStats;
+import org.netpreserve.jwarc.WarcReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Builds a CDX index for a gzipped WARC or ARC file by splitting it at gzip member boundaries and indexing each
+ * range on a separate thread. The output is identical to {@link Cdx#buildIndex(WarcReader, PrintWriter, String)}.
+ * <p>
+ * Ranges are never started on a request record so that a response and its concurrent POST request (which
+ * contributes to the URL key) always end up in the same range.
+ */
+public class ParallelCdx {
+    private static final Logger log = LoggerFactory.getLogger(ParallelCdx.class);
+    private static final Pattern ARC_HEADER = Pattern.compile("^\\S+ \\S+ \\d{14} \\S+ \\d+\n[\\s\\S]*");
+    private static final Pattern REQUEST_TYPE = Pattern.compile("^WARC-Type:[ \t]*request[ \t]*\r?$",
+            Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    public interface ChannelOpener {
+        SeekableByteChannel open() throws IOException;
+    }
+
+    public static RecordStats buildIndex(ChannelOpener opener, long size, PrintWriter out, String filename,
+                                         boolean allowAliases, int parts, ExecutorService executor) throws IOException {
+        List<Long> boundaries;
+        try (SeekableByteChannel channel = opener.open()) {
+            boundaries = findBoundaries(channel, size, parts);
+        }
+        log.debug("Indexing {} in {} ranges split at {}", filename, boundaries.size() - 1, boundaries);
+
+        List<Path> outputs = new ArrayList<>();
+        List<Future<Segment>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < boundaries.size() - 1; i++) {
+                long start = boundaries.get(i);
+                long end = boundaries.get(i + 1);
+                Path tempFile = Files.createTempFile("bamboo-", ".cdx");
+                outputs.add(tempFile);
+                futures.add(executor.submit(() -> indexRange(opener, start, end, tempFile, filename, allowAliases)));
+            }
+
+            // merge the results in offset order
+            RecordStats stats = new RecordStats();
+            Cdx.PandoraAliaser pandoraAliaser = Cdx.newPandoraAliaser(out, filename, allowAliases);
+            for (int i = 0; i < futures.size(); i++) {
+                Segment segment = get(futures.get(i));
+                try (Reader reader = Files.newBufferedReader(outputs.get(i), UTF_8)) {
+                    reader.transferTo(out);
+                }
+                stats.merge(segment.stats);
+                if (pandoraAliaser != null) pandoraAliaser.merge(segment.pandoraAliaser);
+            }
+            if (pandoraAliaser != null) pandoraAliaser.finish();
+            return stats;
+        } finally {
+            for (Future<Segment> future : futures) {
+                future.cancel(true);
+            }
+            for (Path output : outputs) {
+                Files.deleteIfExists(output);
+            }
+        }
+    }
+
+    private static Segment get(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static class Segment {
+        final RecordStats stats;
+        final Cdx.PandoraAliaser pandoraAliaser;
+
+        Segment(RecordStats stats, Cdx.PandoraAliaser pandoraAliaser) {
+            this.stats = stats;
+            this.pandoraAliaser = pandoraAliaser;
+        }
+    }
+
+    private static Segment indexRange(ChannelOpener opener, long start, long end, Path output, String filename,
+                                      boolean allowAliases) throws IOException {
+        try (SeekableByteChannel channel = opener.open();
+             PrintWriter out = new PrintWriter(Files.newBufferedWriter(output, UTF_8))) {
+            channel.position(start);
+            Cdx.PandoraAliaser pandoraAliaser = Cdx.newPandoraAliaser(out, filename, allowAliases);
+            try (WarcReader reader = new WarcReader(new BoundedChannel(channel, end - start))) {
+                RecordStats stats = Cdx.buildIndex(reader, out, filename, pandoraAliaser, null, start);
+                out.flush();
+                return new Segment(stats, pandoraAliaser);
+            }
+        }
+    }
+
+    /**
+     * Scans forward from evenly spaced target offsets for the start of a gzip member that begins a record we can
+     * safely split at. Returns a list of offsets starting with 0 and ending with size.
+     */
+    static List<Long> findBoundaries(SeekableByteChannel channel, long size, int parts) throws IOException {
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        for (int part = 1; part < parts; part++) {
+            long target = Math.max(size * part / parts, boundaries.get(boundaries.size() - 1) + 1);
+            long limit = size * (part + 1) / parts;
+            long boundary = scan(channel, buffer, target, limit);
+            if (boundary >= 0) {
+                boundaries.add(boundary);
+            }
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    private static long scan(SeekableByteChannel channel, ByteBuffer buffer, long from, long limit) throws IOException {
+        long bufferStart = from;
+        while (bufferStart < limit) {
+            buffer.clear();
+            channel.position(bufferStart);
+            int n = channel.read(buffer);
+            if (n < 3) return -1;
+            for (int i = 0; i + 2 < n; i++) {
+                if (buffer.get(i) == 0x1f && buffer.get(i + 1) == (byte) 0x8b && buffer.get(i + 2) == 0x08) {
+                    long candidate = bufferStart + i;
+                    if (candidate >= limit) return -1;
+                    if (isSplittableRecord(channel, candidate)) {
+                        return candidate;
+                    }
+                }
+            }
+            bufferStart += n - 2;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether a gzip member really starts at offset and contains a WARC or ARC record other than a request.
+     */
+    static boolean isSplittableRecord(SeekableByteChannel channel, long offset) throws IOException {
+        channel.position(offset);
+        byte[] header = new byte[1024];
+        int n = 0;
+        try {
+            InputStream stream = new GZIPInputStream(Channels.newInputStream(channel), 1024);
+            while (n < header.length) {
+                int read = stream.read(header, n, header.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+        } catch (IOException e) {
+            return false; // not actually a gzip member
+        }
+        String text = new String(header, 0, n, ISO_8859_1);
+        if (text.startsWith("WARC/")) {
+            int endOfHeaders = text.indexOf("\r\n\r\n");
+            String headers = endOfHeaders < 0 ? text : text.substring(0, endOfHeaders);
+            return !REQUEST_TYPE.matcher(headers).find();
+        }
+        return !text.startsWith("filedesc:") && ARC_HEADER.matcher(text).matches();
+    }
+
+    /**
+     * Reads at most limit bytes from the underlying channel.
+     */
+    static class BoundedChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private long remaining;
+
+        BoundedChannel(ReadableByteChannel channel, long limit) {
+            this.channel = channel;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0) return -1;
+            int n;
+            if (dst.remaining() > remaining) {
+                ByteBuffer slice = dst.slice();
+                slice.limit((int) remaining);
+                n = channel.read(slice);
+                if (n > 0) dst.position(dst.position() + n);
+            } else {
+                n = channel.read(dst);
+            }
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
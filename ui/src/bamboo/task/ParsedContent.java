@@ -0,0 +1,64 @@
+package bamboo.task;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a {@link Document} that depend only on the payload. Links are kept unresolved so the same parse
+ * result can be applied to captures of the payload at different URLs.
+ */
+class ParsedContent {
+    private static final Logger log = LoggerFactory.getLogger(ParsedContent.class);
+
+    String contentType;
+    String text;
+    String title;
+    String description;
+    String keywords;
+    String publisher;
+    String creator;
+    String contributor;
+    String coverage;
+    List<String> h1;
+    String ogSiteName;
+    String ogTitle;
+    List<LinkInfo> links = new ArrayList<>();
+
+    void applyTo(Document doc, URI baseUrl) {
+        doc.setText(text);
+        doc.setTitle(title);
+        doc.setDescription(description);
+        doc.setKeywords(keywords);
+        doc.setPublisher(publisher);
+        doc.setCreator(creator);
+        doc.setContributor(contributor);
+        doc.setCoverage(coverage);
+        doc.setH1(h1);
+        doc.setOgSiteName(ogSiteName);
+        doc.setOgTitle(ogTitle);
+        for (LinkInfo link : links) {
+            LinkInfo info = new LinkInfo();
+            info.setType(link.getType());
+            info.setHref(link.getHref());
+            info.setText(link.getText());
+            info.setRel(link.getRel());
+            info.setTitle(link.getTitle());
+            if (baseUrl != null) {
+                String url = null;
+                try {
+                    url = baseUrl.resolve(link.getHref()).toString();
+                    info.setUrl(WarcUtils.cleanUrl(url));
+                } catch (IllegalArgumentException e) {
+                    // bad url
+                } catch (StackOverflowError e) {
+                    log.warn("URL caused stackoverflow: " + url);
+                }
+            }
+            doc.addLink(info);
+        }
+    }
+}
@@ -5,21 +5,32 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.Timestamp;
 import java.time.Instant;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+/**
+ * Runs each enabled task on its own thread so a long-running task can't hold up the others. A task runs when
+ * signalled that there may be new work for it, or after the poll interval as a fallback for changes made by other
+ * processes.
+ */
 public class TaskManager implements Runnable, AutoCloseable {
     private final Logger log  = LoggerFactory.getLogger(getClass());
     private final TaskDAO dao;
-    private final Map<String, Runnable> runnables = new HashMap<>();
-    private final Map<String, ScheduledFuture<?>> futures = new HashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    private final Map<String, Runnable> runnables = new ConcurrentHashMap<>();
+    private final Map<String, Worker> workers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TaskManager");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long pollIntervalMillis = 60000;
+    private volatile boolean started;
 
     public TaskManager(TaskDAO dao) {
         this.dao = dao;
@@ -31,21 +42,53 @@ public class TaskManager implements Runnable, AutoCloseable {
         runnables.put(task.getId(), runnable);
     }
 
-    public void run() {
+    /**
+     * Sets how long an idle task waits for a signal before running anyway.
+     */
+    public void setPollInterval(long millis) {
+        this.pollIntervalMillis = millis;
+    }
+
+    /**
+     * Wakes the given task to look for new work. If it is already running it will run again once it finishes.
+     */
+    public void signal(Runnable runnable) {
+        Worker worker = workers.get(new Task(runnable).getId());
+        if (worker != null) {
+            worker.signal();
+        }
+    }
+
+    /**
+     * Starts workers for newly enabled tasks and stops those for disabled ones.
+     */
+    public synchronized void run() {
         for (Task task : dao.listTasks()) {
             if (task.isEnabled()) {
                 Runnable runnable = runnables.get(task.getId());
                 if (runnable == null) continue;
-                futures.computeIfAbsent(task.getId(), (id) -> scheduler.scheduleWithFixedDelay(wrap(id, runnable), 0, 1, SECONDS));
-            } else if (!task.isEnabled()) {
-                Future<?> future = futures.remove(task.getId());
-                if (future != null) {
-                    future.cancel(true);
+                workers.computeIfAbsent(task.getId(), id -> new Worker(id, runnable));
+            } else {
+                Worker worker = workers.remove(task.getId());
+                if (worker != null) {
+                    worker.stop();
                 }
             }
         }
     }
 
+    /**
+     * Applies changes to the enabled flags now instead of waiting for the next periodic check.
+     */
+    public void refresh() {
+        if (!started) return;
+        try {
+            scheduler.execute(this);
+        } catch (RejectedExecutionException e) {
+            // closing
+        }
+    }
+
     private Runnable wrap(String id, Runnable runnable) {
         return () -> {
             try {
@@ -62,10 +105,59 @@ public class TaskManager implements Runnable, AutoCloseable {
     }
 
     public void start() {
-        scheduler.scheduleWithFixedDelay(this, 0, 1, SECONDS);
+        started = true;
+        scheduler.scheduleWithFixedDelay(this, 0, 10, SECONDS);
     }
 
     public void close() {
         scheduler.shutdownNow();
+        for (Worker worker : workers.values()) {
+            worker.stop();
+        }
+        workers.clear();
+    }
+
+    private class Worker implements Runnable {
+        private final Runnable task;
+        private final Thread thread;
+        private boolean signalled = true;
+        private boolean stopped;
+
+        Worker(String id, Runnable runnable) {
+            this.task = wrap(id, runnable);
+            thread = new Thread(this, id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollIntervalMillis);
+                    try {
+                        for (long remaining = deadline - System.nanoTime(); !signalled && !stopped && remaining > 0;
+                             remaining = deadline - System.nanoTime()) {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (stopped) return;
+                    signalled = false;
+                }
+                task.run();
+            }
+        }
+
+        synchronized void signal() {
+            signalled = true;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+            thread.interrupt();
+        }
     }
 }
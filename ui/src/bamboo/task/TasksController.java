@@ -11,16 +11,23 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.server.ResponseStatusException;
 
 @Controller
 public class TasksController {
     private final Warcs warcs;
     private final TaskDAO taskDAO;
+    private final TaskManager taskManager;
+    private final CdxIndexer cdxIndexer;
+    private final TextExtractor textExtractor;
 
     public TasksController(Bamboo bamboo) {
         this.warcs = bamboo.warcs;
         this.taskDAO = bamboo.dao.tasks();
+        this.taskManager = bamboo.taskManager;
+        this.cdxIndexer = bamboo.cdxIndexer;
+        this.textExtractor = bamboo.textExtractor;
     }
 
     @GetMapping("/tasks")
@@ -34,6 +41,7 @@ public class TasksController {
         if (taskDAO.setEnabled(id, false) == 0) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No such task");
         }
+        taskManager.refresh();
         return "redirect:/tasks";
     }
 
@@ -42,15 +50,24 @@ public class TasksController {
         if (taskDAO.setEnabled(id, true) == 0) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No such task");
         }
+        taskManager.refresh();
         return "redirect:/tasks";
     }
 
     @GetMapping("/tasks/CdxIndexer/queue")
-    String cdxQueue(@RequestParam(value = "page", defaultValue = "1") long page, Model model) {
-        Pager<Warc> pager = warcs.paginateWithState(page, Warc.IMPORTED);
+    String cdxQueue(@RequestParam(value = "after", required = false) String after, Model model) {
+        Pager<Warc> pager = warcs.paginateWithStateAfter(after, Warc.IMPORTED);
         model.addAttribute("queueName", "CDX Indexing");
+        model.addAttribute("queueDepth", cdxIndexer.getQueueDepth());
+        model.addAttribute("workers", cdxIndexer.getWorkers());
         model.addAttribute("warcs", pager.items);
         model.addAttribute("warcsPager", pager);
         return "tasks/warcs";
     }
+
+    @GetMapping(value = "/tasks/TextExtractor/stats", produces = "application/json")
+    @ResponseBody
+    TikaPool.Stats textExtractorStats() {
+        return textExtractor.getStats();
+    }
 }
@@ -2,29 +2,36 @@ package bamboo.task;
 
 import bamboo.app.Bamboo;
 import bamboo.crawl.Warc;
+import bamboo.crawl.WarcHttpClient;
 import bamboo.crawl.Warcs;
+import bamboo.util.TaskScope;
 import com.google.gson.Gson;
 import io.swagger.v3.oas.annotations.servers.Server;
 import org.archive.io.ArchiveReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.OutputStream;
+import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -36,6 +43,7 @@ public class TextCache {
     private final Path root;
     private Warcs warcs;
     private final TextExtractor extractor;
+    private int concurrency = Runtime.getRuntime().availableProcessors();
 
     public static class Metadata {
         long warcId;
@@ -44,16 +52,28 @@ public class TextCache {
         String sha256;
     }
 
+    @Autowired
     public TextCache(@Value("${WARC_TEXT_CACHE}") Path root, Bamboo wa) throws IOException {
+        this(root, wa.warcs, wa.textExtractor);
+        if (wa.cdxIndexer != null) {
+            wa.cdxIndexer.setTextCache(this);
+        }
+    }
+
+    TextCache(Path root, Warcs warcs, TextExtractor extractor) throws IOException {
         this.root = root;
-        this.warcs = wa.warcs;
-        extractor = wa.textExtractor;
+        this.warcs = warcs;
+        this.extractor = extractor;
         log.info("TextCache at {}", root);
         if (Files.exists(root)) {
             Files.createDirectories(root);
         }
     }
 
+    TextExtractor extractor() {
+        return extractor;
+    }
+
     public Path entryPath(long warcId) {
         String dirs = "";
         for (long x = warcId / 1000; x > 0; x /= 1000) {
@@ -109,6 +129,7 @@ public class TextCache {
     }
 
     public void invalidate(long warcId) throws IOException {
+        Files.deleteIfExists(indexPath(warcId));
         Files.deleteIfExists(entryPath(warcId));
         Files.deleteIfExists(rankedPath(warcId));
         Files.deleteIfExists(metadataPath(warcId));
@@ -139,38 +160,209 @@ public class TextCache {
         if (Files.exists(path)) {
             return;
         }
-        Files.createDirectories(path.getParent());
-        Path tmpPath = Paths.get(path.toString() + ".tmp");
-        try {
-            try (ArchiveReader reader = warcs.openReader(warc);
-                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmpPath), 8192)) {
-                extractor.extractAll(reader, out);
+        try (EntryWriter entryWriter = newEntry(warc);
+             InputStream stream = warcs.openStream(warc)) {
+            new WarcPipeline().text(extractor, entryWriter).run(stream, warc.getFilename());
+            entryWriter.commit();
+        }
+    }
+
+    /**
+     * Starts writing a new cache entry for a WARC. Documents can be written by passing them to
+     * {@link EntryWriter#accept(Document)} and once finished {@link EntryWriter#commit()} replaces any existing
+     * entry. Closing without committing discards the new entry.
+     */
+    public EntryWriter newEntry(Warc warc) throws IOException {
+        return new EntryWriter(warc);
+    }
+
+    /**
+     * Cache entries are written as one gzip member per document, so that the concatenated members decompress to a
+     * JSON array but any one document can be read on its own using the offsets in the sidecar index.
+     */
+    public class EntryWriter implements WarcPipeline.DocumentSink, Closeable {
+        private final Warc warc;
+        private final Path path;
+        private final Path tmpPath;
+        private final Path indexTmpPath;
+        private final OutputStream out;
+        private final Writer indexWriter;
+        private final ByteArrayOutputStream memberBuffer = new ByteArrayOutputStream();
+        private long position;
+        private int count;
+        private boolean closed;
+
+        private EntryWriter(Warc warc) throws IOException {
+            this.warc = warc;
+            this.path = entryPath(warc.getId());
+            this.tmpPath = Paths.get(path.toString() + ".tmp");
+            this.indexTmpPath = Paths.get(indexPath(warc.getId()) + ".tmp");
+            Files.createDirectories(path.getParent());
+            out = new BufferedOutputStream(Files.newOutputStream(tmpPath), 65536);
+            indexWriter = Files.newBufferedWriter(indexTmpPath, UTF_8);
+            writeMember("[");
+        }
+
+        private void writeMember(String text) throws IOException {
+            memberBuffer.reset();
+            try (OutputStream gzip = new GZIPOutputStream(memberBuffer, 8192)) {
+                gzip.write(text.getBytes(UTF_8));
             }
+            memberBuffer.writeTo(out);
+            position += memberBuffer.size();
+        }
+
+        @Override
+        public void accept(Document doc) throws IOException {
+            long start = position;
+            writeMember((count++ > 0 ? ",\n" : "\n") + TextExtractor.gson.toJson(doc, Document.class));
+            indexWriter.write(doc.getWarcOffset() + " " + start + " " + (position - start) + " " +
+                    IndexEntry.escapeUrl(doc.getUrl()) + "\n");
+        }
+
+        public void commit() throws IOException {
+            writeMember("\n]");
+            out.close();
+            indexWriter.close();
+            closed = true;
+            // remove the old index first so it's never paired with the new entry
+            Path indexPath = indexPath(warc.getId());
+            Files.deleteIfExists(indexPath);
             Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            Files.move(indexTmpPath, indexPath, ATOMIC_MOVE, REPLACE_EXISTING);
             writeMetadata(warc);
-        } finally {
-            Files.deleteIfExists(tmpPath);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        out.close();
+                    } finally {
+                        indexWriter.close();
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(tmpPath);
+                Files.deleteIfExists(indexTmpPath);
+            }
         }
     }
 
-    public void populateAll(long startId, long endId) {
+    /**
+     * The location of one document within a cache entry.
+     */
+    public static class IndexEntry {
+        public final long warcOffset;
+        public final long position;
+        public final long length;
+        public final String url;
+
+        IndexEntry(long warcOffset, long position, long length, String url) {
+            this.warcOffset = warcOffset;
+            this.position = position;
+            this.length = length;
+            this.url = url;
+        }
+
+        /**
+         * URLs are the last field on an index line, so line breaks are escaped. A missing URL is written as "-".
+         */
+        static String escapeUrl(String url) {
+            return url == null ? "-" : url.replace("\n", "%0A").replace("\r", "%0D");
+        }
+
+        public boolean hasUrl(String url) {
+            return url != null && escapeUrl(url).equals(this.url);
+        }
+
+        static IndexEntry parse(String line) {
+            String[] fields = line.split(" ", 4);
+            return new IndexEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    fields.length > 3 ? fields[3] : null);
+        }
+    }
+
+    public Path indexPath(long warcId) {
+        return Paths.get(entryPath(warcId).toString() + ".idx");
+    }
+
+    /**
+     * Returns the document index for a cached WARC in record order, or null if the entry predates the indexed
+     * format or hasn't been cached.
+     */
+    public List<IndexEntry> readIndex(long warcId) throws IOException {
+        Path path = indexPath(warcId);
+        if (!Files.exists(path) || !Files.exists(entryPath(warcId))) {
+            return null;
+        }
+        try (Stream<String> lines = Files.lines(path, UTF_8)) {
+            return lines.map(IndexEntry::parse).collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a single document from a cache entry without decompressing the rest of it.
+     */
+    public Document readDocument(long warcId, IndexEntry entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(entryPath(warcId))) {
+            return readDocument(channel, entry);
+        }
+    }
+
+    public Document readDocument(FileChannel channel, IndexEntry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(entry.length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.position + buffer.position()) < 0) {
+                throw new EOFException("text cache entry truncated");
+            }
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(buffer.array()), 8192), UTF_8)) {
+            // skip the array separator that precedes each document
+            PushbackReader pushback = new PushbackReader(reader);
+            int c;
+            do {
+                c = pushback.read();
+            } while (c == ',' || Character.isWhitespace(c));
+            if (c != -1) pushback.unread(c);
+            return TextExtractor.gson.fromJson(pushback, Document.class);
+        }
+    }
+
+    /**
+     * Sets the number of WARCs populateAll and populateSeries work on at once. Parsing is separately limited by the
+     * size of the Tika pool.
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void populateAll(long startId, long endId) throws InterruptedException {
         long lastId = startId;
         AtomicLong count = new AtomicLong(0);
 
-        while (lastId < endId) {
-            List<Warc> list = warcs.stream(lastId, 1000);
-            if (list.isEmpty()) {
-                break;
-            }
+        try (TaskScope scope = new TaskScope("TextCache", concurrency)) {
+            while (lastId < endId) {
+                List<Warc> list = warcs.stream(lastId, 1000);
+                if (list.isEmpty()) {
+                    break;
+                }
 
-            list.parallelStream().forEach(warc -> {
-                if (warc.getId() >= endId) {
-                    return;
+                for (Warc warc : list) {
+                    if (warc.getId() >= endId) {
+                        break;
+                    }
+                    scope.fork(() -> populate(count, warc));
                 }
-                populate(count, warc);
-            });
 
-            lastId = list.get(list.size() - 1).getId();
+                lastId = list.get(list.size() - 1).getId();
+            }
+            scope.join();
         }
     }
 
@@ -184,21 +376,24 @@ public class TextCache {
         System.out.println(progress);
     }
 
-    public void populateSeries(long seriesId) {
+    public void populateSeries(long seriesId) throws InterruptedException {
         long lastId = -1;
         AtomicLong count = new AtomicLong(0);
 
-        while (true) {
-            List<Warc> list = warcs.streamSeries(lastId, seriesId, 1000);
-            if (list.isEmpty()) {
-                break;
-            }
+        try (TaskScope scope = new TaskScope("TextCache", concurrency)) {
+            while (true) {
+                List<Warc> list = warcs.streamSeries(lastId, seriesId, 1000);
+                if (list.isEmpty()) {
+                    break;
+                }
 
-            list.parallelStream().forEach(warc -> {
-                populate(count, warc);
-            });
+                for (Warc warc : list) {
+                    scope.fork(() -> populate(count, warc));
+                }
 
-            lastId = list.get(list.size() - 1).getId();
+                lastId = list.get(list.size() - 1).getId();
+            }
+            scope.join();
         }
     }
 
@@ -206,7 +401,7 @@ public class TextCache {
         URI uri = URI.create(args[0]);
         Path outPath = Paths.get(args[1]);
         String filename = uri.getPath().replaceFirst("^.*/", "");
-        try (ArchiveReader reader = Warcs.openReader(filename, Warcs.openStreamViaRoundRobinHttp(uri));
+        try (ArchiveReader reader = Warcs.openReader(filename, new WarcHttpClient().open(uri));
              OutputStream out = new GZIPOutputStream(Files.newOutputStream(outPath), 8192)) {
             TextExtractor.extract(reader, out);
         }
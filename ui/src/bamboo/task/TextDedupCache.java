@@ -0,0 +1,202 @@
+package bamboo.task;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * On-disk cache of text extraction results keyed by SHA-1 payload digest, so a payload that was captured many times
+ * (e.g. the same PDF in every instance of a title) is only parsed once. Least recently used entries are deleted
+ * once the total size exceeds the limit. Only successful parses are cached.
+ */
+public class TextDedupCache {
+    private static final Logger log = LoggerFactory.getLogger(TextDedupCache.class);
+    private static final Pattern SHA1_BASE32 = Pattern.compile("[A-Z2-7]{32}");
+    private static final Gson gson = new Gson();
+
+    private final Path root;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TextDedupCache(Path root, long maxSize) throws IOException {
+        this.root = root;
+        this.maxSize = maxSize;
+        Files.createDirectories(root);
+        load();
+        log.info("TextDedupCache at {} with {} entries ({} of {} bytes)", root, entries.size(), totalSize, maxSize);
+    }
+
+    /**
+     * Rebuilds the LRU order from file modification times, which {@link #get} bumps on each hit.
+     */
+    private void load() throws IOException {
+        class Found {
+            final String key;
+            final long size;
+            final FileTime modified;
+
+            Found(Path path) throws IOException {
+                String name = path.getFileName().toString();
+                key = name.substring(0, name.length() - ".json.gz".length());
+                size = Files.size(path);
+                modified = Files.getLastModifiedTime(path);
+            }
+        }
+        List<Found> found = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Iterator<Path> it = paths.iterator(); it.hasNext(); ) {
+                Path path = it.next();
+                String name = path.getFileName().toString();
+                if (name.endsWith(".json.gz")) {
+                    found.add(new Found(path));
+                } else if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        found.sort(Comparator.comparing(f -> f.modified));
+        for (Found f : found) {
+            entries.put(f.key, f.size);
+            totalSize += f.size;
+        }
+        evict();
+    }
+
+    /**
+     * Returns the cache key for a payload digest, or null if the digest isn't a base32 SHA-1.
+     */
+    static String key(String digest) {
+        if (digest == null) return null;
+        String upper = digest.toUpperCase();
+        return SHA1_BASE32.matcher(upper).matches() ? upper : null;
+    }
+
+    private Path entryPath(String key) {
+        return root.resolve(key.substring(0, 2)).resolve(key + ".json.gz");
+    }
+
+    /**
+     * Returns the cached parse result for a payload or null if there isn't one for this content type.
+     */
+    ParsedContent get(String key, String contentType) {
+        synchronized (this) {
+            // get() rather than containsKey() so the hit moves the entry to the end of the access order
+            if (entries.get(key) == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        Path path = entryPath(key);
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(path)), UTF_8)) {
+            ParsedContent content = gson.fromJson(reader, ParsedContent.class);
+            if (content == null || !contentType.equals(content.contentType)) {
+                misses.increment();
+                return null;
+            }
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.increment();
+            return content;
+        } catch (NoSuchFileException e) {
+            // evicted by another thread since we checked
+            misses.increment();
+            return null;
+        } catch (IOException | JsonParseException e) {
+            log.warn("Discarding unreadable text dedup cache entry {}", path, e);
+            remove(key);
+            misses.increment();
+            return null;
+        }
+    }
+
+    void put(String key, ParsedContent content) {
+        Path path = entryPath(key);
+        Path tmp = path.resolveSibling(key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp)), UTF_8)) {
+                gson.toJson(content, writer);
+            }
+            long size = Files.size(tmp);
+            Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            synchronized (this) {
+                Long previous = entries.put(key, size);
+                totalSize += size - (previous == null ? 0 : previous);
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write text dedup cache entry {}", path, e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e2) {
+                // ignore
+            }
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalSize -= size;
+        }
+        try {
+            Files.deleteIfExists(entryPath(key));
+        } catch (IOException e) {
+            log.warn("Unable to delete text dedup cache entry {}", key, e);
+        }
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            totalSize -= entry.getValue();
+            try {
+                Files.deleteIfExists(entryPath(entry.getKey()));
+            } catch (IOException e) {
+                log.warn("Unable to evict text dedup cache entry {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -4,14 +4,12 @@ import com.google.common.net.InternetDomainName;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonWriter;
-import org.apache.tika.config.TikaConfig;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.metadata.TikaCoreProperties;
-import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.html.JSoupParser;
 import org.apache.tika.sax.BodyContentHandler;
 import org.apache.tika.sax.Link;
 import org.apache.tika.sax.LinkContentHandler;
@@ -22,10 +20,14 @@ import org.archive.io.ArchiveRecord;
 import org.archive.io.ArchiveRecordHeader;
 import org.archive.util.Base32;
 import org.brotli.dec.BrotliInputStream;
+import org.netpreserve.jwarc.WarcCaptureRecord;
+import org.netpreserve.jwarc.WarcResource;
+import org.netpreserve.jwarc.WarcResponse;
 import org.netpreserve.urlcanon.Canonicalizer;
 import org.netpreserve.urlcanon.ParsedUrl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
 import java.io.*;
@@ -41,19 +43,40 @@ import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
-import java.util.Arrays;
+import java.time.temporal.ChronoUnit;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class TextExtractor implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(TextExtractor.class);
     static final int maxDocSize = 0x100000;
+    static final Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX")
+            .setPrettyPrinting().create();
 
     public static final Pattern PANDORA_REGEX = Pattern.compile("http://pandora.nla.gov.au/pan/[0-9]+/[0-9-]+/([^/.]+\\.[^/]+/.*)");
-    private final Parser parser;
+    private final TikaPool pool;
+    private final JSoupParser htmlParser = new JSoupParser();
+    private TextDedupCache dedupCache;
+    private final long inProcessHtmlMaxSize = Long.parseLong(
+            System.getenv().getOrDefault("TIKA_HTML_IN_PROCESS_MAX_SIZE", String.valueOf(4 * 1024 * 1024)));
+    /**
+     * In-process parses run on their own threads so they can be timed out. A thread can't be killed so a runaway
+     * parse keeps its permit until it finishes, and once they're all taken HTML goes to the forked pool instead.
+     */
+    private final Semaphore inProcessPermits = new Semaphore(Runtime.getRuntime().availableProcessors() * 2);
+    private final ExecutorService inProcessExecutor = newInProcessExecutor();
+    private long inProcessTimeoutMillis;
     private final Path logbackConfig;
 
     public TextExtractor() {
@@ -63,15 +86,8 @@ public class TextExtractor implements Closeable {
                 Files.copy(stream, logbackConfig, REPLACE_EXISTING);
             }
 
-            TikaConfig config = new TikaConfig();
-            ForkParser parser = new ForkParser(getClass().getClassLoader(), new AutoDetectParser(config));
-            parser.setServerParseTimeoutMillis(15000); // don't spend too long on any one record
-            Path javaBinary = Path.of(System.getProperty("java.home"), "bin", "java");
-            parser.setJavaCommand(Arrays.asList(javaBinary.toString(), "-Xmx512m", "-Dlogback.configurationFile=" + logbackConfig));
-            if (System.getenv("TIKA_POOL_SIZE") != null) {
-                parser.setPoolSize(Integer.parseInt(System.getenv("TIKA_POOL_SIZE")));
-            }
-            this.parser = parser;
+            this.pool = new TikaPool(getClass().getClassLoader(), logbackConfig);
+            this.inProcessTimeoutMillis = pool.getParseTimeoutMillis();
         } catch (Exception e) {
             close();
             throw new RuntimeException("Error configuring tika", e);
@@ -138,8 +154,57 @@ public class TextExtractor implements Closeable {
         doc.setDate(Date.from(instant));
         doc.setWarcOffset(warcHeader.getOffset());
 
+        extractContent(doc, record, httpHeader, (String) warcHeader.getHeaderValue("WARC-Payload-Digest"));
+        return doc;
+    }
+
+    /**
+     * Extracts a document from a record read by jwarc.
+     *
+     * @param payload the record's payload (for response records the HTTP body)
+     * @param position offset of the record in the WARC file
+     */
+    public Document extract(WarcCaptureRecord record, InputStream payload, long position) throws TextExtractionException {
+        Document doc = new Document();
+        String url = WarcUtils.cleanUrl(record.target());
+        if (url.startsWith("dns:") || url.startsWith("filedesc:") || url.startsWith("whois:")) {
+            throw new TextExtractionException("unhandled WARC record type");
+        }
+
+        HttpHeader httpHeader = null;
+        try {
+            if (record instanceof WarcResponse) {
+                httpHeader = HttpHeader.from(((WarcResponse) record).http(), url);
+                doc.setContentType(HttpHeader.cleanContentType(httpHeader.contentType));
+                doc.setStatusCode(httpHeader.status);
+                if (httpHeader.location != null) {
+                    LinkInfo link = new LinkInfo();
+                    link.setType("location");
+                    link.setUrl(httpHeader.location);
+                    link.setHref(httpHeader.rawLocation);
+                    doc.addLink(link);
+                }
+            } else if (record instanceof WarcResource) {
+                doc.setContentType(HttpHeader.cleanContentType(record.headers().first("Content-Type").orElse(null)));
+                doc.setStatusCode(200);
+            } else {
+                throw new TextExtractionException("unhandled WARC record type");
+            }
+
+            setUrls(doc, url);
+            doc.setContentLength(record.body().size());
+            doc.setDate(Date.from(record.date().truncatedTo(ChronoUnit.SECONDS)));
+        } catch (IOException e) {
+            throw new TextExtractionException("parsing record header: " + e.getMessage(), e);
+        }
+        doc.setWarcOffset(position);
+
+        extractContent(doc, payload, httpHeader, record.headers().first("WARC-Payload-Digest").orElse(null));
+        return doc;
+    }
+
+    private void extractContent(Document doc, InputStream record, HttpHeader httpHeader, String digest) throws TextExtractionException {
         InputStream contentStream = record;
-        String digest = (String) warcHeader.getHeaderValue("WARC-Payload-Digest");
         if (digest != null) {
             if (digest.startsWith("sha1:")) {
                 digest = digest.substring(5);
@@ -171,6 +236,10 @@ public class TextExtractor implements Closeable {
             }
             switch (doc.getContentType()) {
                 case "text/html":
+                    // HTML is the bulk of our records and the parser is well-behaved, so skip the round trip to a
+                    // forked JVM unless the document is unusually large
+                    extractTikaCached(contentStream, doc, uri, digest, doc.getContentLength() <= inProcessHtmlMaxSize);
+                    break;
                 case "application/pdf":
                 case "application/vnd.ms-excel":
                 case "text/csv":
@@ -184,7 +253,7 @@ public class TextExtractor implements Closeable {
                 case "application/vnd.oasis.opendocument.presentation":
                 case "application/vnd.oasis.opendocument.text":
                 case "application/vnd.oasis.opendocument.spreadsheet":
-                    extractTika(contentStream, doc, uri);
+                    extractTikaCached(contentStream, doc, uri, digest, false);
                     break;
                 default:
                     doc.setTextError("not implemented for content-type");
@@ -199,8 +268,6 @@ public class TextExtractor implements Closeable {
             byte[] digestBytes = ((DigestInputStream)contentStream).getMessageDigest().digest();
             doc.setContentSha1(Base32.encode(digestBytes));
         }
-
-        return doc;
     }
 
     private void fullyConsume(InputStream stream) {
@@ -215,8 +282,103 @@ public class TextExtractor implements Closeable {
     }
 
     public void extractTika(InputStream record, Document doc, URI baseUrl) throws TextExtractionException {
+        extractTika(record, doc, baseUrl, false);
+    }
+
+    void extractTika(InputStream record, Document doc, URI baseUrl, boolean inProcessHtml) throws TextExtractionException {
+        parse(record, doc.getContentType(), inProcessHtml).applyTo(doc, baseUrl);
+    }
+
+    /**
+     * Like {@link #extractTika(InputStream, Document, URI, boolean)} but first looks for a previous parse result
+     * for the same payload digest in the dedup cache.
+     */
+    private void extractTikaCached(InputStream record, Document doc, URI baseUrl, String digest,
+                                   boolean inProcessHtml) throws TextExtractionException {
+        String key = dedupCache == null ? null : TextDedupCache.key(digest);
+        ParsedContent content = key == null ? null : dedupCache.get(key, doc.getContentType());
+        if (content == null) {
+            content = parse(record, doc.getContentType(), inProcessHtml);
+            if (key != null) {
+                dedupCache.put(key, content);
+            }
+        }
+        content.applyTo(doc, baseUrl);
+    }
+
+    private static ExecutorService newInProcessExecutor() {
+        AtomicLong counter = new AtomicLong();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "TextExtractor-html-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void setInProcessTimeout(long millis) {
+        this.inProcessTimeoutMillis = millis;
+    }
+
+    /**
+     * Parses the record in-process if inProcessHtml is set, falling back to the forked pool if the record turns out
+     * to be too big or the parse takes longer than the pool's parse timeout.
+     */
+    private ParsedContent parse(InputStream record, String contentType, boolean inProcessHtml) throws TextExtractionException {
+        if (!inProcessHtml) {
+            return parse(record, contentType, pool::parse);
+        }
+
+        // buffer the record so it can be parsed again by the pool
+        byte[] buffer;
+        try {
+            buffer = record.readNBytes((int) Math.min(inProcessHtmlMaxSize + 1, Integer.MAX_VALUE - 8));
+        } catch (IOException e) {
+            throw new TextExtractionException("Tika failed", e);
+        }
+        if (buffer.length <= inProcessHtmlMaxSize && inProcessPermits.tryAcquire()) {
+            Future<ParsedContent> future;
+            try {
+                future = inProcessExecutor.submit(() -> {
+                    try {
+                        // the encoding detector needs mark/reset which AutoDetectParser would normally provide
+                        return parse(new ByteArrayInputStream(buffer), contentType, (stream, handler, metadata, context)
+                                -> htmlParser.parse(TikaInputStream.get(stream), handler, metadata, context));
+                    } finally {
+                        inProcessPermits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inProcessPermits.release();
+                throw e;
+            }
+            try {
+                return future.get(inProcessTimeoutMillis, MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                log.warn("In-process HTML parse timed out after {}ms, retrying in a forked process",
+                        inProcessTimeoutMillis);
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new TextExtractionException("Interrupted parsing HTML", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TextExtractionException) throw (TextExtractionException) e.getCause();
+                throw new TextExtractionException("Tika failed", e.getCause());
+            }
+        }
+        InputStream stream = buffer.length <= inProcessHtmlMaxSize ? new ByteArrayInputStream(buffer) :
+                new SequenceInputStream(new ByteArrayInputStream(buffer), record);
+        return parse(stream, contentType, pool::parse);
+    }
+
+    private interface Parser {
+        void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+                throws IOException, SAXException, TikaException;
+    }
+
+    private ParsedContent parse(InputStream record, String contentType, Parser parser) throws TextExtractionException {
         Metadata metadata = new Metadata();
-        metadata.set(Metadata.CONTENT_TYPE, doc.getContentType());
+        metadata.set(Metadata.CONTENT_TYPE, contentType);
         try {
             ParseContext parseContext = new ParseContext();
             LinkContentHandler linkHandler = new LinkContentHandler(true);
@@ -226,17 +388,19 @@ public class TextExtractor implements Closeable {
 
             parser.parse(record, teeHandler, metadata, parseContext);
 
-            doc.setText(clean(bodyHandler.toString()));
-            doc.setTitle(clean(getAny(metadata, TikaCoreProperties.TITLE.getName())));
-            doc.setDescription(clean(getAny(metadata, "description", "DC.description", "DC.Description", "dcterms.description")));
-            doc.setKeywords(clean(getAny(metadata, "Keywords", "keywords", "DC.keywords", "DC.Keywords", "dcterms.keywords", "pdf:docinfo:keywords")));
-            doc.setPublisher(clean(getAny(metadata, "publisher", "DC.publisher", "DC.Publisher", "dcterms.publisher")));
-            doc.setCreator(clean(getAny(metadata, "creator", "DC.creator", "DC.Creator", "dcterms.creator")));
-            doc.setContributor(clean(getAny(metadata, "contributor", "DC.contributor", "DC.Contributor", "dcterms.contributor")));
-            doc.setCoverage(clean(getAny(metadata, "coverage", "DC.coverage", "DC.Coverage", "dcterms.coverage", "subject", "Subject", "pdf:docinfo:subject")));
-            doc.setH1(headingHandler.getHeadings());
-            doc.setOgSiteName(clean(metadata.get("og:site_name")));
-            doc.setOgTitle(clean(metadata.get("og:title")));
+            ParsedContent content = new ParsedContent();
+            content.contentType = contentType;
+            content.text = clean(bodyHandler.toString());
+            content.title = clean(getAny(metadata, TikaCoreProperties.TITLE.getName()));
+            content.description = clean(getAny(metadata, "description", "DC.description", "DC.Description", "dcterms.description"));
+            content.keywords = clean(getAny(metadata, "Keywords", "keywords", "DC.keywords", "DC.Keywords", "dcterms.keywords", "pdf:docinfo:keywords"));
+            content.publisher = clean(getAny(metadata, "publisher", "DC.publisher", "DC.Publisher", "dcterms.publisher"));
+            content.creator = clean(getAny(metadata, "creator", "DC.creator", "DC.Creator", "dcterms.creator"));
+            content.contributor = clean(getAny(metadata, "contributor", "DC.contributor", "DC.Contributor", "dcterms.contributor"));
+            content.coverage = clean(getAny(metadata, "coverage", "DC.coverage", "DC.Coverage", "dcterms.coverage", "subject", "Subject", "pdf:docinfo:subject"));
+            content.h1 = headingHandler.getHeadings();
+            content.ogSiteName = clean(metadata.get("og:site_name"));
+            content.ogTitle = clean(metadata.get("og:title"));
 
             for (Link link: linkHandler.getLinks()) {
                 if ("".equals(link.getUri()) ||
@@ -255,19 +419,9 @@ public class TextExtractor implements Closeable {
                 if (!"".equals(link.getTitle())) {
                     info.setTitle(link.getTitle());
                 }
-                if (baseUrl != null) {
-                    String url = null;
-                    try {
-                        url = baseUrl.resolve(link.getUri()).toString();
-                        info.setUrl(WarcUtils.cleanUrl(url));
-                    } catch (IllegalArgumentException e) {
-                        // bad url
-                    } catch (StackOverflowError e) {
-                        log.warn("URL caused stackoverflow: " + url);
-                    }
-                }
-                doc.addLink(info);
+                content.links.add(info);
             }
+            return content;
         } catch (IOException | TikaException | SAXException e) {
             throw new TextExtractionException("Tika failed", e);
         }
@@ -313,8 +467,6 @@ public class TextExtractor implements Closeable {
     }
 
     void extractAll(ArchiveReader reader, OutputStream out) throws IOException {
-        Gson gson = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX")
-                .setPrettyPrinting().create();
         try (JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out))) {
             writer.beginArray();
             for (ArchiveRecord record : reader) {
@@ -338,8 +490,32 @@ public class TextExtractor implements Closeable {
         }
     }
 
+    /**
+     * Starts the Tika processes ahead of time on a background thread.
+     */
+    public void warmUp() {
+        Thread thread = new Thread(pool::warmUp, "TikaPool-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reuses parse results for payloads with the same digest.
+     */
+    public void setDedupCache(TextDedupCache dedupCache) {
+        this.dedupCache = dedupCache;
+    }
+
+    public TikaPool.Stats getStats() {
+        return pool.getStats();
+    }
+
     @Override
     public void close(){
+        inProcessExecutor.shutdownNow();
+        if (pool != null) {
+            pool.close();
+        }
         if (logbackConfig != null) {
             try {
                 Files.deleteIfExists(logbackConfig);
@@ -0,0 +1,290 @@
+package bamboo.task;
+
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A pool of forked Tika JVMs. Wraps ForkParser adding automatic pool sizing, recycling of the child processes and
+ * statistics on queueing, parse time and timeouts.
+ * <p>
+ * Configured by the environment variables:
+ * <ul>
+ *     <li>TIKA_POOL_SIZE - number of child JVMs (default: based on available cores and memory)</li>
+ *     <li>TIKA_MAX_FILES_PER_PROCESS - documents parsed before a child is replaced (default 10000)</li>
+ *     <li>TIKA_PARSE_TIMEOUT - milliseconds to spend on a single document (default 15000)</li>
+ * </ul>
+ */
+public class TikaPool implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TikaPool.class);
+    private static final long CHILD_HEAP_BYTES = 512L * 1024 * 1024;
+    private static final long CHILD_OVERHEAD_BYTES = 256L * 1024 * 1024;
+
+    private final ForkParser parser;
+    private final int poolSize;
+    private final long parseTimeoutMillis;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+    private final Map<String, TypeStats> typeStats = new ConcurrentHashMap<>();
+
+    public TikaPool(ClassLoader classLoader, Path logbackConfig) throws TikaException, IOException {
+        poolSize = getenvInt("TIKA_POOL_SIZE", defaultPoolSize());
+        parseTimeoutMillis = getenvInt("TIKA_PARSE_TIMEOUT", 15000);
+        int maxFilesPerProcess = getenvInt("TIKA_MAX_FILES_PER_PROCESS", 10000);
+
+        parser = new ForkParser(classLoader, new AutoDetectParser(new TikaConfig()));
+        parser.setServerParseTimeoutMillis(parseTimeoutMillis); // don't spend too long on any one record
+        parser.setMaxFilesProcessedPerServer(maxFilesPerProcess);
+        parser.setPoolSize(poolSize);
+        Path javaBinary = Path.of(System.getProperty("java.home"), "bin", "java");
+        // exit on OOM so that ForkParser discards the broken child and starts a fresh one
+        parser.setJavaCommand(List.of(javaBinary.toString(), "-Xmx" + CHILD_HEAP_BYTES / 1024 / 1024 + "m",
+                "-XX:+ExitOnOutOfMemoryError", "-Dlogback.configurationFile=" + logbackConfig));
+        permits = new Semaphore(poolSize, true);
+        log.info("Tika pool size {}, parse timeout {}ms, max files per process {}", poolSize, parseTimeoutMillis,
+                maxFilesPerProcess);
+    }
+
+    /**
+     * One child JVM per core, limited so that the children together use at most half of physical memory.
+     */
+    static int defaultPoolSize() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long memory;
+        try {
+            memory = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                    .getTotalMemorySize();
+        } catch (ClassCastException e) {
+            return cores;
+        }
+        return defaultPoolSize(cores, memory);
+    }
+
+    static int defaultPoolSize(int cores, long memory) {
+        long byMemory = memory / 2 / (CHILD_HEAP_BYTES + CHILD_OVERHEAD_BYTES);
+        return (int) Math.max(1, Math.min(cores, byMemory));
+    }
+
+    private static int getenvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public void parse(java.io.InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException {
+        long waitStart = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new TikaException("Interrupted waiting for a Tika process", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        long start = System.nanoTime();
+        long waitNanos = start - waitStart;
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulate(waitNanos);
+
+        String contentType = metadata.get(Metadata.CONTENT_TYPE);
+        TypeStats stats = typeStats.computeIfAbsent(contentType == null ? "unknown" : contentType,
+                type -> new TypeStats());
+        boolean ok = false;
+        try {
+            parser.parse(stream, handler, metadata, context);
+            ok = true;
+        } finally {
+            permits.release();
+            stats.record(System.nanoTime() - start, ok, parseTimeoutMillis);
+        }
+    }
+
+    /**
+     * Starts all the child JVMs by parsing a tiny document on each so the first real documents don't pay the
+     * JVM startup cost.
+     */
+    public void warmUp() {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < poolSize; i++) {
+            Thread thread = new Thread(() -> {
+                Metadata metadata = new Metadata();
+                metadata.set(Metadata.CONTENT_TYPE, "text/html");
+                try {
+                    parser.parse(new ByteArrayInputStream("<html><body>warm up</body></html>".getBytes(UTF_8)),
+                            new BodyContentHandler(), metadata, new ParseContext());
+                } catch (Exception e) {
+                    log.warn("Tika warm up failed", e);
+                }
+            }, "TikaPool-warmup-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        log.info("Warmed up {} Tika processes", poolSize);
+    }
+
+    public long getParseTimeoutMillis() {
+        return parseTimeoutMillis;
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    @Override
+    public void close() {
+        parser.close();
+    }
+
+    static class TypeStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+        void record(long nanos, boolean ok, long timeoutMillis) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            if (!ok) {
+                failures.increment();
+                // ForkParser doesn't distinguish a timeout from other child failures so go by elapsed time
+                if (nanos >= timeoutMillis * 1_000_000L) {
+                    timeouts.increment();
+                }
+            }
+        }
+    }
+
+    public static class ContentTypeStats {
+        private final long count;
+        private final long failures;
+        private final long timeouts;
+        private final long meanMillis;
+        private final long maxMillis;
+
+        ContentTypeStats(TypeStats stats) {
+            count = stats.count.sum();
+            failures = stats.failures.sum();
+            timeouts = stats.timeouts.sum();
+            meanMillis = count == 0 ? 0 : stats.totalNanos.sum() / count / 1_000_000;
+            maxMillis = stats.maxNanos.get() / 1_000_000;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getMeanMillis() {
+            return meanMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    public static class Stats {
+        private final int poolSize;
+        private final int active;
+        private final int waiting;
+        private final long parses;
+        private final long timeouts;
+        private final long meanWaitMillis;
+        private final long maxWaitMillis;
+        private final Map<String, ContentTypeStats> contentTypes = new TreeMap<>();
+
+        Stats(TikaPool pool) {
+            poolSize = pool.poolSize;
+            active = pool.poolSize - pool.permits.availablePermits();
+            waiting = pool.waiting.get();
+            long parses = 0, timeouts = 0;
+            for (Map.Entry<String, TypeStats> entry : pool.typeStats.entrySet()) {
+                ContentTypeStats stats = new ContentTypeStats(entry.getValue());
+                contentTypes.put(entry.getKey(), stats);
+                parses += stats.count;
+                timeouts += stats.timeouts;
+            }
+            this.parses = parses;
+            this.timeouts = timeouts;
+            meanWaitMillis = parses == 0 ? 0 : pool.totalWaitNanos.sum() / parses / 1_000_000;
+            maxWaitMillis = pool.maxWaitNanos.get() / 1_000_000;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getParses() {
+            return parses;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getMeanWaitMillis() {
+            return meanWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public Map<String, ContentTypeStats> getContentTypes() {
+            return contentTypes;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package bamboo.task;
+
+import bamboo.crawl.RecordStats;
+import org.apache.commons.codec.binary.Hex;
+import org.netpreserve.jwarc.WarcReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads a WARC file in a single streaming pass and feeds it to each of the configured consumers: CDX lines,
+ * extracted text documents, record statistics and a digest of the whole file. This means ingest only needs to
+ * fetch each WARC from storage once.
+ */
+public class WarcPipeline {
+    private static final Logger log = LoggerFactory.getLogger(WarcPipeline.class);
+
+    private PrintWriter cdxOut;
+    private boolean allowAliases;
+    private TextExtractor textExtractor;
+    private DocumentSink documentSink;
+    private String digestAlgorithm;
+
+    public interface DocumentSink {
+        void accept(Document doc) throws IOException;
+    }
+
+    public static class Result {
+        public final RecordStats stats;
+
+        /**
+         * Hex digest of the whole file or null if not requested.
+         */
+        public final String digest;
+
+        Result(RecordStats stats, String digest) {
+            this.stats = stats;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Write CDX lines to out.
+     */
+    public WarcPipeline cdx(PrintWriter out, boolean allowAliases) {
+        this.cdxOut = out;
+        this.allowAliases = allowAliases;
+        return this;
+    }
+
+    /**
+     * Extract text from each response and resource record and pass the resulting documents to sink.
+     */
+    public WarcPipeline text(TextExtractor extractor, DocumentSink sink) {
+        this.textExtractor = extractor;
+        this.documentSink = sink;
+        return this;
+    }
+
+    /**
+     * Calculate a digest of the entire file (e.g. "SHA-256").
+     */
+    public WarcPipeline digest(String algorithm) {
+        this.digestAlgorithm = algorithm;
+        return this;
+    }
+
+    public Result run(InputStream stream, String filename) throws IOException {
+        DigestInputStream digestStream = null;
+        if (digestAlgorithm != null) {
+            try {
+                digestStream = new DigestInputStream(stream, MessageDigest.getInstance(digestAlgorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+            stream = digestStream;
+        }
+
+        PrintWriter out = cdxOut == null ? new PrintWriter(OutputStream.nullOutputStream()) : cdxOut;
+        Cdx.RecordListener listener = textExtractor == null ? null : (record, payload, position) -> {
+            Document doc;
+            try {
+                doc = textExtractor.extract(record, payload, position);
+            } catch (TextExtractionException e) {
+                log.trace("Skipping text extraction for record at {} in {}", position, filename, e);
+                return;
+            } catch (RuntimeException e) {
+                // don't let a parser bug stop the other consumers
+                log.warn("Text extraction failed for record at {} in {}", position, filename, e);
+                return;
+            }
+            documentSink.accept(doc);
+        };
+
+        RecordStats stats;
+        String digest = null;
+        try (WarcReader reader = new WarcReader(stream)) {
+            stats = Cdx.buildIndex(reader, out, filename, allowAliases && cdxOut != null, listener);
+            if (digestStream != null) {
+                // the reader may stop before trailing padding so drain anything left to complete the digest
+                digestStream.transferTo(OutputStream.nullOutputStream());
+                digest = Hex.encodeHexString(digestStream.getMessageDigest().digest(), true);
+            }
+        }
+        out.flush();
+        return new Result(stats, digest);
+    }
+}
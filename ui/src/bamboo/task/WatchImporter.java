@@ -2,20 +2,23 @@ package bamboo.task;
 
 import bamboo.core.*;
 import bamboo.crawl.*;
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
@@ -30,10 +33,10 @@ public class WatchImporter implements Runnable {
     final Crawls crawls;
     final Collections collections;
     final CdxIndexer cdxIndexer;
-    /**
-     * Lock to prevent timer initiated scans from running currently with handling of filesystem event notifications.
-     */
-    private final Lock scanLock = new ReentrantLock();
+    private long quietPeriodMillis = 2000;
+    private long maxDelayMillis = 60000;
+    private int threads = 4;
+    private volatile Debouncer<Path> debouncer;
 
     public WatchImporter(Collections collections, Crawls crawls, CdxIndexer cdxIndexer, Warcs warcs, List<Config.Watch> watches) {
         this.collections = collections;
@@ -45,12 +48,34 @@ public class WatchImporter implements Runnable {
         }
     }
 
+    /**
+     * Filesystem events for a WARC are coalesced until none have been seen for quietPeriodMillis, or for at most
+     * maxDelayMillis while the WARC is continuously being written.
+     */
+    public void setDebounce(long quietPeriodMillis, long maxDelayMillis) {
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Number of WARCs to handle concurrently.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     public void run() {
-        ScheduledExecutorService scanExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
             var thread = new Thread(runnable, "WatchImporter periodic scanner");
             thread.setDaemon(true);
             return thread;
         });
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            var thread = new Thread(runnable, "WatchImporter worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        debouncer = new Debouncer<>(scheduler, workers, quietPeriodMillis, maxDelayMillis, this::handleWarc);
         try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
             for (Config.Watch watch : watches.values()) {
                 log.info("Watching " + watch.dir + " for modified WARCs");
@@ -58,7 +83,7 @@ public class WatchImporter implements Runnable {
             }
 
             scanForChanges();
-            scanExecutor.scheduleWithFixedDelay(this::scanForChanges, 60, 60, java.util.concurrent.TimeUnit.SECONDS);
+            scheduler.scheduleWithFixedDelay(this::scanForChanges, 60, 60, java.util.concurrent.TimeUnit.SECONDS);
 
             for (WatchKey key = watcher.take(); key.isValid(); key = watcher.take()) {
                 Config.Watch watch = watches.get((Path) key.watchable());
@@ -67,35 +92,13 @@ public class WatchImporter implements Runnable {
                     continue;
                 }
                 for (WatchEvent<?> event : key.pollEvents()) {
-                    scanLock.lock();
-                    try {
-                        if (event.kind() == OVERFLOW) {
-                            scanForChanges();
-                            continue;
-                        }
-
-                        Path path = watch.dir.resolve((Path) event.context());
-                        log.trace("saw event " + path);
-
-                        if (!Files.exists(path)) {
-                            /*
-                             * Might have already been moved or renamed before we handled the event.  The file might
-                             * still disappear at any later handling stage but let's skip it now if we can.
-                             */
-                            continue;
-                        }
-
-                        if (event.kind() == ENTRY_MODIFY && path.toString().endsWith(".warc.gz.open")) {
-                            handleOpenWarc(watch, path);
-                        } else if ((event.kind() == ENTRY_CREATE || event.kind() == ENTRY_MODIFY) &&
-                                path.toString().endsWith(".warc.gz")) {
-                            handleClosedWarc(watch, path);
-                        }
-                    } catch (IOException | UncheckedIOException e) {
-                        log.error("Error handling watch event on {}", event.context());
-                    } finally {
-                        scanLock.unlock();
+                    if (event.kind() == OVERFLOW) {
+                        scanForChanges();
+                        continue;
                     }
+                    Path path = watch.dir.resolve((Path) event.context());
+                    log.trace("saw event " + path);
+                    signal(path);
                 }
 
                 key.reset();
@@ -106,7 +109,42 @@ public class WatchImporter implements Runnable {
         } catch (InterruptedException e) {
             log.warn("Interrupted while watching for WARC changes", e);
         } finally {
-            scanExecutor.shutdown();
+            scheduler.shutdownNow();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Queues a WARC to be handled once events for it stop arriving. Events for the open and closed names of a WARC
+     * share the closed name as their key, so renaming it on close is handled as a single change.
+     */
+    private void signal(Path path) {
+        String name = path.getFileName().toString();
+        if (name.endsWith(".warc.gz.open")) {
+            debouncer.signal(path.resolveSibling(name.substring(0, name.length() - ".open".length())));
+        } else if (name.endsWith(".warc.gz")) {
+            debouncer.signal(path);
+        }
+    }
+
+    /**
+     * Brings the database up to date with the current state of a watched WARC, identified by its closed name.
+     */
+    private void handleWarc(Path path) {
+        Config.Watch watch = watches.get(path.getParent());
+        Path openPath = path.resolveSibling(path.getFileName() + ".open");
+        try {
+            /*
+             * Either might have already been moved or renamed before we get here.  The file might still disappear at
+             * any later handling stage but let's skip it now if we can.
+             */
+            if (Files.exists(path)) {
+                handleClosedWarc(watch, path);
+            } else if (Files.exists(openPath)) {
+                handleOpenWarc(watch, openPath);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Error handling watched WARC {}", path, e);
         }
     }
 
@@ -132,7 +170,7 @@ public class WatchImporter implements Runnable {
         }
         if (currentSize > prevSize) {
             log.info("Indexing " + warcId + " " + path);
-            cdxIndexer.indexWarc(warcId);
+            cdxIndexer.indexOpenWarc(warcId);
             warcs.updateSize(warcId, currentSize);
         }
     }
@@ -163,10 +201,9 @@ public class WatchImporter implements Runnable {
         Warc warc = warcs.getOrNullByFilename(filename);
         Crawl crawl = crawls.get(watch.crawlId);
 
-        String digest = Scrub.calculateDigest("SHA-256", path);
-
         log.info("Moving now-closed WARC " + path);
-        Path dest = moveWarcToCrawlDir(path, crawl);
+        Path dest = crawlDirFor(path, crawl);
+        String digest = moveWithDigest(path, dest);
 
         if (warc == null) {
             warcs.create(watch.crawlId, Warc.IMPORTED, dest, filename, size, digest);
@@ -175,39 +212,77 @@ public class WatchImporter implements Runnable {
         }
     }
 
-    private Path moveWarcToCrawlDir(Path path, Crawl crawl) throws IOException {
+    private Path crawlDirFor(Path path, Crawl crawl) throws IOException {
         Path destDir = crawl.getPath().resolve(String.format("%03d", crawl.getWarcFiles() / 1000));
-        if (!Files.isDirectory(destDir)) {
-            Files.createDirectory(destDir);
+        Files.createDirectories(destDir); // may race with another worker
+        return destDir.resolve(path.getFileName());
+    }
+
+    /**
+     * Moves a file, renaming it if possible. If it has to be copied to another filesystem the SHA-256 is calculated
+     * while copying and returned. A renamed file isn't read at all and null is returned, leaving the digest to be
+     * calculated by the CDX indexer which has to read the file anyway.
+     */
+    static String moveWithDigest(Path source, Path dest) throws IOException {
+        if (Files.exists(dest)) {
+            throw new FileAlreadyExistsException(dest.toString());
+        }
+        try {
+            Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+            return null;
+        } catch (AtomicMoveNotSupportedException e) {
+            // different filesystem
         }
-        Path dest = destDir.resolve(path.getFileName());
-        Files.move(path, dest);
-        return dest;
+        String digest = copyWithDigest(source, dest);
+        Files.delete(source);
+        return digest;
     }
 
     /**
-     * Scan the entire directory for any changes we might have missed.  We do this during startup or if the fs notify
-     * event queue overflows.
+     * Copies a file via a temporary file in one pass, returning its SHA-256.
      */
-    private void scanForChanges() {
-        scanLock.lock();
+    static String copyWithDigest(Path source, Path dest) throws IOException {
+        MessageDigest md;
         try {
-            for (Config.Watch watch : watches.values()) {
-                log.trace("Scanning for changes: {}", watch.dir);
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(watch.dir)) {
-                    for (Path entry : stream) {
-                        if (entry.toString().endsWith(".warc.gz.open")) {
-                            handleOpenWarc(watch, entry);
-                        } else if (entry.toString().endsWith(".warc.gz")) {
-                            handleClosedWarc(watch, entry);
-                        }
-                    }
-                } catch (IOException e) {
-                    log.error("Error scanning for WARC changes in {}", watch.dir, e);
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Path tmp = dest.resolveSibling(dest.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
                 }
+                buffer.clear();
+            }
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, dest, StandardCopyOption.ATOMIC_MOVE);
+        return Hex.encodeHexString(md.digest(), true);
+    }
+
+    /**
+     * Scan the entire directory for any changes we might have missed.  We do this during startup, periodically and if
+     * the fs notify event queue overflows.
+     */
+    private void scanForChanges() {
+        for (Config.Watch watch : watches.values()) {
+            log.trace("Scanning for changes: {}", watch.dir);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(watch.dir)) {
+                for (Path entry : stream) {
+                    signal(entry);
+                }
+            } catch (IOException e) {
+                log.error("Error scanning for WARC changes in {}", watch.dir, e);
             }
-        } finally {
-            scanLock.unlock();
         }
     }
 }
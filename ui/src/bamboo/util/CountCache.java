@@ -0,0 +1,33 @@
+package bamboo.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the results of COUNT(*) queries for pagination totals, which don't need to be exact but can be slow to
+ * compute over large tables.
+ */
+public class CountCache {
+    private final Cache<Object, Long> cache;
+
+    public CountCache(Duration expiry) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(expiry)
+                .build();
+    }
+
+    public long get(Object key, LongSupplier count) {
+        try {
+            return cache.get(key, count::getAsLong);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
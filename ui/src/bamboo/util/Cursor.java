@@ -0,0 +1,110 @@
+package bamboo.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The sort key of the last item on a page, encoded as an opaque URL-safe string for keyset pagination. Values may
+ * be longs, strings, dates or null.
+ */
+public class Cursor {
+    private static final int NULL = 0, LONG = 1, STRING = 2, TIME = 3;
+
+    private final List<Object> values;
+
+    private Cursor(List<Object> values) {
+        this.values = values;
+    }
+
+    public static Cursor of(Object... values) {
+        return new Cursor(Arrays.asList(values));
+    }
+
+    public long getLong(int i) {
+        return get(i, Long.class);
+    }
+
+    public String getString(int i) {
+        return get(i, String.class);
+    }
+
+    public Timestamp getTimestamp(int i) {
+        return get(i, Timestamp.class);
+    }
+
+    private <T> T get(int i, Class<T> type) {
+        // cursors come from clients so may not be the shape we expect
+        Object value = i < values.size() ? values.get(i) : null;
+        if (value != null && !type.isInstance(value)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor");
+        }
+        return type.cast(value);
+    }
+
+    public String encode() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            for (Object value : values) {
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else if (value instanceof Long || value instanceof Integer) {
+                    out.writeByte(LONG);
+                    out.writeLong(((Number) value).longValue());
+                } else if (value instanceof String) {
+                    out.writeByte(STRING);
+                    out.writeUTF((String) value);
+                } else if (value instanceof Date) {
+                    out.writeByte(TIME);
+                    out.writeLong(((Date) value).getTime());
+                } else {
+                    throw new IllegalArgumentException("Unsupported cursor value: " + value.getClass());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.toByteArray());
+    }
+
+    /**
+     * Decodes a cursor from a request parameter. Returns null for a null or empty string, meaning the first page.
+     *
+     * @throws ResponseStatusException if the cursor is malformed
+     */
+    public static Cursor decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) return null;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            List<Object> values = new ArrayList<>();
+            for (int type = in.read(); type != -1; type = in.read()) {
+                switch (type) {
+                    case NULL -> values.add(null);
+                    case LONG -> values.add(in.readLong());
+                    case STRING -> values.add(in.readUTF());
+                    case TIME -> values.add(new Timestamp(in.readLong()));
+                    default -> throw new IOException("Unknown cursor value type " + type);
+                }
+            }
+            return new Cursor(values);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -1,7 +1,13 @@
 package bamboo.util;
 
 import java.util.List;
+import java.util.function.Function;
 
+/**
+ * A page of items. Pages are either numbered and fetched by offset, or in keyset mode fetched by seeking past the sort
+ * key of the previous page's last item, which stays fast however deep the page. Keyset pages have no page number so
+ * currentPage is 0 and the caller links to the next page using {@link #nextCursor}.
+ */
 public class Pager<T> {
     public final long pageSize;
     public final long currentPage;
@@ -9,6 +15,12 @@ public class Pager<T> {
     public final long offset;
     public final long totalItems;
     public final List<T> items;
+    /**
+     * Keyset mode only: the cursor this page was fetched with (null for the first page) and the cursor for the next
+     * page (null for the last page).
+     */
+    public final String cursor;
+    public final String nextCursor;
 
     public Pager(long page, long totalItems, PaginationQuery<T> query) {
         this(page, 100, totalItems, query);
@@ -21,9 +33,47 @@ public class Pager<T> {
         this.totalItems = totalItems;
         lastPage = totalItems / pageSize + 1;
         items = query.paginate(pageSize, offset);
+        cursor = null;
+        nextCursor = null;
+    }
+
+    /**
+     * Fetches a page in keyset mode.
+     *
+     * @param cursor     the cursor from the previous page, or null for the first page
+     * @param totalItems may be cached or approximate as it's only for display
+     * @param keyOf      returns the sort key of an item, used as the cursor for the page after it
+     */
+    public Pager(String cursor, long pageSize, long totalItems, KeysetQuery<T> query, Function<T, Cursor> keyOf) {
+        this.pageSize = pageSize;
+        this.currentPage = 0;
+        this.offset = 0;
+        this.totalItems = totalItems;
+        this.lastPage = totalItems / pageSize + 1;
+        this.cursor = cursor;
+        // fetch an extra item to find out whether there is a next page
+        List<T> fetched = query.paginate(Cursor.decode(cursor), pageSize + 1);
+        if (fetched.size() > pageSize) {
+            items = fetched.subList(0, (int) pageSize);
+            nextCursor = keyOf.apply(items.get(items.size() - 1)).encode();
+        } else {
+            items = fetched;
+            nextCursor = null;
+        }
+    }
+
+    public boolean isKeyset() {
+        return currentPage == 0;
     }
 
     public interface PaginationQuery<T> {
         List<T> paginate(long limit, long offset);
     }
+
+    public interface KeysetQuery<T> {
+        /**
+         * @param after the sort key to seek past, or null for the first page
+         */
+        List<T> paginate(Cursor after, long limit);
+    }
 }
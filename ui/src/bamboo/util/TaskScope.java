@@ -0,0 +1,87 @@
+package bamboo.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a batch of blocking tasks each on its own thread and waits for all of them before returning, in the style of
+ * Java 21's StructuredTaskScope. Concurrency is limited by a semaphore rather than a thread count so that scopes
+ * using the same resource (the database, a CDX server, storage) can share one limit.
+ * <p>
+ * The first task failure is rethrown by {@link #join()}. Closing the scope interrupts any tasks still running and
+ * waits for them to finish.
+ */
+public class TaskScope implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public TaskScope(String name, int concurrency) {
+        this(name, new Semaphore(concurrency));
+    }
+
+    public TaskScope(String name, Semaphore permits) {
+        this.executor = Threads.newTaskExecutor(name);
+        this.permits = permits;
+    }
+
+    /**
+     * Starts a task, first blocking until a permit is available.
+     */
+    public void fork(Runnable task) throws InterruptedException {
+        permits.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    if (!failure.compareAndSet(null, t) && failure.get() != t) {
+                        failure.get().addSuppressed(t);
+                    }
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all forked tasks to finish. No more tasks can be forked afterwards.
+     */
+    public void join() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // keep waiting
+        }
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package bamboo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Threads {
+    private static final Logger log = LoggerFactory.getLogger(Threads.class);
+    private static final boolean virtualThreadsAvailable = Runtime.version().feature() >= 21;
+
+    /**
+     * Creates an executor that starts a new thread for each task, for work that spends most of its time blocked on
+     * I/O. Uses virtual threads when running on Java 21 or later and daemon platform threads otherwise. The thread
+     * count isn't bounded so callers should limit concurrency themselves, such as with a {@link TaskScope}.
+     */
+    public static ExecutorService newTaskExecutor(String name) {
+        if (virtualThreadsAvailable) {
+            try {
+                // reflection so we can still build and run on Java 17
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+                ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Unable to create virtual thread executor, falling back to platform threads", e);
+            }
+        }
+        AtomicLong counter = new AtomicLong();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
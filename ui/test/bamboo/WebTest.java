@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
@@ -188,6 +189,11 @@ public class WebTest {
         mockMvc.perform(get("/warcs/" + warc.getId() + "/text")).andExpect(status().isOk())
                 .andExpect(content().contentType(MediaType.APPLICATION_JSON))
                 .andExpect(content().string(containsString("Search and browse tool")));
+        mockMvc.perform(get("/warcs/" + warc.getId() + "/text")
+                        .param("url", "http://www-test.nla.gov.au/xinq/presentations/abstract.html"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].url").value("http://www-test.nla.gov.au/xinq/presentations/abstract.html"));
         mockMvc.perform(get("/warcs/" + warc.getId())).andExpect(status().isOk())
                 .andExpect(content().contentType("application/warc"));
         mockMvc.perform(get("/warcs/" + warc.getId()).header("Range", "bytes=1-10"))
@@ -195,6 +201,43 @@ public class WebTest {
                 .andExpect(header().longValue("Content-Length", 10))
                 .andExpect(header().string("Content-Range", "1-10/6574"));
 
+        byte[] warcBytes;
+        try (InputStream stream = getClass().getResourceAsStream("/bamboo/task/example.warc.gz")) {
+            warcBytes = stream.readAllBytes();
+        }
+        String records = new String(mockMvc.perform(post("/warcs/records").contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"warc\": \"" + warc.getId() + "\", \"offset\": 2756, \"length\": 8}," +
+                                "{\"warc\": \"example2.warc.gz\", \"offset\": 0, \"length\": 8}," +
+                                "{\"warc\": \"" + warc.getId() + "\", \"offset\": 0, \"length\": 4}]"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsByteArray(), ISO_8859_1);
+        String warcText = new String(warcBytes, ISO_8859_1);
+        String multiRange = new String(mockMvc.perform(get("/warcs/" + warc.getId()).header("Range", "bytes=2756-2763,0-3"))
+                .andExpect(status().isPartialContent())
+                .andReturn().getResponse().getContentAsByteArray(), ISO_8859_1);
+        assertTrue(multiRange.contains("Content-Range: 2756-2763/6574\r\n\r\n" + warcText.substring(2756, 2764) + "\r\n"));
+        assertTrue(multiRange.indexOf("2756-2763/6574") < multiRange.indexOf("Content-Range: 0-3/6574\r\n\r\n" +
+                warcText.substring(0, 4) + "\r\n"));
+        assertTrue(records.contains("Content-Range: bytes 2756-2763/6574\r\n\r\n" +
+                warcText.substring(2756, 2764) + "\r\n"));
+        assertTrue(records.contains("Content-Location: /warcs/example2.warc.gz\r\n" +
+                "Content-Range: bytes 0-7/6574\r\n\r\n" + warcText.substring(0, 8) + "\r\n"));
+        assertTrue(records.contains("Content-Range: bytes 0-3/6574\r\n\r\n" + warcText.substring(0, 4) + "\r\n"));
+        int first = records.indexOf("Content-Range: bytes 2756-2763/6574");
+        int second = records.indexOf("Content-Location: /warcs/example2.warc.gz");
+        int third = records.indexOf("Content-Range: bytes 0-3/6574");
+        assertTrue("parts should be in request order", 0 < first && first < second && second < third);
+        StringBuilder tooMany = new StringBuilder("[");
+        for (int i = 0; i <= 1000; i++) {
+            if (i > 0) tooMany.append(',');
+            tooMany.append("{\"warc\": \"").append(warc.getId()).append("\", \"offset\": 0, \"length\": 8}");
+        }
+        mockMvc.perform(post("/warcs/records").contentType(MediaType.APPLICATION_JSON)
+                        .content(tooMany.append("]").toString()))
+                .andExpect(status().isPayloadTooLarge());
+        mockMvc.perform(post("/warcs/records").contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"warc\": \"" + warc.getId() + "\", \"offset\": -1, \"length\": 8}]"))
+                .andExpect(status().isBadRequest());
     }
 
     private static boolean isWindows() {
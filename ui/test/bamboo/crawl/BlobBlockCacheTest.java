@@ -0,0 +1,143 @@
+package bamboo.crawl;
+
+import com.sun.net.httpserver.HttpServer;
+import doss.http.HttpBlob;
+import doss.http.HttpBlobStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class BlobBlockCacheTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private HttpBlobStore blobStore;
+    private final byte[] blob = new byte[10000];
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private volatile CountDownLatch gate;
+
+    @Before
+    public void setup() throws IOException {
+        new Random(0).nextBytes(blob);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        // stand-in for the DOSS HTTP API: HEAD for metadata and GET with a Range header
+        server.createContext("/api/blobs/1", exchange -> {
+            exchange.getResponseHeaders().add("Blob-Id", "1");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            Matcher m = RANGE.matcher(exchange.getRequestHeaders().getFirst("Range"));
+            assertTrue(m.matches());
+            int start = Integer.parseInt(m.group(1));
+            int end = Integer.parseInt(m.group(2)) + 1;
+            rangeRequests.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            exchange.sendResponseHeaders(206, end - start);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(blob, start, end - start);
+            }
+        });
+        server.start();
+        blobStore = new HttpBlobStore("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+    }
+
+    private BlobBlockCache newCache(long capacity) throws IOException {
+        return new BlobBlockCache(folder.getRoot().toPath(), capacity, 4096,
+                (blobId, start, length) -> ((HttpBlob) blobStore.get(blobId)).openStream(start, length));
+    }
+
+    private byte[] read(BlobBlockCache cache, long start, long length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.copy(1, blob.length, out, start, length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRepeatReadsAreServedLocally() throws IOException {
+        BlobBlockCache cache = newCache(1024 * 1024);
+        // spans the first two blocks
+        assertArrayEquals(Arrays.copyOfRange(blob, 4000, 4200), read(cache, 4000, 200));
+        assertEquals(2, rangeRequests.get());
+        assertArrayEquals(Arrays.copyOfRange(blob, 100, 4100), read(cache, 100, 4000));
+        assertEquals(2, rangeRequests.get());
+        // the final short block
+        assertArrayEquals(Arrays.copyOfRange(blob, 9000, 10000), read(cache, 9000, 5000));
+        assertEquals(3, rangeRequests.get());
+
+        // survives a restart
+        BlobBlockCache reopened = newCache(1024 * 1024);
+        assertArrayEquals(Arrays.copyOfRange(blob, 0, 10000), read(reopened, 0, 10000));
+        assertEquals(3, rangeRequests.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        BlobBlockCache cache = newCache(2 * 4096);
+        read(cache, 0, 1);
+        read(cache, 4096, 1);
+        read(cache, 0, 1);
+        read(cache, 8192, 1); // evicts block 1
+        assertEquals(3, rangeRequests.get());
+        read(cache, 0, 1);
+        assertEquals(3, rangeRequests.get());
+        read(cache, 4096, 1);
+        assertEquals(4, rangeRequests.get());
+        assertTrue(cache.getSize() <= 2 * 4096);
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneFetch() throws Exception {
+        BlobBlockCache cache = newCache(1024 * 1024);
+        gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                int start = i * 100;
+                futures.add(executor.submit(() -> read(cache, start, 100)));
+            }
+            Thread.sleep(200);
+            gate.countDown();
+            for (int i = 0; i < 8; i++) {
+                assertArrayEquals(Arrays.copyOfRange(blob, i * 100, i * 100 + 100), futures.get(i).get());
+            }
+            assertEquals(1, rangeRequests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package bamboo.crawl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.*;
+
+public class BulkRecordWriterTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final AtomicInteger reads = new AtomicInteger();
+    private final AtomicInteger copies = new AtomicInteger();
+    private final byte[][] contents = new byte[3][];
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * WARCs 0 and 1 are remote, WARC 2 is local.
+     */
+    private final BulkRecordWriter.Source source = new BulkRecordWriter.Source() {
+        public boolean isRemote(Warc warc) {
+            return warc.getId() < 2;
+        }
+
+        public CompletableFuture<byte[]> readAsync(Warc warc, long start, int length) {
+            reads.incrementAndGet();
+            byte[] data = contents[(int) warc.getId()];
+            return CompletableFuture.supplyAsync(() -> Arrays.copyOfRange(data, (int) start, (int) start + length),
+                    executor);
+        }
+
+        public void copy(Warc warc, OutputStream out, long start, long length) throws IOException {
+            copies.incrementAndGet();
+            out.write(contents[(int) warc.getId()], (int) start, (int) length);
+        }
+    };
+
+    private Warc warc(int id) {
+        contents[id] = new byte[100000];
+        new Random(id).nextBytes(contents[id]);
+        Warc warc = new Warc();
+        warc.setId(id);
+        warc.setFilename("warc" + id + ".warc.gz");
+        warc.setPath(Path.of("/tmp/warc" + id + ".warc.gz"));
+        warc.setSize(contents[id].length);
+        return warc;
+    }
+
+    private static WarcsController.Range range(long start, long length) {
+        return new WarcsController.Range(start, length, 100000);
+    }
+
+    private void writeAndCheck(BulkRecordWriter writer, Warc[] warcs, long[][] requests) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (long[] request : requests) {
+            Warc warc = warcs[(int) request[0]];
+            WarcsController.Range range = range(request[1], request[2]);
+            writer.add(warc, range);
+            expected.append("--b\r\nContent-Type: application/warc\r\nContent-Location: /warcs/")
+                    .append(warc.getFilename()).append("\r\nContent-Range: bytes ").append(range).append("\r\n\r\n")
+                    .append(new String(contents[(int) request[0]], (int) request[1], (int) request[2], ISO_8859_1))
+                    .append("\r\n");
+        }
+        expected.append("--b--\r\n");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out, "b");
+        assertEquals(expected.toString(), out.toString(ISO_8859_1));
+    }
+
+    @Test
+    public void testRecordsFromSeveralWarcsAreWrittenInRequestOrder() throws IOException {
+        Warc[] warcs = {warc(0), warc(1), warc(2)};
+        long[][] requests = {
+                {1, 650, 50},
+                {0, 90000, 1000},
+                {2, 10, 20}, // local
+                {0, 5, 10},
+                {1, 500, 100}, // near the first record so read with it
+                {1, 20000, 60000}, // bigger than a span so streamed
+                {0, 0, 10}, // overlaps the fourth record
+        };
+        writeAndCheck(new BulkRecordWriter(source, 8192, 50000, 1000000, 8), warcs, requests);
+        assertEquals(3, reads.get());
+        assertEquals(2, copies.get());
+    }
+
+    @Test
+    public void testInterleavedRecordsAreGroupedByWarcWithinLimits() throws IOException {
+        Warc[] warcs = {warc(0), warc(1)};
+        long[][] requests = new long[40][];
+        for (int i = 0; i < 20; i++) {
+            // alternate between the WARCs with offsets in descending order
+            requests[i * 2] = new long[]{0, 19000 - i * 1000, 500};
+            requests[i * 2 + 1] = new long[]{1, 19000 - i * 1000, 500};
+        }
+        writeAndCheck(new BulkRecordWriter(source, 8192, 50000, 1000000, 8), warcs, requests);
+        assertEquals(2, reads.get());
+        assertEquals(0, copies.get());
+
+        // with room for only one span at a time the other WARC's records are read individually until it's released
+        reads.set(0);
+        BulkRecordWriter writer = new BulkRecordWriter(source, 8192, 50000, 30000, 8);
+        writeAndCheck(writer, warcs, requests);
+        assertTrue("peak " + writer.getPeakBufferedBytes(), writer.getPeakBufferedBytes() <= 30000);
+        assertEquals(2, reads.get());
+        assertEquals(19, copies.get());
+    }
+
+    @Test
+    public void testBufferedBytesAreBounded() throws IOException {
+        Warc warc = warc(0);
+        BulkRecordWriter writer = new BulkRecordWriter(source, 0, 1000, 3000, 8);
+        for (int i = 0; i < 90; i++) {
+            // reverse order so every record is its own span
+            writer.add(warc, range(90000 - i * 1000, 1000));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out, "b");
+        assertEquals(90, reads.get());
+        assertTrue("peak " + writer.getPeakBufferedBytes(), writer.getPeakBufferedBytes() <= 3000);
+        assertTrue(out.size() > 90000);
+    }
+}
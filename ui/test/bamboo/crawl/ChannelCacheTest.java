@@ -0,0 +1,147 @@
+package bamboo.crawl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+
+public class ChannelCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReusesAndClosesAfterRelease() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, "0123456789".getBytes(US_ASCII));
+        AtomicInteger opens = new AtomicInteger();
+        ChannelCache.Opener opener = () -> {
+            opens.incrementAndGet();
+            return FileChannel.open(path);
+        };
+
+        ChannelCache cache = new ChannelCache(10, Duration.ofMinutes(1));
+        ChannelCache.Lease lease1 = cache.acquire(1, opener);
+        ChannelCache.Lease lease2 = cache.acquire(1, opener);
+        assertSame(lease1.channel(), lease2.channel());
+        assertEquals(1, opens.get());
+
+        // evicted while in use: stays open until the last lease is released
+        cache.invalidate(1);
+        lease1.close();
+        assertTrue(lease2.channel().isOpen());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Warcs.copy((FileChannel) lease2.channel(), out, 3, 4);
+        assertEquals("3456", out.toString(US_ASCII));
+        lease2.close();
+        assertFalse(lease2.channel().isOpen());
+
+        try (ChannelCache.Lease lease3 = cache.acquire(1, opener)) {
+            assertTrue(lease3.channel().isOpen());
+            assertEquals(2, opens.get());
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testClosedChannelIsReopened() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, "0123456789".getBytes(US_ASCII));
+        AtomicInteger opens = new AtomicInteger();
+        ChannelCache.Opener opener = () -> {
+            opens.incrementAndGet();
+            return FileChannel.open(path);
+        };
+        ChannelCache cache = new ChannelCache(10, Duration.ofMinutes(1));
+        ChannelCache.Lease lease1 = cache.acquire(1, opener);
+        // as if a reader was interrupted mid-read
+        lease1.channel().close();
+
+        try (ChannelCache.Lease lease2 = cache.acquire(1, opener)) {
+            assertNotSame(lease1.channel(), lease2.channel());
+            assertTrue(lease2.channel().isOpen());
+            assertEquals(2, opens.get());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Warcs.copy((FileChannel) lease2.channel(), out, 3, 4);
+            assertEquals("3456", out.toString(US_ASCII));
+        }
+        lease1.close();
+        try (ChannelCache.Lease lease3 = cache.acquire(1, opener)) {
+            assertTrue(lease3.channel().isOpen());
+            assertEquals(2, opens.get());
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testNonPositionalChannelsAreNotShared() throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, "0123456789".getBytes(US_ASCII));
+        ChannelCache.Opener opener = wrap(() -> Files.newByteChannel(path));
+        ChannelCache cache = new ChannelCache(10, Duration.ofMinutes(1));
+        ChannelCache.Lease lease1 = cache.acquire(1, opener);
+        ChannelCache.Lease lease2 = cache.acquire(1, opener);
+        assertNotSame(lease1.channel(), lease2.channel());
+        assertEquals(0, cache.size());
+        lease1.close();
+        assertFalse(lease1.channel().isOpen());
+        assertTrue(lease2.channel().isOpen());
+        lease2.close();
+        cache.close();
+    }
+
+    /**
+     * Hides the FileChannel behind a plain SeekableByteChannel like a blob store's channel.
+     */
+    private static ChannelCache.Opener wrap(ChannelCache.Opener opener) {
+        return () -> {
+            SeekableByteChannel channel = opener.open();
+            return new SeekableByteChannel() {
+                public int read(ByteBuffer dst) throws IOException {
+                    return channel.read(dst);
+                }
+
+                public int write(ByteBuffer src) throws IOException {
+                    return channel.write(src);
+                }
+
+                public long position() throws IOException {
+                    return channel.position();
+                }
+
+                public SeekableByteChannel position(long newPosition) throws IOException {
+                    channel.position(newPosition);
+                    return this;
+                }
+
+                public long size() throws IOException {
+                    return channel.size();
+                }
+
+                public SeekableByteChannel truncate(long size) throws IOException {
+                    channel.truncate(size);
+                    return this;
+                }
+
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        };
+    }
+}
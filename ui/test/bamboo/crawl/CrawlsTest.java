@@ -13,7 +13,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
@@ -64,12 +66,49 @@ public class CrawlsTest {
             assertEquals("bubble", crawl.getName());
         }
 
-        Pager pager = crawls.pager(1);
+        Pager pager = crawls.pager(null);
         assertTrue(pager.totalItems > 0);
 
         crawls.stats(id);
     }
 
+    @Test
+    public void testKeysetPagination() throws IOException {
+        Serieses serieses = new Serieses(fixtures.dao.serieses());
+        Crawls crawls = new Crawls(fixtures.dao.crawls(), serieses, new Warcs(fixtures.dao.warcs()), null);
+
+        Series series = new Series();
+        series.setName("keyset series");
+        long seriesId = serieses.create(series);
+
+        // expected order: latest end time first, ties by descending id, null end times last
+        long[] endTimes = {1000, 3000, 3000, 0, 2000, 0};
+        long[] ids = new long[endTimes.length];
+        for (int i = 0; i < endTimes.length; i++) {
+            Crawl crawl = new Crawl();
+            crawl.setName("keyset " + i);
+            crawl.setCrawlSeriesId(seriesId);
+            ids[i] = crawls.createInPlace(crawl, List.of());
+            if (endTimes[i] != 0) {
+                Date time = new Date(endTimes[i] * 1000000);
+                fixtures.dao.warcs().incrementRecordStatsForCrawl(ids[i], 0, 0, time, time);
+            }
+        }
+        List<Long> expected = List.of(ids[2], ids[1], ids[4], ids[0], ids[5], ids[3]);
+
+        List<Long> actual = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Pager<Crawl> pager = crawls.paginateWithSeriesId(cursor, seriesId, 2);
+            assertEquals(6, pager.totalItems);
+            pager.items.forEach(crawl -> actual.add(crawl.getId()));
+            cursor = pager.nextCursor;
+            pages++;
+        } while (cursor != null);
+        assertEquals(expected, actual);
+        assertEquals(3, pages);
+    }
 
     private static void writeTarEntry(TarArchiveOutputStream tar, String name, byte[] contents) throws IOException {
         TarArchiveEntry entry = new TarArchiveEntry(name);
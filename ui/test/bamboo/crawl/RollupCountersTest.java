@@ -0,0 +1,102 @@
+package bamboo.crawl;
+
+import bamboo.core.Fixtures;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RollupCountersTest {
+
+    @ClassRule
+    public static Fixtures fixtures = new Fixtures();
+
+    private final Serieses serieses = new Serieses(fixtures.dao.serieses());
+    private final Crawls crawls = new Crawls(fixtures.dao.crawls(), serieses, new Warcs(fixtures.dao.warcs()), null);
+
+    private long createCrawl(String name) throws IOException {
+        Series series = new Series();
+        series.setName(name);
+        Crawl crawl = new Crawl();
+        crawl.setName(name);
+        crawl.setCrawlSeriesId(serieses.create(series));
+        return crawls.createInPlace(crawl, List.of());
+    }
+
+    /**
+     * Starts a transaction that adds a WARC and then waits for proceed before committing, or rolling back if killed
+     * is set.
+     */
+    private CompletableFuture<Void> addWarcSlowly(RollupCounters counters, long crawlId, CountDownLatch inserted,
+                                                  CountDownLatch proceed, boolean killed) {
+        return CompletableFuture.runAsync(() -> counters.inTransaction((tx, rollups) -> {
+            rollups.add(crawlId, 1, 100);
+            long warcId = tx.insertWarcWithoutRollup(crawlId, Warc.IMPORTED, "/tmp/slow.warc.gz", "slow.warc.gz",
+                    100, null, null);
+            rollups.insertHistory(warcId, Warc.IMPORTED);
+            inserted.countDown();
+            try {
+                assertTrue(proceed.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (killed) {
+                // the process died so the transaction never commits
+                throw new IllegalStateException("killed");
+            }
+            return null;
+        }));
+    }
+
+    @Test
+    public void testFlushDuringTransactionKilledBeforeCommit() throws Exception {
+        long crawlId = createCrawl("killed before commit");
+        RollupCounters counters = new RollupCounters(fixtures.dao.warcs());
+        counters.recover();
+        counters.start(TimeUnit.HOURS.toMillis(1));
+
+        CountDownLatch inserted = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CompletableFuture<Void> future = addWarcSlowly(counters, crawlId, inserted, proceed, true);
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+        counters.flush();
+        proceed.countDown();
+        assertThrows(Exception.class, future::join);
+
+        // the process is gone so there's no later flush, and the uncommitted increment must not have been written
+        assertEquals(0, crawls.get(crawlId).getWarcFiles());
+        new RollupCounters(fixtures.dao.warcs()).recover();
+        assertEquals(0, crawls.get(crawlId).getWarcFiles());
+        assertEquals(0, crawls.get(crawlId).getWarcSize());
+    }
+
+    @Test
+    public void testFlushDuringTransactionThenCrashAfterCommit() throws Exception {
+        long crawlId = createCrawl("crash after commit");
+        RollupCounters counters = new RollupCounters(fixtures.dao.warcs());
+        counters.recover();
+        counters.start(TimeUnit.HOURS.toMillis(1));
+
+        CountDownLatch inserted = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CompletableFuture<Void> future = addWarcSlowly(counters, crawlId, inserted, proceed, false);
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+        // must not checkpoint past the pending transaction's history
+        counters.flush();
+        proceed.countDown();
+        future.join();
+        assertEquals(0, crawls.get(crawlId).getWarcFiles());
+
+        // crash before the next flush: the new process recovers the committed increment from history
+        new RollupCounters(fixtures.dao.warcs()).recover();
+        assertEquals(1, crawls.get(crawlId).getWarcFiles());
+        assertEquals(100, crawls.get(crawlId).getWarcSize());
+        assertEquals(1, serieses.get(crawls.get(crawlId).getCrawlSeriesId()).getWarcFiles());
+    }
+}
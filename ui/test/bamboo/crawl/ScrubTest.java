@@ -0,0 +1,37 @@
+package bamboo.crawl;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScrubTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCalculateDigest() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(0).nextBytes(data);
+        String expected = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(data));
+
+        Path file = folder.newFile().toPath();
+        Files.write(file, data);
+        assertEquals(expected, Scrub.calculateDigest("SHA-256", file));
+        assertEquals(expected, Scrub.calculateDigest("SHA-256",
+                Channels.newChannel(new ByteArrayInputStream(data))));
+
+        Path empty = folder.newFile().toPath();
+        assertEquals(Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest()),
+                Scrub.calculateDigest("SHA-256", empty));
+    }
+}
@@ -1,15 +1,23 @@
 package bamboo.crawl;
 
 import bamboo.core.Fixtures;
+import bamboo.util.Pager;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.*;
 
@@ -42,7 +50,7 @@ public class WarcsTest {
         RecordStats stats = new RecordStats();
         Date time = new Date();
         stats.update(100, time);
-        warcs.updateRecordStats(warcId, stats, false);
+        warcs.completeIndexing(warcId, stats, Set.of(), false, null).join();
 
         Warc warc = warcs.get(warcId);
         assertEquals(100, warc.getRecordBytes());
@@ -55,6 +63,74 @@ public class WarcsTest {
         assertEquals(time, crawl2.getEndTime());
     }
 
+    @Test
+    public void testBatchedCompletions() throws IOException {
+        Warcs warcs = new Warcs(fixtures.dao.warcs());
+        Serieses serieses = new Serieses(fixtures.dao.serieses());
+        Crawls crawls = new Crawls(fixtures.dao.crawls(), serieses, warcs, null);
+        Collections collections = new Collections(fixtures.dao.collections());
+
+        Collection collection = new Collection();
+        collection.setName("batched collection");
+        long collectionId = collections.create(collection);
+
+        Series series = new Series();
+        series.setName("batched series");
+        long seriesId = serieses.create(series);
+        serieses.update(seriesId, series, Arrays.asList(collectionId));
+
+        Crawl crawl = new Crawl();
+        crawl.setName("batched crawl");
+        crawl.setCrawlSeriesId(seriesId);
+        long crawlId = crawls.createInPlace(crawl, Arrays.asList(tmp.newFile("batched1.warc.gz").toPath(),
+                tmp.newFile("batched2.warc.gz").toPath()));
+        List<Warc> crawlWarcs = warcs.findByCrawlId(crawlId);
+        long warcId1 = crawlWarcs.get(0).getId();
+        long warcId2 = crawlWarcs.get(1).getId();
+
+        Date time1 = new Date(1000000000000L);
+        Date time2 = new Date(1100000000000L);
+        CompletableFuture<Void> future1 = warcs.completeIndexing(warcId1, stats(time1, 10, 20), Set.of(collectionId),
+                false, null);
+        CompletableFuture<Void> future2 = warcs.completeIndexing(warcId2, stats(time2, 30), Set.of(collectionId),
+                false, null);
+        warcs.flushCompletions();
+        CompletableFuture.allOf(future1, future2).join();
+
+        assertEquals(Warc.CDX_INDEXED, warcs.get(warcId1).getStateId());
+        assertEquals(Warc.CDX_INDEXED, warcs.get(warcId2).getStateId());
+        assertEquals(3, crawls.get(crawlId).getRecords());
+        assertEquals(60, crawls.get(crawlId).getRecordBytes());
+        assertEquals(time1, crawls.get(crawlId).getStartTime());
+        assertEquals(time2, crawls.get(crawlId).getEndTime());
+        assertEquals(3, serieses.get(seriesId).getRecords());
+        assertEquals(60, serieses.get(seriesId).getRecordBytes());
+        assertEquals(3, collections.get(collectionId).getRecords());
+        assertEquals(60, collections.get(collectionId).getRecordBytes());
+
+        // reindexing replaces the warc's previous contribution rather than adding to it
+        warcs.completeIndexing(warcId2, stats(time2, 30, 40), Set.of(collectionId), false, null).join();
+        assertEquals(4, crawls.get(crawlId).getRecords());
+        assertEquals(100, serieses.get(seriesId).getRecordBytes());
+        assertEquals(100, collections.get(collectionId).getRecordBytes());
+
+        // deindexing removes it
+        warcs.completeIndexing(warcId1, stats(time1, 10, 20), Set.of(collectionId), true, null).join();
+        assertEquals(Warc.DELETED, warcs.get(warcId1).getStateId());
+        assertEquals(2, crawls.get(crawlId).getRecords());
+        assertEquals(70, crawls.get(crawlId).getRecordBytes());
+        assertEquals(70, serieses.get(seriesId).getRecordBytes());
+        assertEquals(70, collections.get(collectionId).getRecordBytes());
+    }
+
+    private static RecordStats stats(Date time, long... recordLengths) {
+        RecordStats stats = new RecordStats();
+        for (long length : recordLengths) {
+            stats.update(length, time);
+        }
+        return stats;
+    }
+
     @Test
     public void testHasGzipSignature() throws IOException {
         assertFalse(Warcs.hasGzipSignature(new ByteArrayInputStream(new byte[0])));
@@ -63,4 +139,78 @@ public class WarcsTest {
         assertFalse(Warcs.hasGzipSignature(new ByteArrayInputStream(new byte[]{0x1, 0x2, 0x3})));
         assertTrue(Warcs.hasGzipSignature(new ByteArrayInputStream(new byte[]{0x1f, (byte) 0x8b, 0x3})));
     }
+
+    @Test
+    public void testDeferredRollups() throws IOException {
+        Warcs warcs = new Warcs(fixtures.dao.warcs());
+        Serieses serieses = new Serieses(fixtures.dao.serieses());
+        Crawls crawls = new Crawls(fixtures.dao.crawls(), serieses, warcs, null);
+        warcs.deferRollups(3600000);
+
+        Series series = new Series();
+        series.setName("deferred series");
+        long seriesId = serieses.create(series);
+
+        Crawl crawl = new Crawl();
+        crawl.setName("deferred crawl");
+        crawl.setCrawlSeriesId(seriesId);
+        long crawlId = crawls.createInPlace(crawl, List.of());
+
+        Path path = tmp.newFile("deferred1.warc.gz").toPath();
+        long warcId = warcs.create(crawlId, Warc.IMPORTED, path, "deferred1.warc.gz", 100, null);
+        warcs.update(warcId, Warc.IMPORTED, path, "deferred1.warc.gz", 150, null);
+        assertEquals(0, crawls.get(crawlId).getWarcFiles());
+
+        warcs.flushRollups();
+        assertEquals(1, crawls.get(crawlId).getWarcFiles());
+        assertEquals(150, crawls.get(crawlId).getWarcSize());
+        assertEquals(1, serieses.get(seriesId).getWarcFiles());
+        assertEquals(150, serieses.get(seriesId).getWarcSize());
+
+        // simulate a crash before the next flush
+        warcs.create(crawlId, Warc.IMPORTED, path, "deferred2.warc.gz", 200, null);
+        assertEquals(150, crawls.get(crawlId).getWarcSize());
+        new RollupCounters(fixtures.dao.warcs()).recover();
+        assertEquals(2, crawls.get(crawlId).getWarcFiles());
+        assertEquals(350, crawls.get(crawlId).getWarcSize());
+        assertEquals(2, serieses.get(seriesId).getWarcFiles());
+        assertEquals(350, serieses.get(seriesId).getWarcSize());
+    }
+
+    @Test
+    public void testKeysetPagination() throws IOException {
+        Warcs warcs = new Warcs(fixtures.dao.warcs());
+        Serieses serieses = new Serieses(fixtures.dao.serieses());
+        Crawls crawls = new Crawls(fixtures.dao.crawls(), serieses, warcs, null);
+
+        Crawl crawl = new Crawl();
+        crawl.setName("keyset crawl");
+        long crawlId = crawls.createInPlace(crawl, List.of());
+        Path path = tmp.newFile("keyset.warc.gz").toPath();
+        for (String filename : List.of("c.warc.gz", "a.warc.gz", "b.warc.gz", "b.warc.gz", "d.warc.gz")) {
+            warcs.create(crawlId, Warc.CDX_INDEXED, path, filename, 0, null);
+        }
+
+        List<String> filenames = new ArrayList<>();
+        Set<Long> ids = new HashSet<>();
+        String cursor = null;
+        do {
+            Pager<Warc> pager = warcs.paginateWithCrawlIdAfter(cursor, crawlId, 2);
+            assertEquals(5, pager.totalItems);
+            for (Warc warc : pager.items) {
+                filenames.add(warc.getFilename());
+                ids.add(warc.getId());
+            }
+            cursor = pager.nextCursor;
+        } while (cursor != null);
+        assertEquals(List.of("a.warc.gz", "b.warc.gz", "b.warc.gz", "c.warc.gz", "d.warc.gz"), filenames);
+        assertEquals(5, ids.size());
+
+        try {
+            warcs.paginateWithCrawlIdAfter("not a cursor", crawlId, 2);
+            fail("expected invalid cursor to be rejected");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package bamboo.task;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AgingQueueTest {
+
+    @Test
+    public void testLargeItemRunsDespiteStreamOfSmallOnes() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        AgingQueue<Long> queue = new AgingQueue<>(Comparator.<Long>naturalOrder(), 10, TimeUnit.SECONDS, clock::get);
+        queue.add(1000L);
+        queue.add(1L);
+        boolean largeTaken = false;
+        for (int i = 0; i < 100 && !largeTaken; i++) {
+            long item = queue.take();
+            if (item == 1000L) {
+                largeTaken = true;
+                assertTrue("large item taken before it aged", clock.get() >= TimeUnit.SECONDS.toNanos(10));
+            }
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            queue.add(1L); // small items keep arriving
+        }
+        assertTrue(largeTaken);
+    }
+
+    @Test
+    public void testSmallestFirstAndLazyRemoval() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        AgingQueue<Long> queue = new AgingQueue<>(Comparator.<Long>naturalOrder(), 10, TimeUnit.SECONDS, clock::get);
+        queue.add(3L);
+        queue.add(1L);
+        queue.add(2L);
+        assertEquals(1L, (long) queue.take());
+        clock.set(TimeUnit.SECONDS.toNanos(20));
+        assertEquals(3L, (long) queue.take()); // oldest, now aged
+        assertEquals(2L, (long) queue.take());
+        assertEquals(0, queue.size());
+        queue.add(5L);
+        assertEquals(5L, (long) queue.take());
+    }
+}
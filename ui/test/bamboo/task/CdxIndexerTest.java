@@ -0,0 +1,89 @@
+package bamboo.task;
+
+import bamboo.crawl.Warc;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.jwarc.WarcReader;
+import org.netpreserve.jwarc.WarcRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class CdxIndexerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFindCompleteRecordsEndOfGrowingWarc() throws IOException {
+        byte[] gzipped;
+        try (InputStream stream = getClass().getResourceAsStream("/bamboo/task/example.warc.gz")) {
+            gzipped = stream.readAllBytes();
+        }
+        checkFindCompleteRecordsEnd(gzipped);
+        checkFindCompleteRecordsEnd(new GZIPInputStream(new ByteArrayInputStream(gzipped)).readAllBytes());
+    }
+
+    private void checkFindCompleteRecordsEnd(byte[] data) throws IOException {
+        Path full = folder.newFile().toPath();
+        Files.write(full, data);
+        List<Long> offsets = new ArrayList<>();
+        try (WarcReader reader = new WarcReader(FileChannel.open(full))) {
+            for (WarcRecord record : reader) {
+                offsets.add(reader.position());
+            }
+        }
+        assertTrue(offsets.size() > 2);
+
+        // simulate the WARC being appended to a little at a time
+        Path partial = folder.newFile().toPath();
+        long previousEnd = 0;
+        for (int size = 1; size <= data.length; size += 97) {
+            Files.write(partial, Arrays.copyOf(data, size));
+            long end;
+            try (FileChannel channel = FileChannel.open(partial)) {
+                channel.position(previousEnd);
+                end = CdxIndexer.findCompleteRecordsEnd(channel, previousEnd, size);
+            }
+            assertTrue("must stop at a record boundary: " + end, end == previousEnd || offsets.contains(end));
+            assertTrue(end >= previousEnd);
+            assertTrue(end <= size);
+            previousEnd = end;
+        }
+
+        try (FileChannel channel = FileChannel.open(full)) {
+            channel.position(previousEnd);
+            assertEquals(data.length, CdxIndexer.findCompleteRecordsEnd(channel, previousEnd, data.length));
+        }
+    }
+
+    @Test
+    public void testWarcsWithoutDigestAreNotIndexedInParallel() {
+        CdxIndexer indexer = new CdxIndexer(null, null, null, null, null, 2);
+        indexer.setParallelMinSize(1000);
+        try {
+            Warc warc = new Warc();
+            warc.setFilename("big.warc.gz");
+            warc.setStateId(Warc.IMPORTED);
+            warc.setSize(5000);
+            // renamed into place by the watch importer so the digest still needs calculating
+            assertFalse(indexer.isParallelCandidate(warc));
+            warc.setSha256("0000000000000000000000000000000000000000000000000000000000000000");
+            assertTrue(indexer.isParallelCandidate(warc));
+            warc.setSize(500);
+            assertFalse(indexer.isParallelCandidate(warc));
+        } finally {
+            indexer.setParallelMinSize(0);
+        }
+    }
+}
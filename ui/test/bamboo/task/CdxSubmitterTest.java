@@ -0,0 +1,111 @@
+package bamboo.task;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class CdxSubmitterTest {
+    private HttpServer server;
+    private ExecutorService executor;
+    private final ConcurrentLinkedQueue<String> received = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> deleted = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger failuresRemaining = new AtomicInteger();
+    private final AtomicInteger acceptsRemaining = new AtomicInteger(Integer.MAX_VALUE);
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/cdx", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+            if (exchange.getRequestURI().getPath().endsWith("/delete")) {
+                deleted.add(body);
+                exchange.sendResponseHeaders(200, -1);
+            } else if (failuresRemaining.getAndDecrement() > 0 || acceptsRemaining.getAndDecrement() <= 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                received.add(body);
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        });
+        server.start();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/cdx");
+    }
+
+    @Test
+    public void testBatchesAreSplitOnLinesAndRetried() throws IOException {
+        failuresRemaining.set(2);
+        CdxSubmitter submitter = new CdxSubmitter(List.of(url()), null, executor, 100, 2, 3, 1);
+        StringBuilder expected = new StringBuilder();
+        try (PrintWriter writer = new PrintWriter(submitter)) {
+            for (int i = 0; i < 50; i++) {
+                String line = "com,example)/page" + i + " 20200101000000 http://example.com/page" + i;
+                writer.println(line);
+                expected.append(line).append('\n');
+            }
+        }
+        assertTrue(submitter.getBatches() > 1);
+        assertEquals(submitter.getBatches(), received.size());
+        int total = 0;
+        for (String batch : received) {
+            assertTrue("batch should end on a line boundary", batch.endsWith("\n"));
+            total += batch.length();
+        }
+        assertEquals(expected.length(), total);
+    }
+
+    @Test(expected = IOException.class)
+    public void testGivesUpAfterMaxAttempts() throws IOException {
+        failuresRemaining.set(Integer.MAX_VALUE);
+        CdxSubmitter submitter = new CdxSubmitter(List.of(url()), null, executor, 100, 2, 2, 1);
+        submitter.write("com,example)/ 20200101000000 http://example.com/\n");
+        submitter.close();
+    }
+
+    @Test
+    public void testFailureAbortsWritesAndAbortDeletesSubmittedBatches() throws IOException {
+        acceptsRemaining.set(3);
+        CdxSubmitter submitter = new CdxSubmitter(List.of(url()), null, executor, 100, 1, 1, 1);
+        PrintWriter writer = new PrintWriter(submitter);
+        int written = 0;
+        try {
+            for (; written < 10000; written++) {
+                writer.println("com,example)/page" + written + " 20200101000000 http://example.com/page" + written);
+            }
+            fail("expected the failed batch to abort writing");
+        } catch (CdxSubmitter.SubmitException e) {
+            assertNotNull(submitter.getFailure());
+        }
+        assertTrue("should fail long before writing everything", written < 100);
+
+        submitter.abort(true);
+        assertEquals(3, received.size());
+        // every batch that was submitted is deleted, including any that may have reached the server unacknowledged
+        assertEquals(submitter.getBatches(), deleted.size());
+        assertTrue(deleted.containsAll(received));
+    }
+}
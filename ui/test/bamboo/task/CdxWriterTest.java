@@ -0,0 +1,65 @@
+package bamboo.task;
+
+import org.junit.Test;
+import org.netpreserve.jwarc.URIs;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+import static java.time.ZoneOffset.UTC;
+import static org.junit.Assert.assertEquals;
+
+public class CdxWriterTest {
+    private static final DateTimeFormatter ARC_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(UTC);
+
+    private static String legacyFormat(String url, Instant instant, String type, int status, String digest,
+                                       String redirect, long length, long position, String filename) {
+        String escaped = type.replace(" ", "%20").replace("\n", "%0A").replace("\0", "%00");
+        return String.format("%s %s %s %s %d %s %s - %d %d %s%n", URIs.toNormalizedSurt(url),
+                ARC_DATE.format(instant), url, escaped, status, digest, redirect == null ? "-" : redirect,
+                length, position, filename);
+    }
+
+    @Test
+    public void testMatchesLegacyFormat() {
+        Random random = new Random(42);
+        String[] types = {"text/html", "application/octet-stream", "text/html; charset=utf-8", "bad\ntype\0"};
+        StringWriter expected = new StringWriter();
+        StringWriter actual = new StringWriter();
+        CdxWriter writer = new CdxWriter(new PrintWriter(actual));
+        long start = Instant.parse("1990-01-01T00:00:00Z").getEpochSecond();
+        long end = Instant.parse("2099-12-31T23:59:59Z").getEpochSecond();
+        for (int i = 0; i < 10000; i++) {
+            // include runs of records captured in the same second
+            Instant instant = Instant.ofEpochSecond(start + (long) (random.nextDouble() * (end - start)),
+                    random.nextInt(1000_000_000));
+            String url = "http://Example" + random.nextInt(50) + ".com/page?id=" + random.nextInt(100);
+            String type = types[random.nextInt(types.length)];
+            String redirect = random.nextBoolean() ? null : "http://example.com/redirect";
+            String digest = "AAAABBBBCCCCDDDDEEEEFFFFGGGGHHHH";
+            long length = random.nextInt(100000);
+            long position = random.nextLong() & Long.MAX_VALUE;
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                expected.write(legacyFormat(url, instant, type, 200, digest, redirect, length, position, "x.warc.gz"));
+                writer.write(writer.surt(url), instant, url, type, 200, digest, redirect, length, position,
+                        "x.warc.gz");
+            }
+        }
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testDateBoundaries() {
+        CdxWriter writer = new CdxWriter(new PrintWriter(new StringWriter()));
+        for (String date : new String[]{"1970-01-01T00:00:00Z", "2000-02-29T23:59:59Z", "2024-12-31T12:00:00Z",
+                "2100-03-01T00:00:00Z", "9999-12-31T23:59:59Z", "1969-12-31T23:59:59Z"}) {
+            Instant instant = Instant.parse(date);
+            StringBuilder sb = new StringBuilder();
+            writer.appendDate(sb, instant);
+            assertEquals(ARC_DATE.format(instant), sb.toString());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package bamboo.task;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DebouncerTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+    @After
+    public void teardown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void testCoalescesBursts() throws InterruptedException {
+        List<String> calls = new CopyOnWriteArrayList<>();
+        Debouncer<String> debouncer = new Debouncer<>(scheduler, workers, 100, 10000, calls::add);
+        for (int i = 0; i < 50; i++) {
+            debouncer.signal("a");
+            debouncer.signal("b");
+        }
+        awaitIdle(debouncer);
+        assertEquals(2, calls.size());
+        assertTrue(calls.contains("a"));
+        assertTrue(calls.contains("b"));
+    }
+
+    @Test
+    public void testMaxDelayWhileNeverQuiet() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        Debouncer<String> debouncer = new Debouncer<>(scheduler, workers, 100, 200,
+                key -> calls.incrementAndGet());
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(700);
+        while (System.nanoTime() < end) {
+            debouncer.signal("a");
+            Thread.sleep(10);
+        }
+        assertTrue("expected periodic calls but got " + calls.get(), calls.get() >= 2);
+        awaitIdle(debouncer);
+    }
+
+    @Test
+    public void testSignalWhileRunningRunsAgainAfterwards() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger calls = new AtomicInteger();
+        Debouncer<String> debouncer = new Debouncer<>(scheduler, workers, 10, 1000, key -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            running.decrementAndGet();
+        });
+        debouncer.signal("a");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        debouncer.signal("a");
+        Thread.sleep(100);
+        assertEquals(1, calls.get());
+        release.countDown();
+        awaitIdle(debouncer);
+        assertEquals(2, calls.get());
+        assertEquals(1, maxRunning.get());
+    }
+
+    private static void awaitIdle(Debouncer<?> debouncer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (debouncer.pending() > 0) {
+            assertTrue("timed out waiting for debouncer", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
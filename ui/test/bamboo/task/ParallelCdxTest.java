@@ -0,0 +1,125 @@
+package bamboo.task;
+
+import bamboo.crawl.RecordStats;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.jwarc.*;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.*;
+import static org.junit.Assert.*;
+
+public class ParallelCdxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWarcMatchesSequentialIndex() throws IOException {
+        Path path = folder.newFile("test.warc.gz").toPath();
+        try (FileChannel channel = FileChannel.open(path, WRITE, TRUNCATE_EXISTING);
+             WarcWriter writer = new WarcWriter(channel, WarcCompression.GZIP)) {
+            writer.write(new Warcinfo.Builder().fields(Map.of("software", List.of("test"))).build());
+            Instant date = Instant.parse("2020-01-01T00:00:00Z");
+            for (int i = 0; i < 300; i++) {
+                URI uri = URI.create("http://example.org/page" + i);
+                String method = i % 7 == 0 ? "POST" : "GET";
+                byte[] request = (method + " /page" + i + " HTTP/1.1\r\nHost: example.org\r\n" +
+                        "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 3\r\n\r\nq=" + i % 10)
+                        .getBytes(US_ASCII);
+                byte[] body = ("<html><body>page " + i + "</body></html>").getBytes(US_ASCII);
+                byte[] response = ("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: " + body.length +
+                        "\r\n\r\n" + new String(body, US_ASCII)).getBytes(US_ASCII);
+                WarcResponse warcResponse = new WarcResponse.Builder(uri).date(date)
+                        .body(MediaType.HTTP_RESPONSE, response).build();
+                WarcRequest warcRequest = new WarcRequest.Builder(uri).date(date)
+                        .concurrentTo(warcResponse.id())
+                        .body(MediaType.HTTP_REQUEST, request).build();
+                writer.write(warcResponse);
+                writer.write(warcRequest);
+                date = date.plusSeconds(1);
+            }
+        }
+        assertParallelMatches(path, "test.warc.gz");
+    }
+
+    @Test
+    public void testPandoraArcMatchesSequentialIndex() throws IOException {
+        String filename = "nla.arc-1234-20010101.arc.gz";
+        Path path = folder.newFile(filename).toPath();
+        try (OutputStream out = Files.newOutputStream(path)) {
+            byte[] filedesc = "1 0 Test\nURL IP-address Archive-date Content-type Archive-length\n".getBytes(US_ASCII);
+            writeArcRecord(out, "filedesc://" + filename + " 0.0.0.0 20010101000000 text/plain " +
+                    filedesc.length, filedesc);
+            for (int i = 0; i < 200; i++) {
+                byte[] http = ("HTTP/1.0 200 OK\r\nContent-Type: text/html\r\n\r\n<html>" + i + "</html>")
+                        .getBytes(US_ASCII);
+                writeArcRecord(out, "http://pandora.nla.gov.au/pan/1234/20010101-0000/www.example.org/dir" + i +
+                        "/index.html 192.0.2.1 20010101000000 text/html " + http.length, http);
+            }
+        }
+        assertParallelMatches(path, filename);
+    }
+
+    private static void writeArcRecord(OutputStream out, String header, byte[] body) throws IOException {
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(header.getBytes(US_ASCII));
+        gz.write('\n');
+        gz.write(body);
+        gz.write('\n');
+        gz.finish();
+    }
+
+    private void assertParallelMatches(Path path, String filename) throws IOException {
+        StringWriter expected = new StringWriter();
+        RecordStats expectedStats;
+        try (WarcReader reader = new WarcReader(path)) {
+            expectedStats = Cdx.buildIndex(reader, new PrintWriter(expected), filename);
+        }
+
+        List<Long> boundaries;
+        try (FileChannel channel = FileChannel.open(path)) {
+            boundaries = ParallelCdx.findBoundaries(channel, Files.size(path), 4);
+        }
+        assertEquals("should find a split point for each part", 5, boundaries.size());
+
+        StringWriter actual = new StringWriter();
+        PrintWriter out = new PrintWriter(actual);
+        RecordStats stats = ParallelCdx.buildIndex(() -> FileChannel.open(path), Files.size(path), out, filename,
+                true, 4, executor);
+        out.flush();
+
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(expectedStats.getRecords(), stats.getRecords());
+        assertEquals(expectedStats.getRecordBytes(), stats.getRecordBytes());
+        assertEquals(expectedStats.getStartTime(), stats.getStartTime());
+        assertEquals(expectedStats.getEndTime(), stats.getEndTime());
+        assertEquals(expectedStats.getSoftware(), stats.getSoftware());
+    }
+}
@@ -0,0 +1,81 @@
+package bamboo.task;
+
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TaskManagerTest {
+    @Test
+    public void testSignalledTasksRunIndependently() throws InterruptedException {
+        FakeTaskDAO dao = new FakeTaskDAO();
+        Blocker blocker = new Blocker();
+        Counter counter = new Counter();
+        try (TaskManager taskManager = new TaskManager(dao)) {
+            taskManager.setPollInterval(TimeUnit.HOURS.toMillis(1));
+            taskManager.register(blocker);
+            taskManager.register(counter);
+            taskManager.start();
+
+            // both run once at startup even though the blocker never finishes
+            assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+            assertTrue(counter.runs.tryAcquire(5, TimeUnit.SECONDS));
+
+            // then only when signalled
+            assertFalse(counter.runs.tryAcquire(200, TimeUnit.MILLISECONDS));
+            taskManager.signal(counter);
+            assertTrue(counter.runs.tryAcquire(5, TimeUnit.SECONDS));
+        }
+    }
+
+    static class Blocker implements Runnable {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        public void run() {
+            started.countDown();
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+
+    static class Counter implements Runnable {
+        final Semaphore runs = new Semaphore(0);
+
+        public void run() {
+            runs.release();
+        }
+    }
+
+    static class FakeTaskDAO implements TaskDAO {
+        final List<Task> tasks = new ArrayList<>();
+
+        public synchronized void register(Task task) {
+            tasks.add(task);
+        }
+
+        public synchronized List<Task> listTasks() {
+            return new ArrayList<>(tasks);
+        }
+
+        public int setEnabled(String id, boolean enabled) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int setStartTime(String id, Timestamp startTime) {
+            return 1;
+        }
+
+        public int setFinishTime(String id, Timestamp finishTime) {
+            return 1;
+        }
+    }
+}
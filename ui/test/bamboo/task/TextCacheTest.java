@@ -0,0 +1,64 @@
+package bamboo.task;
+
+import bamboo.crawl.Warc;
+import com.google.gson.reflect.TypeToken;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class TextCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIndexedEntry() throws IOException {
+        TextCache cache = new TextCache(folder.getRoot().toPath(), null, null);
+        Warc warc = new Warc();
+        warc.setId(1234);
+        warc.setSize(5000);
+        try (TextCache.EntryWriter writer = cache.newEntry(warc)) {
+            for (int i = 0; i < 10; i++) {
+                Document doc = new Document();
+                doc.setUrl("http://example.org/" + i);
+                doc.setWarcOffset(i * 500L);
+                doc.setText("document " + i);
+                writer.accept(doc);
+            }
+            writer.commit();
+        }
+
+        // the entry as a whole is still a single JSON array
+        List<Document> all;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(cache.entryPath(warc.getId()))), UTF_8)) {
+            all = TextExtractor.gson.fromJson(reader, new TypeToken<List<Document>>() {}.getType());
+        }
+        assertEquals(10, all.size());
+        assertEquals("document 9", all.get(9).getText());
+
+        List<TextCache.IndexEntry> index = cache.readIndex(warc.getId());
+        assertEquals(10, index.size());
+        assertEquals(1500L, index.get(3).warcOffset);
+        assertEquals("http://example.org/3", index.get(3).url);
+        assertTrue(index.get(3).hasUrl("http://example.org/3"));
+        assertFalse(index.get(3).hasUrl("http://example.org/4"));
+        for (int i : new int[]{0, 3, 9}) {
+            Document doc = cache.readDocument(warc.getId(), index.get(i));
+            assertEquals("document " + i, doc.getText());
+            assertEquals(i * 500L, doc.getWarcOffset());
+        }
+
+        cache.invalidate(warc.getId());
+        assertNull(cache.readIndex(warc.getId()));
+    }
+}
@@ -0,0 +1,92 @@
+package bamboo.task;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TextDedupCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ParsedContent content(String text) {
+        ParsedContent content = new ParsedContent();
+        content.contentType = "text/html";
+        content.text = text;
+        content.title = "title";
+        content.h1 = List.of("heading");
+        LinkInfo link = new LinkInfo();
+        link.setType("a");
+        link.setHref("page2.html");
+        content.links.add(link);
+        return content;
+    }
+
+    private static String key(int i) {
+        return String.format("%032d", i).replace('0', 'A').replace('1', 'B');
+    }
+
+    @Test
+    public void testRoundTripResolvesLinksAgainstNewUrl() throws IOException {
+        TextDedupCache cache = new TextDedupCache(folder.getRoot().toPath(), 1024 * 1024);
+        String key = TextDedupCache.key("abcdefghijklmnopqrstuvwxyz234567");
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ234567", key);
+        assertNull(TextDedupCache.key("sha256:abc"));
+
+        assertNull(cache.get(key, "text/html"));
+        cache.put(key, content("hello"));
+        assertNull("content type must match", cache.get(key, "application/pdf"));
+
+        Document doc = new Document();
+        cache.get(key, "text/html").applyTo(doc, URI.create("http://example.org/dir/index.html"));
+        assertEquals("hello", doc.getText());
+        assertEquals("title", doc.getTitle());
+        assertEquals(List.of("heading"), doc.getH1());
+        assertEquals("http://example.org/dir/page2.html", doc.getLinks().get(0).getUrl());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedAndReloads() throws IOException, InterruptedException {
+        Path root = folder.getRoot().toPath();
+        TextDedupCache cache = new TextDedupCache(root, Long.MAX_VALUE);
+        cache.put(key(1), content("one"));
+        long entrySize = cache.getSize();
+        Thread.sleep(10);
+        cache.put(key(2), content("two"));
+        Thread.sleep(10);
+        cache.put(key(3), content("thr"));
+        Thread.sleep(10);
+        assertNotNull(cache.get(key(1), "text/html")); // now most recently used
+
+        TextDedupCache reopened = new TextDedupCache(root, entrySize * 2 + entrySize / 2);
+        assertEquals(2, reopened.getEntryCount());
+        assertNotNull(reopened.get(key(1), "text/html"));
+        assertNull(reopened.get(key(2), "text/html"));
+    }
+
+    @Test
+    public void testHitProtectsEntryFromEviction() throws IOException {
+        Path root = folder.getRoot().toPath();
+        TextDedupCache sizer = new TextDedupCache(folder.newFolder("sizer").toPath(), Long.MAX_VALUE);
+        sizer.put(key(1), content("one"));
+        long entrySize = sizer.getSize();
+
+        TextDedupCache cache = new TextDedupCache(root.resolve("cache"), entrySize * 2 + entrySize / 2);
+        cache.put(key(1), content("one"));
+        cache.put(key(2), content("two"));
+        assertNotNull(cache.get(key(1), "text/html"));
+        cache.put(key(3), content("thr")); // overflows, evicting the least recently used
+
+        assertEquals(2, cache.getEntryCount());
+        assertNotNull("hit entry should survive", cache.get(key(1), "text/html"));
+        assertNull(cache.get(key(2), "text/html"));
+        assertNotNull(cache.get(key(3), "text/html"));
+    }
+}
@@ -68,6 +68,41 @@ public class TextExtractorTest {
         assertEquals(Arrays.asList("Heading one!", "Heading two!"), doc.getH1());
     }
 
+    @Test
+    public void testInProcessHtmlMatchesForked() throws IOException, TextExtractionException {
+        URI uri = URI.create("http://example.net/subdir/badtitle.html");
+        Document forked = new Document();
+        forked.setContentType("text/html");
+        try (InputStream stream = getClass().getResourceAsStream("badtitle.html")) {
+            textExtractor.extractTika(stream, forked, uri, false);
+        }
+        Document inProcess = new Document();
+        inProcess.setContentType("text/html");
+        try (InputStream stream = getClass().getResourceAsStream("badtitle.html")) {
+            textExtractor.extractTika(stream, inProcess, uri, true);
+        }
+        assertEquals(TextExtractor.gson.toJson(forked), TextExtractor.gson.toJson(inProcess));
+    }
+
+    @Test
+    public void testInProcessHtmlTimeoutFallsBackToForked() throws IOException, TextExtractionException {
+        URI uri = URI.create("http://example.net/subdir/badtitle.html");
+        Document expected = new Document();
+        expected.setContentType("text/html");
+        try (InputStream stream = getClass().getResourceAsStream("badtitle.html")) {
+            textExtractor.extractTika(stream, expected, uri, false);
+        }
+        Document doc = new Document();
+        doc.setContentType("text/html");
+        textExtractor.setInProcessTimeout(0);
+        try (InputStream stream = getClass().getResourceAsStream("badtitle.html")) {
+            textExtractor.extractTika(stream, doc, uri, true);
+        } finally {
+            textExtractor.setInProcessTimeout(15000);
+        }
+        assertEquals(TextExtractor.gson.toJson(expected), TextExtractor.gson.toJson(doc));
+    }
+
     @Test
     public void testHackOffPandoraUrl() throws TextExtractionException {
         Document doc = new Document();
@@ -0,0 +1,75 @@
+package bamboo.task;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.Assert.*;
+
+public class TikaPoolTest {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDefaultPoolSizeIsLimitedByCoresAndMemory() {
+        // each child needs 768 MiB and the children get half of memory
+        assertEquals(8, TikaPool.defaultPoolSize(8, 64 * GB));
+        assertEquals(5, TikaPool.defaultPoolSize(8, 8 * GB));
+        assertEquals(2, TikaPool.defaultPoolSize(2, 64 * GB));
+        assertEquals(1, TikaPool.defaultPoolSize(8, GB));
+    }
+
+    @Test
+    public void testOnlySlowFailuresCountAsTimeouts() {
+        TikaPool.TypeStats stats = new TikaPool.TypeStats();
+        long timeoutMillis = 100;
+        stats.record(150_000_000L, false, timeoutMillis);
+        stats.record(5_000_000L, false, timeoutMillis);
+        stats.record(200_000_000L, true, timeoutMillis);
+        TikaPool.ContentTypeStats summary = new TikaPool.ContentTypeStats(stats);
+        assertEquals(3, summary.getCount());
+        assertEquals(2, summary.getFailures());
+        assertEquals(1, summary.getTimeouts());
+        assertEquals(118, summary.getMeanMillis());
+        assertEquals(200, summary.getMaxMillis());
+    }
+
+    @Test
+    public void testParsesAreRecordedInStats() throws Exception {
+        Path logbackConfig = folder.newFile("tika-logback.xml").toPath();
+        try (InputStream stream = getClass().getResourceAsStream("/tika-logback.xml")) {
+            Files.copy(stream, logbackConfig, REPLACE_EXISTING);
+        }
+        try (TikaPool pool = new TikaPool(getClass().getClassLoader(), logbackConfig)) {
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.CONTENT_TYPE, "text/html");
+            BodyContentHandler handler = new BodyContentHandler();
+            pool.parse(new ByteArrayInputStream("<html><body>hello</body></html>".getBytes(UTF_8)), handler,
+                    metadata, new ParseContext());
+            assertEquals("hello", handler.toString().trim());
+
+            TikaPool.Stats stats = pool.getStats();
+            assertEquals(1, stats.getParses());
+            assertEquals(0, stats.getTimeouts());
+            assertEquals(0, stats.getActive());
+            assertEquals(0, stats.getWaiting());
+            assertTrue(stats.getPoolSize() >= 1);
+            TikaPool.ContentTypeStats html = stats.getContentTypes().get("text/html");
+            assertNotNull(html);
+            assertEquals(1, html.getCount());
+            assertEquals(0, html.getFailures());
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package bamboo.task;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecord;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.netpreserve.jwarc.WarcReader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+public class WarcPipelineTest {
+    private static TextExtractor textExtractor;
+
+    @BeforeClass
+    public static void setup() {
+        textExtractor = new TextExtractor();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        textExtractor.close();
+    }
+
+    @Test
+    public void testSinglePassMatchesSeparatePasses() throws IOException {
+        byte[] warc;
+        try (InputStream stream = Objects.requireNonNull(getClass().getResourceAsStream("example.warc.gz"))) {
+            warc = stream.readAllBytes();
+        }
+
+        StringWriter expectedCdx = new StringWriter();
+        try (WarcReader warcReader = new WarcReader(new ByteArrayInputStream(warc))) {
+            Cdx.buildIndex(warcReader, new PrintWriter(expectedCdx), "example.warc.gz");
+        }
+
+        List<Document> expectedDocs = new ArrayList<>();
+        try (ArchiveReader reader = ArchiveReaderFactory.get("example.warc.gz", new ByteArrayInputStream(warc), true)) {
+            for (ArchiveRecord record : reader) {
+                if (record.getHeader().getUrl() == null) continue;
+                try {
+                    expectedDocs.add(textExtractor.extract(record));
+                } catch (TextExtractionException e) {
+                    // skip
+                }
+            }
+        }
+
+        StringWriter cdx = new StringWriter();
+        List<Document> docs = new ArrayList<>();
+        WarcPipeline.Result result = new WarcPipeline()
+                .cdx(new PrintWriter(cdx), true)
+                .text(textExtractor, docs::add)
+                .digest("SHA-256")
+                .run(new ByteArrayInputStream(warc), "example.warc.gz");
+
+        assertEquals(expectedCdx.toString(), cdx.toString());
+        assertEquals(DigestUtils.sha256Hex(warc), result.digest);
+        assertEquals(2, result.stats.getRecords());
+        assertEquals(5382, result.stats.getRecordBytes());
+
+        assertEquals(expectedDocs.size(), docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            Document expected = expectedDocs.get(i);
+            Document actual = docs.get(i);
+            assertEquals(expected.getUrl(), actual.getUrl());
+            assertEquals(expected.getWarcOffset(), actual.getWarcOffset());
+            assertEquals(expected.getContentLength(), actual.getContentLength());
+            assertEquals(expected.getSha1(), actual.getSha1());
+            assertEquals(expected.getDate(), actual.getDate());
+            assertEquals(expected.getText(), actual.getText());
+        }
+    }
+}
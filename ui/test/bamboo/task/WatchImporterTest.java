@@ -0,0 +1,46 @@
+package bamboo.task;
+
+import bamboo.crawl.Scrub;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WatchImporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCopyWithDigest() throws IOException {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(0).nextBytes(data);
+        Path source = folder.newFile("example.warc.gz").toPath();
+        Files.write(source, data);
+        Path dest = folder.newFolder("crawl").toPath().resolve("example.warc.gz");
+
+        assertEquals(Scrub.calculateDigest("SHA-256", source), WatchImporter.copyWithDigest(source, dest));
+        assertArrayEquals(data, Files.readAllBytes(dest));
+        assertFalse(Files.exists(dest.resolveSibling("example.warc.gz.tmp")));
+    }
+
+    @Test
+    public void testMoveWithDigestRenamesWithoutReading() throws IOException {
+        Path source = folder.newFile("example.warc.gz").toPath();
+        Files.write(source, new byte[]{1, 2, 3});
+        Path dest = folder.newFolder("crawl").toPath().resolve("example.warc.gz");
+
+        assertNull(WatchImporter.moveWithDigest(source, dest));
+        assertFalse(Files.exists(source));
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(dest));
+
+        Path other = folder.newFile("other.warc.gz").toPath();
+        assertThrows(FileAlreadyExistsException.class, () -> WatchImporter.moveWithDigest(other, dest));
+    }
+}
@@ -0,0 +1,59 @@
+package bamboo.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TaskScopeTest {
+    @Test
+    public void testConcurrencyIsLimitedBySharedSemaphore() throws InterruptedException {
+        Semaphore permits = new Semaphore(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        Runnable task = () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            running.decrementAndGet();
+            completed.incrementAndGet();
+        };
+        try (TaskScope scope1 = new TaskScope("test1", permits);
+             TaskScope scope2 = new TaskScope("test2", permits)) {
+            for (int i = 0; i < 20; i++) {
+                scope1.fork(task);
+                scope2.fork(task);
+            }
+            scope1.join();
+            scope2.join();
+        }
+        assertEquals(40, completed.get());
+        assertTrue("max running was " + maxRunning.get(), maxRunning.get() <= 3);
+        assertEquals(3, permits.availablePermits());
+    }
+
+    @Test
+    public void testJoinRethrowsFailure() throws InterruptedException {
+        AtomicInteger completed = new AtomicInteger();
+        try (TaskScope scope = new TaskScope("test", 2)) {
+            for (int i = 0; i < 10; i++) {
+                int n = i;
+                scope.fork(() -> {
+                    if (n == 5) throw new IllegalStateException("task " + n);
+                    completed.incrementAndGet();
+                });
+            }
+            scope.join();
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals("task 5", e.getMessage());
+        }
+        assertEquals(9, completed.get());
+    }
+}